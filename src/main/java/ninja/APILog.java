@@ -8,19 +8,26 @@
 
 package ninja;
 
-import com.google.common.collect.Lists;
 import sirius.kernel.commons.Watch;
+import sirius.kernel.di.std.ConfigValue;
 import sirius.kernel.di.std.Register;
 
+import javax.annotation.Nullable;
 import java.time.LocalDateTime;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Contains a log of the latest API calls.
  * <p>
- * The entries are stored in memory and will be lost during server restarts. Also, the size is limited to 250 entries.
- * The newest entry will be the first in the list.
+ * The entries are stored in memory and will be lost during server restarts. Also, the size is limited to
+ * <tt>storage.apiLogEntries</tt> entries. The newest entry will be the first in the list.
+ * <p>
+ * As every API call is logged, the entries are kept in a lock-free ring buffer. Each call claims the next sequence
+ * number and stores its entry in the corresponding slot, overwriting the oldest entry. Reading a page therefore only
+ * needs to compute the slots of the requested sequence numbers.
  */
 @Register(classes = APILog.class)
 public class APILog {
@@ -39,6 +46,8 @@ public class APILog {
         private final String description;
         private final Result result;
         private final String duration;
+        private String trace;
+        private long sequence;
 
         /**
          * Creates a new log entry.
@@ -91,6 +100,16 @@ public class APILog {
             return duration;
         }
 
+        /**
+         * Returns the breakdown of the duration into the phases of the call.
+         *
+         * @return the phases of the call along with their durations, or <b>null</b> if the call has not been traced
+         */
+        @Nullable
+        public String getTrace() {
+            return trace;
+        }
+
         /**
          * Returns a timestamp of the call.
          *
@@ -117,7 +136,27 @@ public class APILog {
         }
     }
 
-    private final List<Entry> entries = Lists.newArrayList();
+    @ConfigValue("storage.apiLogEntries")
+    private int capacity;
+
+    private volatile AtomicReferenceArray<Entry> entries;
+
+    /**
+     * Contains the sequence number of the next entry to log.
+     */
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    private AtomicReferenceArray<Entry> getRingBuffer() {
+        if (entries == null) {
+            synchronized (nextSequence) {
+                if (entries == null) {
+                    entries = new AtomicReferenceArray<>(Math.max(1, capacity));
+                }
+            }
+        }
+
+        return entries;
+    }
 
     /**
      * Returns a sublist of the stored entries, starting at <tt>start</tt> returning at most <tt>count</tt> items.
@@ -127,19 +166,22 @@ public class APILog {
      * @return a non-null list of log entries
      */
     public List<Entry> getEntries(int start, int count) {
-        List<Entry> result = Lists.newArrayList();
-        int index = start;
-        int itemsToReturn = count;
-        synchronized (entries) {
-            Iterator<Entry> iter = entries.iterator();
-            while (iter.hasNext() && index > 0) {
-                iter.next();
-                index--;
+        AtomicReferenceArray<Entry> ringBuffer = getRingBuffer();
+        long newest = nextSequence.get() - 1;
+        long oldest = Math.max(0, newest - ringBuffer.length() + 1);
+
+        List<Entry> result = new ArrayList<>(Math.max(0, Math.min(count, ringBuffer.length())));
+        for (long sequence = newest - start; sequence >= oldest && result.size() < count; sequence--) {
+            Entry entry = ringBuffer.get((int) (sequence % ringBuffer.length()));
+            if (entry == null || entry.sequence < sequence) {
+                // the slot has been claimed, but the entry has not been stored yet
+                continue;
             }
-            while (iter.hasNext() && itemsToReturn > 0) {
-                result.add(iter.next());
-                itemsToReturn--;
+            if (entry.sequence > sequence) {
+                // the slot has been overwritten by a newer entry in the meantime, so all older ones are gone as well
+                break;
             }
+            result.add(entry);
         }
 
         return result;
@@ -154,11 +196,30 @@ public class APILog {
      * @param watch       watch representing the duration of the call
      */
     public void log(String function, String description, Result result, Watch watch) {
-        synchronized (entries) {
-            entries.add(0, new Entry("OBJECT " + function, description, result, watch.duration()));
-            if (entries.size() > 250) {
-                entries.remove(entries.size() - 1);
-            }
+        log(function, description, result, watch, null);
+    }
+
+    /**
+     * Creates a new log entry including the breakdown of the call into its phases.
+     *
+     * @param function    name or method of the function which was invoked
+     * @param description description of the call
+     * @param result      outcome of the call
+     * @param watch       watch representing the duration of the call
+     * @param trace       the phases of the call along with their durations, may be <b>null</b>
+     */
+    public void log(String function, String description, Result result, Watch watch, @Nullable String trace) {
+        AtomicReferenceArray<Entry> ringBuffer = getRingBuffer();
+        Entry entry = new Entry("OBJECT " + function, description, result, watch.duration());
+        entry.trace = trace;
+        entry.sequence = nextSequence.getAndIncrement();
+
+        // a writer which stalled for a whole round must not replace the newer entry of the same slot
+        int slot = (int) (entry.sequence % ringBuffer.length());
+        Entry previous = ringBuffer.get(slot);
+        while ((previous == null || previous.sequence < entry.sequence)
+               && !ringBuffer.compareAndSet(slot, previous, entry)) {
+            previous = ringBuffer.get(slot);
         }
     }
 }
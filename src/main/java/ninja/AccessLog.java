@@ -0,0 +1,381 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import io.netty.handler.codec.http.HttpMethod;
+import sirius.kernel.Stoppable;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.commons.Watch;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Priorized;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.metrics.MetricProvider;
+import sirius.kernel.health.metrics.MetricsCollector;
+import sirius.web.http.WebContext;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists all API calls in the format of the
+ * <a href="https://docs.aws.amazon.com/AmazonS3/latest/userguide/LogFormat.html">S3 server access log</a>.
+ * <p>
+ * In contrast to the {@link APILog}, which only keeps the latest calls in memory, this log is written to disk if
+ * <tt>storage.accessLog.enabled</tt> is set. Request threads only format the record and put it into a bounded queue,
+ * so that they never block on disk I/O. A background task, running in the executor <tt>access-log</tt>, writes the
+ * records in batches, flushes them once the batch size is reached or the flush interval has elapsed, and rotates the
+ * file daily or once it exceeds the maximum size. If the queue is full, records are dropped and counted instead.
+ */
+@Register(classes = {AccessLog.class, MetricProvider.class, Stoppable.class})
+public class AccessLog implements MetricProvider, Stoppable {
+
+    private static final String EXECUTOR_ACCESS_LOG = "access-log";
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+
+    @ConfigValue("storage.accessLog.enabled")
+    private boolean enabled;
+
+    @ConfigValue("storage.accessLog.directory")
+    private String directory;
+
+    @ConfigValue("storage.accessLog.queueSize")
+    private int queueSize;
+
+    @ConfigValue("storage.accessLog.batchSize")
+    private int batchSize;
+
+    @ConfigValue("storage.accessLog.flushInterval")
+    private Duration flushInterval;
+
+    @ConfigValue("storage.accessLog.maxFileSize")
+    private long maxFileSize;
+
+    @Part
+    private Tasks tasks;
+
+    private volatile BlockingQueue<String> queue;
+    private volatile boolean running;
+    private volatile CountDownLatch writerFinished;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Writer writer;
+    private LocalDate currentDate;
+    private long currentFileSize;
+
+    /**
+     * Records an API call.
+     *
+     * @param webContext the request to record
+     * @param status     the HTTP status sent in response
+     * @param errorCode  the S3 error code sent in response, or <b>null</b> if the call succeeded
+     * @param bytesSent  the number of bytes of the response body, or <b>-1</b> if there is none or it is unknown
+     * @param objectSize the total size of the object concerned, or <b>-1</b> if there is none or it is unknown
+     * @param watch      the watch started when the request was received
+     */
+    public void record(WebContext webContext,
+                       int status,
+                       @Nullable String errorCode,
+                       long bytesSent,
+                       long objectSize,
+                       Watch watch) {
+        if (!enabled) {
+            return;
+        }
+
+        String line = format(webContext, status, errorCode, bytesSent, objectSize, watch);
+        if (!getQueue().offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private String format(WebContext webContext,
+                          int status,
+                          @Nullable String errorCode,
+                          long bytesSent,
+                          long objectSize,
+                          Watch watch) {
+        String uri = S3Dispatcher.getEffectiveURI(webContext.getRequestedURI());
+        int separator = uri.indexOf('/');
+        String bucket = separator < 0 ? uri : uri.substring(0, separator);
+        String key = separator < 0 ? "" : uri.substring(separator + 1);
+        HttpMethod httpMethod = webContext.getRequest().method();
+        String method = httpMethod.name();
+        long totalMillis = watch.elapsedMillis();
+        long turnaroundMillis = totalMillis;
+        if (HttpMethod.PUT.equals(httpMethod) || HttpMethod.POST.equals(httpMethod)) {
+            // the turnaround time starts once the request has been received, so the time spent reading the payload,
+            // as traced by the phase "body", is excluded
+            turnaroundMillis -= TimeUnit.NANOSECONDS.toMillis(RequestTrace.getDuration("body"));
+        }
+
+        // bucket owner, bucket, time, remote ip, requester, request id, operation, key, request uri, status,
+        // error code, bytes sent, object size, total time, turnaround time, referer, user agent, version id
+        return Strings.join(List.of("-",
+                                    orDash(bucket),
+                                    "[" + TIMESTAMP_FORMAT.format(ZonedDateTime.now()) + "]",
+                                    webContext.getRemoteIP().getHostAddress(),
+                                    "-",
+                                    S3Dispatcher.getRequestId(webContext),
+                                    "REST." + method + "." + (Strings.isEmpty(key) ? "BUCKET" : "OBJECT"),
+                                    orDash(encodeKey(key)),
+                                    quote(method + " " + webContext.getRawRequestedURI() + " HTTP/1.1"),
+                                    String.valueOf(status),
+                                    orDash(errorCode),
+                                    bytesSent < 0 ? "-" : String.valueOf(bytesSent),
+                                    objectSize < 0 ? "-" : String.valueOf(objectSize),
+                                    String.valueOf(totalMillis),
+                                    String.valueOf(Math.max(0, turnaroundMillis)),
+                                    quote(webContext.getHeaderValue("Referer").asString("-")),
+                                    quote(webContext.getHeaderValue("User-Agent").asString("-")),
+                                    "-"), " ");
+    }
+
+    /**
+     * Encodes the key like S3 does in its access logs, so that keys containing spaces do not shift the fields.
+     *
+     * @param key the key to encode
+     * @return the URL encoded key, with slashes kept as they are
+     */
+    private static String encodeKey(String key) {
+        return StoredObject.encodeKey(key).replace("%2F", "/");
+    }
+
+    private static String orDash(@Nullable String value) {
+        return Strings.isEmpty(value) ? "-" : value;
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\"", "\\\"") + "\"";
+    }
+
+    private BlockingQueue<String> getQueue() {
+        if (queue == null) {
+            synchronized (dropped) {
+                if (queue == null) {
+                    running = true;
+                    writerFinished = new CountDownLatch(1);
+                    queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+                    tasks.executor(EXECUTOR_ACCESS_LOG).fork(this::writeRecords);
+                }
+            }
+        }
+
+        return queue;
+    }
+
+    private void writeRecords() {
+        try {
+            writeRecordsUntilStopped();
+        } finally {
+            writerFinished.countDown();
+        }
+    }
+
+    private void writeRecordsUntilStopped() {
+        List<String> batch = new ArrayList<>(batchSize);
+        long nextFlush = System.nanoTime() + flushInterval.toNanos();
+        while (running || !queue.isEmpty()) {
+            try {
+                String line = queue.poll(Math.max(0, nextFlush - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (line != null) {
+                    batch.add(line);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+                if (batch.size() >= batchSize || System.nanoTime() >= nextFlush || !running) {
+                    writeBatch(batch);
+                    nextFlush = System.nanoTime() + flushInterval.toNanos();
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (Exception exception) {
+                Exceptions.handle(Storage.LOG, exception);
+                dropped.addAndGet(batch.size());
+                batch.clear();
+            }
+        }
+
+        writeBatch(batch);
+        closeWriter();
+    }
+
+    private void writeBatch(List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (String line : batch) {
+                Writer output = getWriter();
+                output.write(line);
+                output.write('\n');
+                currentFileSize += line.length() + 1L;
+            }
+            writer.flush();
+            written.addAndGet(batch.size());
+        } catch (IOException | RuntimeException exception) {
+            Exceptions.handle()
+                      .to(Storage.LOG)
+                      .error(exception)
+                      .withSystemErrorMessage("Failed to write %s access log records: %s (%s)", batch.size())
+                      .handle();
+            dropped.addAndGet(batch.size());
+            closeWriter();
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private Writer getWriter() throws IOException {
+        LocalDate today = LocalDate.now();
+        if (writer != null && (!today.equals(currentDate) || currentFileSize >= maxFileSize)) {
+            closeWriter();
+        }
+        if (writer == null) {
+            currentDate = today;
+            File file = nextFile(today);
+            currentFileSize = file.length();
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                                                               StandardCharsets.UTF_8));
+        }
+
+        return writer;
+    }
+
+    private File nextFile(LocalDate date) throws IOException {
+        File logDirectory = new File(directory);
+        if (!logDirectory.exists() && !logDirectory.mkdirs()) {
+            throw new IOException("Cannot create the access log directory " + logDirectory.getAbsolutePath());
+        }
+
+        // continue the file of the day unless it is full, otherwise move on to the next one
+        int index = 0;
+        File file = new File(logDirectory, "access-" + date + ".log");
+        while (file.length() >= maxFileSize) {
+            index++;
+            file = new File(logDirectory, "access-" + date + "." + index + ".log");
+        }
+
+        return file;
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.close();
+        } catch (IOException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+        }
+        writer = null;
+    }
+
+    /**
+     * Returns the number of records written to disk.
+     *
+     * @return the number of records written since startup
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of records which have been dropped as the queue was full or writing failed.
+     *
+     * @return the number of dropped records since startup
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of records waiting to be written.
+     *
+     * @return the number of queued records
+     */
+    public int getQueued() {
+        BlockingQueue<String> currentQueue = queue;
+        return currentQueue == null ? 0 : currentQueue.size();
+    }
+
+    /**
+     * Determines if the access log is enabled.
+     *
+     * @return <b>true</b> if API calls are written to disk, <b>false</b> otherwise
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void gather(MetricsCollector collector) {
+        if (!enabled) {
+            return;
+        }
+
+        collector.differentialMetric("s3_access_log_dropped",
+                                     "s3-access-log-dropped",
+                                     "S3 Access Log Dropped Records",
+                                     getDropped(),
+                                     "/min");
+        collector.metric("s3_access_log_queued",
+                         "s3-access-log-queued",
+                         "S3 Access Log Queued Records",
+                         getQueued(),
+                         null);
+    }
+
+    @Override
+    public int getPriority() {
+        return Priorized.DEFAULT_PRIORITY;
+    }
+
+    @Override
+    public void stopped() {
+        CountDownLatch finished = writerFinished;
+        if (finished == null) {
+            return;
+        }
+
+        // let the writer drain the queue and close the file
+        running = false;
+        try {
+            finished.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
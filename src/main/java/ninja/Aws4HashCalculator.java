@@ -8,9 +8,10 @@
 
 package ninja;
 
-import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import sirius.kernel.cache.Cache;
+import sirius.kernel.cache.CacheManager;
 import sirius.kernel.commons.Monoflop;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Tuple;
@@ -21,8 +22,9 @@ import sirius.web.http.WebContext;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
 import java.util.Comparator;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -42,6 +44,28 @@ public class Aws4HashCalculator {
     protected static final Pattern X_AMZ_CREDENTIAL_PATTERN =
             Pattern.compile("([^/]+)/([^/]+)/([^/]+)/([^/]+)/([^,]+)");
 
+    /**
+     * Caches the signing keys derived from the secret key per credential scope (date, region, service and service
+     * type). The secret key itself is fixed by the configuration, so that the scope suffices as cache key.
+     */
+    private static final Cache<String, byte[]> signingKeys = CacheManager.createLocalCache("aws4-signing-keys");
+
+    private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     @Part
     private Storage storage;
 
@@ -66,6 +90,31 @@ public class Aws4HashCalculator {
      * @throws Exception when hashing fails
      */
     public String computeHash(WebContext webContext, String pathPrefix) throws Exception {
+        Matcher matcher = matchCredential(webContext);
+        return BaseEncoding.base16().lowerCase().encode(computeSignature(webContext, matcher));
+    }
+
+    /**
+     * Creates a verifier for the chunk signatures of an <tt>aws-chunked</tt> upload.
+     * <p>
+     * The chain of chunk signatures is seeded with the signature computed for the request itself.
+     *
+     * @param webContext the request which transmits signed chunks
+     * @return a verifier for the chunks of the request
+     * @throws Exception when hashing fails
+     */
+    ChunkSignatureVerifier createChunkSignatureVerifier(WebContext webContext) throws Exception {
+        Matcher matcher = matchCredential(webContext);
+        String seedSignature = BaseEncoding.base16().lowerCase().encode(computeSignature(webContext, matcher));
+        String scope = matcher.group(2) + "/" + matcher.group(3) + "/" + matcher.group(4) + "/" + matcher.group(5);
+
+        return new ChunkSignatureVerifier(fetchSigningKey(matcher),
+                                          getAmazonDate(webContext),
+                                          scope,
+                                          seedSignature);
+    }
+
+    private Matcher matchCredential(WebContext webContext) {
         Matcher matcher = AWS_AUTH4_PATTERN.matcher(webContext.getHeaderValue("Authorization").asString(""));
 
         if (!matcher.matches()) {
@@ -76,7 +125,10 @@ public class Aws4HashCalculator {
             }
         }
 
-        String date = matcher.group(2);
+        return matcher;
+    }
+
+    private byte[] computeSignature(WebContext webContext, Matcher matcher) {
         String region = matcher.group(3);
         String service = matcher.group(4);
         String serviceType = matcher.group(5);
@@ -86,14 +138,25 @@ public class Aws4HashCalculator {
         String signedHeaders =
                 matcher.groupCount() == 7 ? matcher.group(6) : webContext.get("X-Amz-SignedHeaders").asString();
 
+        return hmacSHA256(fetchSigningKey(matcher),
+                          buildStringToSign(webContext, signedHeaders, region, service, serviceType));
+    }
+
+    private byte[] fetchSigningKey(Matcher matcher) {
+        String date = matcher.group(2);
+        String region = matcher.group(3);
+        String service = matcher.group(4);
+        String serviceType = matcher.group(5);
+
+        return signingKeys.get(date + "/" + region + "/" + service + "/" + serviceType,
+                               ignored -> deriveSigningKey(date, region, service, serviceType));
+    }
+
+    private byte[] deriveSigningKey(String date, String region, String service, String serviceType) {
         byte[] dateKey = hmacSHA256(("AWS4" + storage.getAwsSecretKey()).getBytes(StandardCharsets.UTF_8), date);
         byte[] dateRegionKey = hmacSHA256(dateKey, region);
         byte[] dateRegionServiceKey = hmacSHA256(dateRegionKey, service);
-        byte[] signingKey = hmacSHA256(dateRegionServiceKey, serviceType);
-
-        byte[] signedData =
-                hmacSHA256(signingKey, buildStringToSign(webContext, signedHeaders, region, service, serviceType));
-        return BaseEncoding.base16().lowerCase().encode(signedData);
+        return hmacSHA256(dateRegionServiceKey, serviceType);
     }
 
     private String buildStringToSign(final WebContext webContext,
@@ -102,8 +165,7 @@ public class Aws4HashCalculator {
                                      String service,
                                      String serviceType) {
         final StringBuilder canonicalRequest = buildCanonicalRequest(webContext, signedHeaders);
-        final String amazonDateHeader =
-                webContext.getHeaderValue("x-amz-date").asString(webContext.get("X-Amz-Date").asString());
+        final String amazonDateHeader = getAmazonDate(webContext);
         return "AWS4-HMAC-SHA256\n"
                + amazonDateHeader
                + "\n"
@@ -118,6 +180,10 @@ public class Aws4HashCalculator {
                + hashedCanonicalRequest(canonicalRequest);
     }
 
+    private String getAmazonDate(WebContext webContext) {
+        return webContext.getHeaderValue("x-amz-date").asString(webContext.get("X-Amz-Date").asString());
+    }
+
     private StringBuilder buildCanonicalRequest(final WebContext webContext, final String signedHeaders) {
         StringBuilder canonicalRequest = new StringBuilder(webContext.getRequest().method().name());
         canonicalRequest.append("\n");
@@ -179,13 +245,18 @@ public class Aws4HashCalculator {
     }
 
     private String hashedCanonicalRequest(final StringBuilder canonicalRequest) {
-        return Hashing.sha256().hashString(canonicalRequest, StandardCharsets.UTF_8).toString();
+        MessageDigest digest = SHA256.get();
+        byte[] hash = digest.digest(canonicalRequest.toString().getBytes(StandardCharsets.UTF_8));
+        return BaseEncoding.base16().lowerCase().encode(hash);
     }
 
-    private byte[] hmacSHA256(byte[] key, String value) throws NoSuchAlgorithmException, InvalidKeyException {
-        SecretKeySpec keySpec = new SecretKeySpec(key, "HmacSHA256");
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(keySpec);
+    private byte[] hmacSHA256(byte[] key, String value) {
+        Mac mac = HMAC_SHA256.get();
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException(e);
+        }
         return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
     }
 }
@@ -8,12 +8,30 @@ import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import ninja.events.UpstreamEvent;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.di.std.ConfigValue;
 import sirius.kernel.di.std.Register;
+import sirius.web.http.MimeHelper;
+import sirius.web.http.Response;
+import sirius.web.http.WebContext;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Stream;
 
 /**
@@ -33,6 +51,26 @@ import java.util.stream.Stream;
 public class AwsUpstream {
     private static final String FALLBACK_REGION = "EU";
     private static final int SOCKET_TIMEOUT = 60 * 1000 * 5;
+    private static final String HEADER_PREFIX_USER_METADATA = "x-amz-meta-";
+    private static final String HTTP_HEADER_NAME_ETAG = "ETag";
+    private static final String PARAM_PART_NUMBER = "partNumber";
+
+    /**
+     * Contains the headers of upstream responses which concern the connection to or the request id of the upstream
+     * instance and are therefore not passed on.
+     */
+    private static final Set<String> TUNNEL_SKIPPED_HEADERS = Set.of("connection",
+                                                                     "keep-alive",
+                                                                     "transfer-encoding",
+                                                                     "date",
+                                                                     "server",
+                                                                     "x-amz-request-id",
+                                                                     "x-amz-id-2");
+
+    private static final HttpClient TUNNEL_CLIENT = HttpClient.newBuilder()
+                                                              .version(HttpClient.Version.HTTP_1_1)
+                                                              .connectTimeout(Duration.ofMillis(SOCKET_TIMEOUT))
+                                                              .build();
     /**
      * The secret key to connect to the upstream S3 instance.
      * When this value is not set, the proxy functionality is not enabled.
@@ -93,6 +131,36 @@ public class AwsUpstream {
         return client;
     }
 
+    /**
+     * Determines the properties of a local copy of an upstream object.
+     *
+     * @param key      the key of the object
+     * @param metadata the metadata of the upstream object
+     * @return the content type, ETag and user metadata of the upstream object as properties of a {@link StoredObject}
+     */
+    public Map<String, String> toObjectProperties(String key,
+                                                  com.amazonaws.services.s3.model.ObjectMetadata metadata) {
+        Map<String, String> properties = new TreeMap<>();
+        metadata.getUserMetadata().forEach((name, value) -> properties.put(HEADER_PREFIX_USER_METADATA + name, value));
+        properties.put(HttpHeaderNames.CONTENT_TYPE.toString(),
+                       Strings.isFilled(metadata.getContentType()) ?
+                       metadata.getContentType() :
+                       MimeHelper.guessMimeType(key));
+        properties.put(HTTP_HEADER_NAME_ETAG, normalizeETag(metadata.getETag()));
+        return properties;
+    }
+
+    /**
+     * Converts an ETag reported by the upstream instance to the form stored locally.
+     *
+     * @param etag the ETag as reported by the upstream instance, possibly quoted
+     * @return the unquoted ETag in lower case
+     */
+    @Nullable
+    public static String normalizeETag(@Nullable String etag) {
+        return etag == null ? null : etag.replace("\"", "").toLowerCase();
+    }
+
     /**
      * @return client instance to upstream instance
      * @throws IllegalStateException if called when not configured
@@ -124,20 +192,103 @@ public class AwsUpstream {
      * @param bucket      from which an object is fetched
      * @param object      which should be fetched
      * @param requestFile signalized if the content is needed or not
+     * @param partNumber  the number of the part to fetch, or 0 to fetch the whole object
      * @return an url which can be used to perform the matching request.
      * @throws IllegalStateException if called when not configured
      */
-    public URL generateGetObjectURL(Bucket bucket, StoredObject object, boolean requestFile) {
+    public URL generateGetObjectURL(Bucket bucket, StoredObject object, boolean requestFile, int partNumber) {
         GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket.getName(), object.getKey());
         if (requestFile) {
             request.setMethod(HttpMethod.GET);
         } else {
             request.setMethod(HttpMethod.HEAD);
         }
+        if (partNumber > 0) {
+            request.addRequestParameter(PARAM_PART_NUMBER, String.valueOf(partNumber));
+        }
 
         return fetchClient().generatePresignedUrl(request);
     }
 
+    /**
+     * Tunnels a request for an object which is not found locally to the upstream instance.
+     * <p>
+     * The status, the headers and the body of the upstream response are passed on to the client. A requested range or
+     * part is requested from the upstream instance as well. The transfer is performed by the calling thread, so that
+     * the recorded {@link UpstreamEvent} covers it as a whole and reports the upstream status and the number of bytes
+     * sent.
+     *
+     * @param webContext  the request to answer with the response of the upstream instance
+     * @param bucket      from which an object is fetched
+     * @param object      which should be fetched
+     * @param requestFile signalized if the content is needed or not
+     * @throws IOException           in case of an IO error while transferring the object
+     * @throws IllegalStateException if called when not configured
+     */
+    public void tunnelGetObject(WebContext webContext, Bucket bucket, StoredObject object, boolean requestFile)
+            throws IOException {
+        UpstreamEvent event = new UpstreamEvent();
+        event.begin();
+
+        URL fetchURL = generateGetObjectURL(bucket,
+                                            object,
+                                            requestFile,
+                                            webContext.get(PARAM_PART_NUMBER).asInt(0));
+        String range = webContext.getHeaderValue(HttpHeaderNames.RANGE).asString();
+        HttpRequest.Builder request;
+        try {
+            request = HttpRequest.newBuilder(fetchURL.toURI())
+                                 .method(requestFile ? "GET" : "HEAD", HttpRequest.BodyPublishers.noBody())
+                                 .timeout(Duration.ofMillis(SOCKET_TIMEOUT));
+        } catch (URISyntaxException exception) {
+            throw new IOException(exception);
+        }
+        if (Strings.isFilled(range)) {
+            request.header(HttpHeaderNames.RANGE.toString(), range);
+        }
+
+        HttpResponse<InputStream> upstreamResponse;
+        try {
+            upstreamResponse = TUNNEL_CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException(exception);
+        }
+
+        HttpResponseStatus status = HttpResponseStatus.valueOf(upstreamResponse.statusCode());
+        Response response = S3Dispatcher.respondWith(webContext);
+        upstreamResponse.headers().map().forEach((name, values) -> {
+            if (!TUNNEL_SKIPPED_HEADERS.contains(name.toLowerCase())) {
+                values.forEach(value -> response.addHeader(name, value));
+            }
+        });
+
+        long bytes = 0;
+        try (InputStream in = upstreamResponse.body()) {
+            if (requestFile) {
+                String contentType = upstreamResponse.headers()
+                                                     .firstValue(HttpHeaderNames.CONTENT_TYPE.toString())
+                                                     .orElse(null);
+                try (OutputStream out = response.outputStream(status, contentType)) {
+                    bytes = in.transferTo(out);
+                }
+            } else {
+                response.status(status);
+            }
+        } finally {
+            RequestTrace.bytes(bytes);
+            if (event.shouldCommit()) {
+                event.bucket = bucket.getName();
+                event.keyLength = object.getKey().length();
+                event.method = requestFile ? "GET" : "HEAD";
+                event.ranged = Strings.isFilled(range);
+                event.status = status.code();
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
     public void setS3SecretKey(String s3SecretKey) {
         this.s3SecretKey = s3SecretKey;
     }
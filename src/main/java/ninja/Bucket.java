@@ -8,10 +8,11 @@
 
 package ninja;
 
-import sirius.kernel.cache.Cache;
-import sirius.kernel.cache.CacheManager;
+import ninja.errors.S3ErrorCode;
+import ninja.events.ListingEvent;
 import sirius.kernel.commons.Limit;
 import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.Part;
 import sirius.kernel.health.Exceptions;
 import sirius.kernel.xml.Attribute;
 import sirius.kernel.xml.XMLStructuredOutput;
@@ -22,15 +23,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 /**
  * Represents a bucket.
@@ -57,6 +59,9 @@ public class Bucket {
 
     private static final int MOST_RECENT_VERSION = BucketMigrator.MOST_RECENT_VERSION;
 
+    @Part
+    private static UpstreamListings upstreamListings;
+
     private int version;
 
     private final File folder;
@@ -65,11 +70,19 @@ public class Bucket {
 
     private final File publicMarker;
 
-    private static final Cache<String, Boolean> publicAccessCache =
-            CacheManager.createLocalCache("public-bucket-access");
+    private volatile boolean exists;
+
+    private volatile boolean publicAccess;
+
+    private volatile ObjectIndex index;
+
+    private volatile Tombstones tombstones;
 
     /**
      * Creates a new bucket based on the given directory.
+     * <p>
+     * Note that buckets are kept in a registry by {@link Storage#getBucket(String)}, so that the state of a bucket is
+     * only loaded from disk once.
      *
      * @param folder the directory which stores the contents of the bucket.
      */
@@ -79,12 +92,27 @@ public class Bucket {
         // set the public marker file
         this.publicMarker = new File(folder, "$public");
 
-        // as last step, check the version, and migrate the bucket if necessary
         this.versionMarker = new File(folder, "$version");
+        load();
+    }
+
+    /**
+     * Loads the state of the bucket from disk.
+     * <p>
+     * This is done once when the bucket is created and whenever a bucket which did not exist is accessed again, so
+     * that buckets created outside the server are picked up.
+     */
+    protected synchronized void load() {
+        this.exists = folder.exists();
+
+        // check the version, and migrate the bucket if necessary
         this.version = parseVersion();
         if (this.version < MOST_RECENT_VERSION) {
             BucketMigrator.migrateBucket(this);
         }
+
+        // as last step, check the public marker, which might have been moved by the migration
+        this.publicAccess = publicMarker.exists();
     }
 
     /**
@@ -128,7 +156,7 @@ public class Bucket {
      * @return <b>true</b> if the bucket exists, <b>false</b> else
      */
     public boolean exists() {
-        return folder.exists();
+        return exists;
     }
 
     /**
@@ -138,8 +166,9 @@ public class Bucket {
      *
      * @return <b>true</b> if the folder for the bucket was created successfully or existed before, <b>false</b> else
      */
-    public boolean create() {
+    public synchronized boolean create() {
         if (folder.exists()) {
+            exists = true;
             return true;
         }
 
@@ -148,6 +177,9 @@ public class Bucket {
         }
 
         // having successfully created the folder, write the version marker
+        exists = true;
+        version = MOST_RECENT_VERSION;
+        publicAccess = false;
         writeVersion();
         return folder.isDirectory();
     }
@@ -157,13 +189,18 @@ public class Bucket {
      *
      * @return <b>true</b> if all files of the bucket and the bucket itself were deleted successfully, <b>false</b> else
      */
-    public boolean delete() {
+    public synchronized boolean delete() {
         if (!folder.exists()) {
+            exists = false;
             return true;
         }
 
         try {
             sirius.kernel.commons.Files.delete(folder.toPath());
+            exists = false;
+            publicAccess = false;
+            index = null;
+            tombstones = null;
             return true;
         } catch (IOException exception) {
             Exceptions.handle(Storage.LOG, exception);
@@ -179,12 +216,15 @@ public class Bucket {
      * @param limit  controls the maximum number of objects returned
      * @param marker the key to start with when listing objects in a bucket
      * @param prefix limits the response to keys that begin with the specified prefix
+     * @return the number of objects which have been listed
      */
-    public void outputObjectsV1(XMLStructuredOutput output,
+    public int outputObjectsV1(XMLStructuredOutput output,
                                 int limit,
                                 @Nullable String marker,
                                 @Nullable String prefix) {
-        ListFileTreeVisitor visitor = new ListFileTreeVisitor(output, limit, marker, prefix);
+        ListingEvent event = new ListingEvent();
+        event.begin();
+        ListFileTreeVisitor visitor = new ListFileTreeVisitor(output, limit);
 
         output.beginOutput("ListBucketResult", Attribute.set("xmlns", "http://s3.amazonaws.com/doc/2006-03-01/"));
         output.property("Name", getName());
@@ -192,12 +232,16 @@ public class Bucket {
         output.property("Marker", marker);
         output.property("Prefix", prefix);
         try {
-            walkFileTreeOurWay(folder.toPath(), visitor);
+            walkFileTreeOurWay(marker, prefix, visitor);
         } catch (IOException exception) {
+            commitListingEvent(event, limit, prefix, visitor, S3ErrorCode.InternalError.name());
             throw Exceptions.handle(Storage.LOG, exception);
         }
-        output.property("IsTruncated", limit > 0 && visitor.getCount() > limit);
+        output.property("IsTruncated", visitor.isTruncated());
         output.endOutput();
+
+        commitListingEvent(event, limit, prefix, visitor, "OK");
+        return Math.toIntExact(visitor.getCount());
     }
 
     /**
@@ -208,12 +252,15 @@ public class Bucket {
      * @param limit  controls the maximum number of objects returned
      * @param marker the key to start with when listing objects in a bucket
      * @param prefix limits the response to keys that begin with the specified prefix
+     * @return the number of objects which have been listed
      */
-    public void outputObjectsV2(XMLStructuredOutput output,
+    public int outputObjectsV2(XMLStructuredOutput output,
                                 int limit,
                                 @Nullable String marker,
                                 @Nullable String prefix) {
-        ListFileTreeVisitor visitor = new ListFileTreeVisitor(output, limit, marker, prefix);
+        ListingEvent event = new ListingEvent();
+        event.begin();
+        ListFileTreeVisitor visitor = new ListFileTreeVisitor(output, limit);
 
         output.beginOutput("ListBucketResult", Attribute.set("xmlns", "http://s3.amazonaws.com/doc/2006-03-01/"));
         output.property("Name", getName());
@@ -221,55 +268,198 @@ public class Bucket {
         output.property("StartAfter", marker);
         output.property("Prefix", prefix);
         try {
-            walkFileTreeOurWay(folder.toPath(), visitor);
+            walkFileTreeOurWay(marker, prefix, visitor);
         } catch (IOException exception) {
+            commitListingEvent(event, limit, prefix, visitor, S3ErrorCode.InternalError.name());
             throw Exceptions.handle(Storage.LOG, exception);
         }
-        output.property("IsTruncated", limit > 0 && visitor.getCount() > limit);
+        output.property("IsTruncated", visitor.isTruncated());
         output.property("KeyCount", visitor.getCount());
         output.endOutput();
+
+        commitListingEvent(event, limit, prefix, visitor, "OK");
+        return Math.toIntExact(visitor.getCount());
+    }
+
+    private void commitListingEvent(ListingEvent event,
+                                    int limit,
+                                    @Nullable String prefix,
+                                    ListFileTreeVisitor visitor,
+                                    String outcome) {
+        if (event.shouldCommit()) {
+            event.bucket = getName();
+            event.prefixLength = prefix == null ? 0 : prefix.length();
+            event.limit = limit;
+            event.objects = Math.toIntExact(visitor.getCount());
+            event.truncated = visitor.isTruncated();
+            event.outcome = outcome;
+            event.commit();
+        }
     }
 
     /**
-     * Very simplified stand-in for {@link Files#walkFileTree(Path, FileVisitor)} where we control the traversal order.
+     * Very simplified stand-in for {@link Files#walkFileTree(Path, FileVisitor)} which visits the objects in UTF-8
+     * binary order of their keys, as provided by the {@link ObjectIndex}.
+     * <p>
+     * If an upstream instance is configured, its listing is merged in, as all of its objects can be fetched via this
+     * bucket. Local objects take precedence over upstream objects with the same key, and upstream objects which have
+     * been deleted locally are skipped.
      *
-     * @param path    the start path.
+     * @param marker  the key after which to start, may be <b>null</b>
+     * @param prefix  the prefix all visited keys must start with, may be <b>null</b>
      * @param visitor the visitor processing the files.
      * @throws IOException forwarded from nested I/O operations.
      */
-    private void walkFileTreeOurWay(Path path, FileVisitor<? super Path> visitor) throws IOException {
-        if (!path.toFile().isDirectory()) {
+    private void walkFileTreeOurWay(@Nullable String marker,
+                                    @Nullable String prefix,
+                                    ListFileTreeVisitor visitor) throws IOException {
+        if (!folder.isDirectory()) {
             throw new IOException("Directory expected.");
         }
 
-        try (Stream<Path> children = Files.list(path)) {
-            children.filter(childPath -> filterObjects(childPath.toFile()))
-                    .sorted(Bucket::compareUtf8Binary)
-                    .forEach(childPath -> {
-                        try {
-                            visitor.visitFile(childPath, Files.readAttributes(childPath, BasicFileAttributes.class));
-                        } catch (IOException exception) {
-                            throw Exceptions.handle(Storage.LOG, exception);
-                        }
-                    });
+        Iterator<String> localKeys = getIndex().stream(marker, prefix).iterator();
+        Iterator<UpstreamListings.ListedObject> upstreamObjects = upstreamListings.isEnabled() ?
+                                                                  upstreamListings.list(this, marker, prefix) :
+                                                                  Collections.emptyIterator();
+
+        String localKey = localKeys.hasNext() ? localKeys.next() : null;
+        UpstreamListings.ListedObject upstreamObject = nextVisibleObject(upstreamObjects);
+        while (localKey != null || upstreamObject != null) {
+            int comparison = compareKeys(localKey, upstreamObject);
+            FileVisitResult result = comparison <= 0 ?
+                                     visitLocalObject(localKey, visitor) :
+                                     visitor.visitObject(upstreamObject.getKey(),
+                                                         upstreamObject.getLastModified(),
+                                                         upstreamObject.getSize(),
+                                                         upstreamObject::getETag);
+            if (result == FileVisitResult.TERMINATE) {
+                return;
+            }
+
+            // on equal keys, both are advanced, as the local object shadows the upstream one
+            if (comparison <= 0) {
+                localKey = localKeys.hasNext() ? localKeys.next() : null;
+            }
+            if (comparison >= 0) {
+                upstreamObject = nextVisibleObject(upstreamObjects);
+            }
+        }
+    }
+
+    private int compareKeys(@Nullable String localKey, @Nullable UpstreamListings.ListedObject upstreamObject) {
+        if (localKey == null) {
+            return 1;
+        }
+        if (upstreamObject == null) {
+            return -1;
+        }
+        return ObjectIndex.compareUtf8Binary(localKey, upstreamObject.getKey());
+    }
+
+    @Nullable
+    private UpstreamListings.ListedObject nextVisibleObject(Iterator<UpstreamListings.ListedObject> upstreamObjects) {
+        while (upstreamObjects.hasNext()) {
+            UpstreamListings.ListedObject upstreamObject = upstreamObjects.next();
+            if (!hasTombstone(upstreamObject.getKey())) {
+                return upstreamObject;
+            }
         }
+        return null;
     }
 
-    private static int compareUtf8Binary(Path path1, Path path2) {
-        String string1 = StoredObject.decodeKey(path1.getFileName().toString());
-        String string2 = StoredObject.decodeKey(path2.getFileName().toString());
+    private FileVisitResult visitLocalObject(String key, ListFileTreeVisitor visitor) throws IOException {
+        Path path = new File(folder, StoredObject.encodeKey(key)).toPath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException exception) {
+            // the object is being deleted concurrently, which also removes it from the index - dropping the key
+            // here could remove an entry which a concurrent upload has just added, so the object is merely skipped
+            Exceptions.ignore(exception);
+            return FileVisitResult.CONTINUE;
+        }
 
-        byte[] bytes1 = string1.getBytes(StandardCharsets.UTF_8);
-        byte[] bytes2 = string2.getBytes(StandardCharsets.UTF_8);
+        return visitor.visitFile(path, attributes);
+    }
+
+    private ObjectIndex getIndex() {
+        ObjectIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                if (index == null) {
+                    index = new ObjectIndex(this);
+                }
+                result = index;
+            }
+        }
+        return result;
+    }
 
-        // unless we upgrade to java 9+ offering Arrays.compare(...), we need to compare the arrays manually :(
-        int length = Math.min(bytes1.length, bytes2.length);
-        for (int index = 0; index < length; ++index) {
-            if (bytes1[index] != bytes2[index]) {
-                return Byte.compare(bytes1[index], bytes2[index]);
+    private Tombstones getTombstones() {
+        Tombstones result = tombstones;
+        if (result == null) {
+            synchronized (this) {
+                if (tombstones == null) {
+                    tombstones = new Tombstones(this);
+                }
+                result = tombstones;
             }
         }
-        return bytes1.length - bytes2.length;
+        return result;
+    }
+
+    /**
+     * Adds the object with the given key to the listings of this bucket.
+     * <p>
+     * This has to be invoked whenever an object has been stored in this bucket. A tombstone left by a previous delete
+     * of the object is removed.
+     *
+     * @param key the key of the object which has been stored
+     */
+    public void indexObject(String key) {
+        getIndex().add(key);
+        removeTombstone(key);
+    }
+
+    /**
+     * Removes the object with the given key from the listings of this bucket.
+     * <p>
+     * This has to be invoked whenever an object has been deleted from this bucket.
+     *
+     * @param key the key of the object which has been deleted
+     */
+    public void unindexObject(String key) {
+        getIndex().remove(key);
+    }
+
+    /**
+     * Determines if the object with the given key has been deleted locally, so that it must not be fetched from the
+     * upstream instance.
+     *
+     * @param key the key of the object to check
+     * @return <b>true</b> if a tombstone exists for the object, <b>false</b> otherwise
+     */
+    public boolean hasTombstone(String key) {
+        return getTombstones().contains(key);
+    }
+
+    /**
+     * Records that the object with the given key has been deleted locally, so that it is no longer fetched from the
+     * upstream instance.
+     *
+     * @param key the key of the deleted object
+     */
+    public void addTombstone(String key) {
+        getTombstones().add(key);
+    }
+
+    /**
+     * Removes the tombstone of the object with the given key, if there is one.
+     *
+     * @param key the key of the object
+     */
+    public void removeTombstone(String key) {
+        getTombstones().remove(key);
     }
 
     /**
@@ -278,7 +468,7 @@ public class Bucket {
      * @return <b>true</b> if the bucket is only privately accessible, <b>false</b> else
      */
     public boolean isPrivate() {
-        return !Boolean.TRUE.equals(publicAccessCache.get(getName(), key -> publicMarker.exists()));
+        return !publicAccess;
     }
 
     /**
@@ -289,10 +479,10 @@ public class Bucket {
     public boolean makePrivate() {
         if (publicMarker.exists()) {
             sirius.kernel.commons.Files.delete(publicMarker);
-            publicAccessCache.put(getName(), false);
         }
+        publicAccess = publicMarker.exists();
 
-        return !publicMarker.exists();
+        return !publicAccess;
     }
 
     /**
@@ -309,9 +499,9 @@ public class Bucket {
                 return false;
             }
         }
-        publicAccessCache.put(getName(), true);
+        publicAccess = publicMarker.exists();
 
-        return publicMarker.exists();
+        return publicAccess;
     }
 
     /**
@@ -347,17 +537,11 @@ public class Bucket {
      * @return all files meeting the query, restricted by the limit
      */
     public List<StoredObject> getObjects(@Nullable String query, Limit limit) {
-        try (Stream<Path> stream = Files.list(folder.toPath())) {
-            return stream.filter(path -> filterObjects(path.toFile()))
-                         .sorted(Bucket::compareUtf8Binary)
-                         .map(Path::toFile)
-                         .filter(currentFile -> isMatchingObject(query, currentFile))
+        return getIndex().stream(null, null)
+                         .filter(key -> isMatchingObject(query, key))
                          .filter(limit.asPredicate())
-                         .map(StoredObject::new)
+                         .map(key -> new StoredObject(folder, key))
                          .toList();
-        } catch (IOException exception) {
-            throw Exceptions.handle(Storage.LOG, exception);
-        }
     }
 
     /**
@@ -367,21 +551,15 @@ public class Bucket {
      * @return the number of files in the bucket matching the query
      */
     public int countObjects(@Nullable String query) {
-        try (Stream<Path> stream = Files.list(folder.toPath())) {
-            return Math.toIntExact(stream.map(Path::toFile)
-                                         .filter(currentFile -> isMatchingObject(query, currentFile))
-                                         .count());
-        } catch (IOException exception) {
-            throw Exceptions.handle(Storage.LOG, exception);
+        if (Strings.isEmpty(query)) {
+            return getIndex().size();
         }
-    }
 
-    private boolean isMatchingObject(@Nullable String query, File currentFile) {
-        if (!currentFile.isFile() || currentFile.getName().startsWith("$")) {
-            return false;
-        }
+        return Math.toIntExact(getIndex().stream(null, null).filter(key -> isMatchingObject(query, key)).count());
+    }
 
-        return Strings.isEmpty(query) || StoredObject.decodeKey(currentFile.getName()).contains(query);
+    private boolean isMatchingObject(@Nullable String query, String key) {
+        return Strings.isEmpty(query) || key.contains(query);
     }
 
     protected int getVersion() {
@@ -450,8 +628,9 @@ public class Bucket {
             return false;
         }
 
-        // ignore properties files
-        return !(file.getName().startsWith("$") && file.getName().endsWith(".properties"));
+        // ignore properties files and other internal files, such as pending uploads (as "$" is always encoded in keys,
+        // such names never clash with actual objects)
+        return !file.getName().startsWith("$");
     }
 
     /**
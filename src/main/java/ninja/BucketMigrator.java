@@ -11,16 +11,20 @@ package ninja;
 import sirius.kernel.health.Exceptions;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.Objects;
+import java.util.Properties;
 
 /**
  * Provides static helpers for migrating bucket data.
  */
 public class BucketMigrator {
 
-    protected static final int MOST_RECENT_VERSION = 2;
+    protected static final int MOST_RECENT_VERSION = 3;
+
+    private static final String LEGACY_DELETED_MARKER = "DeletedMarker";
 
     private BucketMigrator() {
     }
@@ -34,6 +38,9 @@ public class BucketMigrator {
         if (bucket.getVersion() <= 1) {
             migrateBucketVersion1To2(bucket);
         }
+        if (bucket.getVersion() <= 2) {
+            migrateBucketVersion2To3(bucket);
+        }
 
         // further incremental updates go here one day
 
@@ -55,6 +62,50 @@ public class BucketMigrator {
         }
     }
 
+    /**
+     * Migrates a bucket folder from version 2 to 3.
+     * <p>
+     * Objects deleted locally used to be kept as properties file containing a <tt>DeletedMarker</tt>. These are
+     * replaced by entries in the tombstones of the bucket.
+     *
+     * @param bucket the bucket to migrate
+     */
+    private static void migrateBucketVersion2To3(Bucket bucket) {
+        File[] propertiesFiles = bucket.getFolder()
+                                       .listFiles(file -> file.getName().startsWith("$")
+                                                          && file.getName().endsWith(".properties"));
+        for (File propertiesFile : Objects.requireNonNull(propertiesFiles)) {
+            migrateDeletedMarkerVersion2To3(bucket, propertiesFile);
+        }
+    }
+
+    /**
+     * Migrates a legacy properties file marking an object as deleted to a tombstone.
+     *
+     * @param bucket         the bucket to migrate
+     * @param propertiesFile the properties file to check
+     */
+    private static void migrateDeletedMarkerVersion2To3(Bucket bucket, File propertiesFile) {
+        String encodedKey = propertiesFile.getName().substring(1, propertiesFile.getName().length() - 11);
+        Properties properties = new Properties();
+        try (FileInputStream in = new FileInputStream(propertiesFile)) {
+            properties.load(in);
+            if (!properties.containsKey(LEGACY_DELETED_MARKER)
+                || new File(bucket.getFolder(), encodedKey).exists()) {
+                return;
+            }
+        } catch (IOException e) {
+            throw Exceptions.handle(Storage.LOG, e);
+        }
+
+        try {
+            bucket.addTombstone(StoredObject.decodeKey(encodedKey));
+            Files.delete(propertiesFile.toPath());
+        } catch (IOException e) {
+            throw Exceptions.handle(Storage.LOG, e);
+        }
+    }
+
     /**
      * Migrates the legacy public marker file <tt>__ninja_public</tt> to <tt>$public</tt>.
      *
@@ -0,0 +1,154 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.commons.Strings;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Represents a range of bytes within an object, as requested via a <tt>Range</tt> header or a <tt>partNumber</tt>.
+ */
+class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * Limits the number of distinct ranges served for a single request.
+     */
+    private static final int MAX_RANGES = 64;
+
+    private final long first;
+    private final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses the given <tt>Range</tt> header as specified by RFC 7233.
+     * <p>
+     * Ranges which start beyond the end of the object are dropped, ranges which exceed the object are shortened.
+     * Multiple ranges are sorted and overlapping or adjacent ones are merged, so that no byte is sent twice. If more
+     * than {@link #MAX_RANGES} ranges remain, the header is ignored, as RFC 7233 permits.
+     *
+     * @param header the value of the header, may be <b>null</b>
+     * @param length the total length of the object in bytes
+     * @return the satisfiable ranges, an empty list if none of the ranges is satisfiable, or <b>null</b> if no header
+     * was given or if it is malformed or excessive, in which case it is to be ignored
+     */
+    @Nullable
+    static List<ByteRange> parse(@Nullable String header, long length) {
+        if (Strings.isEmpty(header) || !header.startsWith(BYTES_UNIT)) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : header.substring(BYTES_UNIT.length()).split(",")) {
+            String[] bounds = spec.trim().split("-", -1);
+            if (bounds.length != 2) {
+                return null;
+            }
+
+            try {
+                ByteRange range = parseSpec(bounds[0].trim(), bounds[1].trim(), length);
+                if (range != null) {
+                    ranges.add(range);
+                }
+            } catch (IllegalArgumentException exception) {
+                Exceptions.ignore(exception);
+                return null;
+            }
+        }
+
+        if (ranges.size() <= 1) {
+            return ranges;
+        }
+
+        List<ByteRange> mergedRanges = merge(ranges);
+        return mergedRanges.size() > MAX_RANGES ? null : mergedRanges;
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        ranges.sort(Comparator.comparingLong(ByteRange::getFirst));
+        List<ByteRange> result = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (ByteRange range : ranges.subList(1, ranges.size())) {
+            if (range.getFirst() <= current.getLast() + 1) {
+                current = new ByteRange(current.getFirst(), Math.max(current.getLast(), range.getLast()));
+            } else {
+                result.add(current);
+                current = range;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+
+    @Nullable
+    private static ByteRange parseSpec(String first, String last, long length) {
+        if (first.isEmpty()) {
+            // a suffix range like "-500" requests the last 500 bytes
+            long suffixLength = Long.parseLong(last);
+            if (suffixLength <= 0 || length == 0) {
+                return null;
+            }
+            return new ByteRange(Math.max(0, length - suffixLength), length - 1);
+        }
+
+        long start = Long.parseLong(first);
+        long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range");
+        }
+        if (start >= length) {
+            return null;
+        }
+        return new ByteRange(start, Math.min(end, length - 1));
+    }
+
+    /**
+     * Determines the range covered by the given part of a multipart object.
+     *
+     * @param partSizes  the sizes of all parts of the object
+     * @param partNumber the one-based number of the part
+     * @return the range covered by the part
+     */
+    static ByteRange ofPart(List<Long> partSizes, int partNumber) {
+        long offset = partSizes.subList(0, partNumber - 1).stream().mapToLong(Long::longValue).sum();
+        return new ByteRange(offset, offset + partSizes.get(partNumber - 1) - 1);
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    long getLast() {
+        return last;
+    }
+
+    long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of the <tt>Content-Range</tt> header describing this range.
+     *
+     * @param totalLength the total length of the object in bytes
+     * @return the value of the <tt>Content-Range</tt> header
+     */
+    String toContentRange(long totalLength) {
+        return "bytes " + first + "-" + last + "/" + totalLength;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import com.google.common.io.BaseEncoding;
+import io.netty.buffer.ByteBuf;
+import sirius.kernel.commons.Strings;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Verifies the chained signatures of the chunks of an <tt>aws-chunked</tt> upload as specified in
+ * <a href="https://docs.aws.amazon.com/AmazonS3/latest/API/sigv4-streaming.html">AWS signature v4 streaming</a>.
+ * <p>
+ * The signature of each chunk covers the hash of its data and the signature of the previous chunk, starting with the
+ * signature of the request itself. Therefore, the chunks have to be processed in the order they have been received.
+ * The data of a chunk may be fed in several parts, so that it never has to be buffered as a whole.
+ */
+class ChunkSignatureVerifier {
+
+    /**
+     * Contains the hex encoded SHA-256 hash of an empty string, which is part of each chunk string to sign.
+     */
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private final String dateAndScope;
+    private final String seedSignature;
+    private final Mac mac;
+    private final MessageDigest sha256;
+    private String previousSignature;
+
+    /**
+     * Creates a new verifier.
+     *
+     * @param signingKey    the key derived from the secret key for the scope of the request
+     * @param amazonDate    the timestamp of the request as given in <tt>x-amz-date</tt>
+     * @param scope         the credential scope of the request
+     * @param seedSignature the signature of the request, which seeds the chain of chunk signatures
+     * @throws GeneralSecurityException in case the required algorithms are not available
+     */
+    ChunkSignatureVerifier(byte[] signingKey, String amazonDate, String scope, String seedSignature)
+            throws GeneralSecurityException {
+        this.dateAndScope = amazonDate + "\n" + scope + "\n";
+        this.mac = Mac.getInstance("HmacSHA256");
+        this.mac.init(new SecretKeySpec(signingKey, "HmacSHA256"));
+        this.sha256 = MessageDigest.getInstance("SHA-256");
+        this.seedSignature = seedSignature;
+        this.previousSignature = seedSignature;
+    }
+
+    /**
+     * Returns the signature of the request, which has been computed to seed the chain of chunk signatures.
+     * <p>
+     * This permits to authenticate the request itself without computing its signature again.
+     *
+     * @return the hex encoded signature of the request
+     */
+    String getSeedSignature() {
+        return seedSignature;
+    }
+
+    /**
+     * Feeds a part of the data of the current chunk into the verifier.
+     *
+     * @param data the data to process, which is left untouched
+     */
+    void update(ByteBuf data) {
+        sha256.update(data.nioBuffer());
+    }
+
+    /**
+     * Verifies the signature of the current chunk, once all of its data has been passed to {@link #update(ByteBuf)}.
+     *
+     * @param signature the signature given for the chunk, may be <b>null</b> if none was given
+     * @return <b>true</b> if the signature matches the data and continues the chain, <b>false</b> otherwise
+     */
+    boolean verify(@Nullable String signature) {
+        return verifyChained("AWS4-HMAC-SHA256-PAYLOAD\n"
+                             + dateAndScope
+                             + previousSignature
+                             + "\n"
+                             + EMPTY_SHA256
+                             + "\n"
+                             + BaseEncoding.base16().lowerCase().encode(sha256.digest()), signature);
+    }
+
+    /**
+     * Verifies the signature of the trailing headers, which follow the final chunk.
+     *
+     * @param trailingHeaders the canonical trailing headers, each as <tt>name:value</tt> followed by a line feed
+     * @param signature       the signature given in <tt>x-amz-trailer-signature</tt>
+     * @return <b>true</b> if the signature matches the trailing headers, <b>false</b> otherwise
+     */
+    boolean verifyTrailer(String trailingHeaders, @Nullable String signature) {
+        byte[] hash = sha256.digest(trailingHeaders.getBytes(StandardCharsets.UTF_8));
+        return verifyChained("AWS4-HMAC-SHA256-TRAILER\n"
+                             + dateAndScope
+                             + previousSignature
+                             + "\n"
+                             + BaseEncoding.base16().lowerCase().encode(hash), signature);
+    }
+
+    private boolean verifyChained(String stringToSign, @Nullable String signature) {
+        String expectedSignature =
+                BaseEncoding.base16().lowerCase().encode(mac.doFinal(stringToSign.getBytes(StandardCharsets.UTF_8)));
+
+        if (!Strings.areEqual(expectedSignature, signature)) {
+            return false;
+        }
+
+        previousSignature = expectedSignature;
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.xml.Outcall;
+import sirius.web.http.WebContext;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Evaluates the <tt>If-Match</tt>, <tt>If-None-Match</tt>, <tt>If-Modified-Since</tt> and
+ * <tt>If-Unmodified-Since</tt> headers of a GET or HEAD request as specified by RFC 7232.
+ */
+class ConditionalRequest {
+
+    /**
+     * Enumerates the possible outcomes of evaluating the preconditions of a request.
+     */
+    enum Outcome {
+        /**
+         * All preconditions hold, so that the object is to be delivered.
+         */
+        PROCEED,
+
+        /**
+         * The client already has the current version of the object, so that <tt>304 Not Modified</tt> is to be sent.
+         */
+        NOT_MODIFIED,
+
+        /**
+         * A precondition failed, so that <tt>412 Precondition Failed</tt> is to be sent.
+         */
+        PRECONDITION_FAILED
+    }
+
+    private ConditionalRequest() {
+    }
+
+    /**
+     * Evaluates the preconditions of the given request against the given metadata.
+     *
+     * @param webContext the request to evaluate
+     * @param metadata   the metadata of the requested object
+     * @return the outcome of the evaluation
+     */
+    static Outcome evaluate(WebContext webContext, ObjectMetadata metadata) {
+        // HTTP dates only have a precision of seconds
+        Instant lastModified = metadata.getLastModified().truncatedTo(ChronoUnit.SECONDS);
+
+        String ifMatch = webContext.getHeaderValue(HttpHeaderNames.IF_MATCH).asString();
+        if (Strings.isFilled(ifMatch)) {
+            if (!matchesETag(ifMatch, metadata.getETag(), false)) {
+                return Outcome.PRECONDITION_FAILED;
+            }
+        } else {
+            Instant ifUnmodifiedSince = parseDate(webContext.getHeaderValue(HttpHeaderNames.IF_UNMODIFIED_SINCE)
+                                                            .asString());
+            if (ifUnmodifiedSince != null && lastModified.isAfter(ifUnmodifiedSince)) {
+                return Outcome.PRECONDITION_FAILED;
+            }
+        }
+
+        String ifNoneMatch = webContext.getHeaderValue(HttpHeaderNames.IF_NONE_MATCH).asString();
+        if (Strings.isFilled(ifNoneMatch)) {
+            return matchesETag(ifNoneMatch, metadata.getETag(), true) ? Outcome.NOT_MODIFIED : Outcome.PROCEED;
+        }
+
+        Instant ifModifiedSince = parseDate(webContext.getHeaderValue(HttpHeaderNames.IF_MODIFIED_SINCE).asString());
+        if (ifModifiedSince != null && !lastModified.isAfter(ifModifiedSince)) {
+            return Outcome.NOT_MODIFIED;
+        }
+
+        return Outcome.PROCEED;
+    }
+
+    /**
+     * Determines if one of the entity tags listed in the given header matches the given ETag.
+     * <p>
+     * As specified by RFC 7232, <tt>If-Match</tt> uses the strong comparison, which never matches a weak tag, while
+     * <tt>If-None-Match</tt> uses the weak comparison, which ignores the <tt>W/</tt> prefix.
+     *
+     * @param header the value of the header listing the entity tags
+     * @param etag   the ETag of the object
+     * @param weak   <b>true</b> to use the weak comparison, <b>false</b> to use the strong one
+     * @return <b>true</b> if one of the listed tags matches, <b>false</b> otherwise
+     */
+    private static boolean matchesETag(String header, String etag, boolean weak) {
+        for (String candidate : header.split(",")) {
+            String value = candidate.trim();
+            if ("*".equals(value)) {
+                return true;
+            }
+            if (value.startsWith("W/")) {
+                if (!weak) {
+                    continue;
+                }
+                value = value.substring(2);
+            }
+            if (Strings.areEqual(value.replace("\"", ""), etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Nullable
+    private static Instant parseDate(@Nullable String header) {
+        if (Strings.isEmpty(header)) {
+            return null;
+        }
+
+        try {
+            return Instant.from(Outcall.RFC2616_INSTANT.parse(header.trim()));
+        } catch (DateTimeParseException exception) {
+            // as specified by RFC 7232, invalid dates are ignored
+            Exceptions.ignore(exception);
+            return null;
+        }
+    }
+}
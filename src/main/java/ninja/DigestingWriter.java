@@ -0,0 +1,229 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import com.google.common.io.BaseEncoding;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Writes data to a file in a single pass while computing its MD5 digest on the fly.
+ * <p>
+ * If requested by the client, an additional {@link ObjectChecksum} is computed in the same pass.
+ * <p>
+ * The data is first written to a temporary file next to the target file. Once all data has been written, the digest
+ * can be checked (e.g. against a given <tt>Content-MD5</tt>) and the file is either moved into place via
+ * {@link #commit()} or dropped via {@link #discard()}. This way, the data never has to be read a second time and a
+ * rejected upload never clobbers an existing file.
+ */
+class DigestingWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File target;
+    private final File temporaryFile;
+    private final MessageDigest md5;
+    private byte[] digest;
+    private long length;
+    private ObjectChecksum checksum;
+    private String checksumValue;
+
+    /**
+     * Creates a new writer for the given target file.
+     *
+     * @param target the file to write
+     * @throws IOException in case the temporary file cannot be created
+     */
+    DigestingWriter(File target) throws IOException {
+        this.target = target;
+        // the name of the temporary file starts with "$" which never occurs in encoded keys, so that the file does
+        // not show up in any listing
+        this.temporaryFile = File.createTempFile("$upload-", ".tmp", target.getParentFile());
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException exception) {
+            discard();
+            throw new IOException(exception);
+        }
+    }
+
+    /**
+     * Specifies an additional checksum to compute while writing.
+     *
+     * @param checksum the checksum to compute, or <b>null</b> to only compute the MD5 digest
+     * @return the writer itself for fluent method calls
+     */
+    DigestingWriter withChecksum(@Nullable ObjectChecksum checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    /**
+     * Writes all data of the given stream to the temporary file while computing the digest.
+     *
+     * @param input the data to write
+     * @return the writer itself for fluent method calls
+     * @throws IOException in case of an IO error, in which case the temporary file is already discarded (as it is for
+     *                     any other exception)
+     */
+    DigestingWriter write(InputStream input) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        // the time spent waiting for data, hashing and writing is reported to the trace of the request
+        long readNanos = 0;
+        long hashNanos = 0;
+        long writeNanos = 0;
+        boolean written = false;
+        try (OutputStream output = new FileOutputStream(temporaryFile)) {
+            long start = System.nanoTime();
+            int read = input.read(buffer);
+            while (read >= 0) {
+                long readDone = System.nanoTime();
+                md5.update(buffer, 0, read);
+                if (checksum != null) {
+                    checksum.update(buffer, 0, read);
+                }
+                long hashDone = System.nanoTime();
+                output.write(buffer, 0, read);
+                length += read;
+                long writeDone = System.nanoTime();
+                readNanos += readDone - start;
+                hashNanos += hashDone - readDone;
+                writeNanos += writeDone - hashDone;
+                start = writeDone;
+                read = input.read(buffer);
+            }
+            readNanos += System.nanoTime() - start;
+            written = true;
+        } finally {
+            // also covers runtime exceptions thrown by the input, so that no temporary file is left behind
+            if (!written) {
+                discard();
+            }
+        }
+        RequestTrace.record("body", readNanos);
+        RequestTrace.record("hash", hashNanos);
+        RequestTrace.record("disk", writeNanos);
+
+        digest = md5.digest();
+        if (checksum != null) {
+            checksumValue = checksum.getValue();
+        }
+        return this;
+    }
+
+    /**
+     * Determines if the digest of the written data matches the given <tt>Content-MD5</tt> value.
+     *
+     * @param contentMd5 the base64 encoded MD5 hash as provided by the client, may be <b>null</b> if none was given
+     * @return <b>true</b> if no hash was given or if it matches the written data, <b>false</b> otherwise
+     */
+    boolean matchesContentMd5(@Nullable String contentMd5) {
+        return contentMd5 == null || Strings.areEqual(contentMd5, getContentMd5());
+    }
+
+    /**
+     * Returns the name of the header carrying the additional checksum.
+     *
+     * @return the header name of the additional checksum, or <b>null</b> if none has been computed
+     */
+    @Nullable
+    String getChecksumHeaderName() {
+        return checksum == null ? null : checksum.getHeaderName();
+    }
+
+    /**
+     * Returns the additional checksum of the written data.
+     *
+     * @return the base64 encoded checksum, or <b>null</b> if none has been computed
+     */
+    @Nullable
+    String getChecksum() {
+        return checksumValue;
+    }
+
+    /**
+     * Returns the MD5 hash of the written data, encoded as expected in a <tt>Content-MD5</tt> header.
+     *
+     * @return the base64 encoded MD5 hash of the written data
+     */
+    String getContentMd5() {
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    /**
+     * Returns the ETag of the written data.
+     *
+     * @return the hex encoded MD5 hash of the written data
+     */
+    String getETag() {
+        return BaseEncoding.base16().lowerCase().encode(digest);
+    }
+
+    /**
+     * Returns the raw MD5 hash of the written data.
+     *
+     * @return the MD5 hash of the written data
+     */
+    byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return the number of bytes written
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Moves the written data to the target file, replacing any previous contents.
+     *
+     * @throws IOException in case the file cannot be moved, in which case the temporary file is discarded
+     */
+    void commit() throws IOException {
+        boolean committed = false;
+        try {
+            Files.move(temporaryFile.toPath(),
+                       target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        } catch (AtomicMoveNotSupportedException exception) {
+            Exceptions.ignore(exception);
+            Files.move(temporaryFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        } finally {
+            if (!committed) {
+                discard();
+            }
+        }
+    }
+
+    /**
+     * Drops the written data, leaving the target file untouched.
+     */
+    void discard() {
+        sirius.kernel.commons.Files.delete(temporaryFile);
+    }
+}
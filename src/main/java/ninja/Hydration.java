@@ -0,0 +1,209 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.commons.Strings;
+import sirius.kernel.nls.NLS;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Describes the progress of mirroring a bucket, or a prefix of it, from the {@link AwsUpstream}.
+ * <p>
+ * Hydrations are started and tracked by {@link UpstreamHydrations}. All counters are updated concurrently by the
+ * transfer threads and can be read at any time to report the progress.
+ */
+public class Hydration {
+
+    /**
+     * Enumerates the states of a hydration.
+     */
+    public enum State {
+        /**
+         * The upstream listing is being paged through and objects are being downloaded.
+         */
+        RUNNING,
+
+        /**
+         * All objects have been processed.
+         */
+        COMPLETED,
+
+        /**
+         * The hydration has been cancelled and can be resumed later.
+         */
+        CANCELLED,
+
+        /**
+         * The hydration has been aborted by an error and can be resumed later.
+         */
+        FAILED
+    }
+
+    private final String bucketName;
+    private final String prefix;
+    private final String resumedAfter;
+    private final Instant started = Instant.now();
+    private volatile Instant finished;
+    private volatile State state = State.RUNNING;
+    private volatile boolean cancelRequested;
+    private volatile String lastError;
+
+    private final AtomicLong listed = new AtomicLong();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Creates a new hydration.
+     *
+     * @param bucketName   the name of the bucket to mirror
+     * @param prefix       the prefix of the keys to mirror, or <b>null</b> to mirror the whole bucket
+     * @param resumedAfter the last key processed by a previous run, or <b>null</b> if the hydration starts from scratch
+     */
+    Hydration(String bucketName, @Nullable String prefix, @Nullable String resumedAfter) {
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.resumedAfter = resumedAfter;
+    }
+
+    void objectsListed(int count) {
+        listed.addAndGet(count);
+    }
+
+    void objectDownloaded(long size) {
+        downloaded.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    void objectSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    void objectFailed(String error) {
+        failed.incrementAndGet();
+        lastError = error;
+    }
+
+    void finish(State finalState, @Nullable String error) {
+        if (error != null) {
+            lastError = error;
+        }
+        finished = Instant.now();
+        state = finalState;
+    }
+
+    void cancel() {
+        cancelRequested = true;
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    @Nullable
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the key after which this hydration has started, as a previous run had processed all keys up to it.
+     *
+     * @return the last key processed by a previous run, or <b>null</b> if the hydration started from scratch
+     */
+    @Nullable
+    public String getResumedAfter() {
+        return resumedAfter;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    @Nullable
+    public String getLastError() {
+        return lastError;
+    }
+
+    public long getListed() {
+        return listed.get();
+    }
+
+    public long getDownloaded() {
+        return downloaded.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the number of listed objects which have been downloaded, skipped or failed.
+     *
+     * @return the number of processed objects
+     */
+    public long getProcessed() {
+        return getDownloaded() + getSkipped() + getFailed();
+    }
+
+    /**
+     * Returns the time since the hydration has been started, or its total duration once it has finished.
+     *
+     * @return the duration of the hydration
+     */
+    public Duration getDuration() {
+        return Duration.between(started, finished == null ? Instant.now() : finished);
+    }
+
+    /**
+     * Returns the average number of bytes downloaded per second.
+     *
+     * @return the download throughput in bytes per second
+     */
+    public long getThroughput() {
+        long millis = Math.max(1, getDuration().toMillis());
+        return getBytes() * 1000 / millis;
+    }
+
+    /**
+     * Renders the progress as short text.
+     *
+     * @return a text summarizing the processed objects and the throughput
+     */
+    public String getProgress() {
+        return Strings.apply("%s of %s objects processed (%s downloaded, %s skipped, %s failed), %s at %s/s",
+                             getProcessed(),
+                             getListed(),
+                             getDownloaded(),
+                             getSkipped(),
+                             getFailed(),
+                             NLS.formatSize(getBytes()),
+                             NLS.formatSize(getThroughput()));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies in logarithmic buckets with linear sub-buckets, similar to an HDR histogram.
+ * <p>
+ * Each power of two is split into 16 sub-buckets, so that percentiles are reported with a relative error of less than
+ * 7%. Recording a value only increments a few atomic counters and never allocates, so that it can be used on the
+ * request path.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values up to 2^36 microseconds (about 19 hours) are distinguished, larger ones end up in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 36;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value the value to record, negative values are treated as zero
+     */
+    void record(long value) {
+        long effectiveValue = Math.max(0, value);
+        counts.incrementAndGet(Math.min(indexOf(effectiveValue), counts.length() - 1));
+        count.incrementAndGet();
+        sum.addAndGet(effectiveValue);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lowestValue = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of values recorded since startup
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     *
+     * @return the sum of all values recorded since startup
+     */
+    long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Computes the given percentile of all recorded values.
+     * <p>
+     * As the counters are read one by one while values might still be recorded, the result is an approximation.
+     *
+     * @param percentile the percentile to compute, like <tt>99.9</tt>
+     * @return the upper bound of the bucket containing the percentile, or <b>0</b> if no value has been recorded
+     */
+    long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+
+        return highestValueOf(counts.length() - 1);
+    }
+}
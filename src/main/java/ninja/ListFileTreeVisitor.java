@@ -8,88 +8,80 @@
 
 package ninja;
 
-import sirius.kernel.commons.Hasher;
-import sirius.kernel.commons.Strings;
 import sirius.kernel.health.Counter;
 import sirius.kernel.xml.XMLStructuredOutput;
 
-import javax.annotation.Nullable;
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.function.Supplier;
 
 /**
- * Visits all files in the buckets directory and outputs their metadata to an {@link XMLStructuredOutput}.
+ * Visits the files of the objects to list and outputs their metadata to an {@link XMLStructuredOutput}.
+ * <p>
+ * The files are expected to be visited in the proper order, already starting after the marker and limited to the
+ * requested prefix. The visitor terminates the traversal once the limit has been exceeded.
  */
 class ListFileTreeVisitor extends SimpleFileVisitor<Path> {
 
     private final Counter objectCount;
     private final XMLStructuredOutput output;
     private final int limit;
-    private final String marker;
-    private final String prefix;
-    private final boolean useLimit;
-    private final boolean usePrefix;
-    private boolean markerReached;
+    private boolean truncated;
 
-    // Supressed warning "Null pointers should not be dereferenced"
-    // as prefix can't be null when replacing as the usePrefix acts as a guard.
-    @SuppressWarnings("squid:S2259")
-    protected ListFileTreeVisitor(XMLStructuredOutput output,
-                                  int limit,
-                                  @Nullable String marker,
-                                  @Nullable String prefix) {
+    protected ListFileTreeVisitor(XMLStructuredOutput output, int limit) {
         this.output = output;
         this.limit = limit;
-        this.marker = marker;
-        this.prefix = prefix;
         objectCount = new Counter();
-        useLimit = limit > 0;
-        usePrefix = Strings.isFilled(prefix);
-        markerReached = Strings.isEmpty(marker);
     }
 
     @Override
     public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
-        File file = path.toFile();
-        String name = StoredObject.decodeKey(file.getName());
+        // size and modification date are taken from the given attributes, the ETag is taken from the stored properties
+        StoredObject object = new StoredObject(path.toFile());
+        return visitObject(object.getKey(), attrs.lastModifiedTime().toInstant(), attrs.size(), object::getETag);
+    }
 
-        if (!file.isFile() || file.getName().startsWith("$")) {
-            return FileVisitResult.CONTINUE;
+    /**
+     * Outputs an object which is not backed by a local file, like an object only listed by the upstream instance.
+     *
+     * @param key          the key of the object
+     * @param lastModified the modification date of the object
+     * @param size         the size of the object in bytes
+     * @param etag         supplies the ETag of the object, which is only invoked if the object is actually output
+     * @return {@link FileVisitResult#CONTINUE} if further objects are to be visited, or
+     * {@link FileVisitResult#TERMINATE} if the limit has been reached
+     */
+    public FileVisitResult visitObject(String key, Instant lastModified, long size, Supplier<String> etag) {
+        if (limit <= 0) {
+            return FileVisitResult.TERMINATE;
         }
-        if (!markerReached) {
-            if (marker.equals(name)) {
-                markerReached = true;
-            }
-        } else {
-            StoredObject object = new StoredObject(file);
-            if (useLimit && (!usePrefix || name.startsWith(prefix))) {
-                long numObjects = objectCount.inc();
-                if (numObjects <= limit) {
-                    output.beginObject("Contents");
-                    output.property("Key", object.getKey());
-                    output.property("LastModified",
-                                    S3Dispatcher.ISO8601_INSTANT.format(object.getLastModifiedInstant()));
-                    output.property("Size", object.getSizeBytes());
-                    output.property("StorageClass", "STANDARD");
-                    output.property("ETag", getETag(file));
-                    output.endObject();
-                } else {
-                    return FileVisitResult.TERMINATE;
-                }
-            }
+        if (objectCount.getCount() >= limit) {
+            // there is at least one more object than requested
+            truncated = true;
+            return FileVisitResult.TERMINATE;
         }
-        return FileVisitResult.CONTINUE;
-    }
 
-    private String getETag(File file) {
-        return Hasher.md5().hashFile(file).toHexString();
+        objectCount.inc();
+        output.beginObject("Contents");
+        output.property("Key", key);
+        output.property("LastModified", S3Dispatcher.ISO8601_INSTANT.format(lastModified));
+        output.property("Size", size);
+        output.property("StorageClass", "STANDARD");
+        output.property("ETag", etag.get());
+        output.endObject();
+
+        return FileVisitResult.CONTINUE;
     }
 
     public long getCount() {
         return objectCount.getCount();
     }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.metrics.MetricProvider;
+import sirius.kernel.health.metrics.MetricsCollector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides metrics on the throughput of object listings, as performed by the <tt>ListObjects</tt> calls.
+ */
+@Register(classes = {ListingMetrics.class, MetricProvider.class})
+public class ListingMetrics implements MetricProvider {
+
+    private final AtomicLong listings = new AtomicLong();
+    private final AtomicLong listedObjects = new AtomicLong();
+    private final AtomicLong listingMillis = new AtomicLong();
+
+    /**
+     * Records a completed listing.
+     *
+     * @param numberOfObjects the number of objects which have been listed
+     * @param durationMillis  the time it took to list the objects in milliseconds
+     */
+    public void record(int numberOfObjects, long durationMillis) {
+        listings.incrementAndGet();
+        listedObjects.addAndGet(numberOfObjects);
+        listingMillis.addAndGet(durationMillis);
+    }
+
+    @Override
+    public void gather(MetricsCollector collector) {
+        long numberOfListings = listings.getAndSet(0);
+        long numberOfObjects = listedObjects.getAndSet(0);
+        long millis = listingMillis.getAndSet(0);
+
+        collector.metric("s3_listings", "s3-listings", "S3 Listings", numberOfListings, "/min");
+        collector.metric("s3_listing_duration",
+                         "s3-listing-duration",
+                         "S3 Avg. Listing Duration",
+                         numberOfListings == 0 ? 0 : (double) millis / numberOfListings,
+                         "ms");
+        collector.metric("s3_listing_throughput",
+                         "s3-listing-throughput",
+                         "S3 Listing Throughput",
+                         millis == 0 ? 0 : numberOfObjects * 1000d / millis,
+                         "objects/s");
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.metrics.MetricProvider;
+import sirius.kernel.health.metrics.MetricsCollector;
+import sirius.kernel.nls.NLS;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the properties and the derived {@link ObjectMetadata} of recently accessed objects in memory.
+ * <p>
+ * The cache is bounded by the estimated memory occupied by its entries and evicts the least recently used entries
+ * first. Each entry remembers the modification time and length of the properties file it was read from, so that
+ * changes made outside the server are detected and the entry is dropped.
+ */
+@Register(classes = {MetadataCache.class, MetricProvider.class})
+public class MetadataCache implements MetricProvider {
+
+    /**
+     * Contains a rough estimate of the memory occupied by an entry, apart from its properties.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private static class Entry {
+        private final Map<String, String> properties;
+        private final long propertiesModified;
+        private final long propertiesLength;
+        private final long weight;
+        private ObjectMetadata metadata;
+
+        Entry(String key, Map<String, String> properties, long propertiesModified, long propertiesLength) {
+            this.properties = Collections.unmodifiableMap(new TreeMap<>(properties));
+            this.propertiesModified = propertiesModified;
+            this.propertiesLength = propertiesLength;
+            this.weight = estimateWeight(key, properties);
+        }
+
+        private static long estimateWeight(String key, Map<String, String> properties) {
+            long characters = key.length();
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                characters += property.getKey().length() + property.getValue().length();
+            }
+            return ENTRY_OVERHEAD + 2 * characters;
+        }
+
+        boolean isValid(long currentPropertiesModified, long currentPropertiesLength) {
+            return propertiesModified == currentPropertiesModified && propertiesLength == currentPropertiesLength;
+        }
+    }
+
+    @ConfigValue("storage.metadataCacheBytes")
+    private long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Returns the cached properties of an object if they are still up-to-date.
+     *
+     * @param key                the key of the object, made up of its bucket and key
+     * @param propertiesModified the current modification time of the properties file
+     * @param propertiesLength   the current length of the properties file
+     * @return the cached properties which must not be modified, or <b>null</b> if none are cached or if the cached
+     * ones are outdated
+     */
+    @Nullable
+    public Map<String, String> getProperties(String key, long propertiesModified, long propertiesLength) {
+        Entry entry = fetchValidEntry(key, propertiesModified, propertiesLength);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.properties;
+    }
+
+    /**
+     * Stores the properties of an object.
+     *
+     * @param key                the key of the object, made up of its bucket and key
+     * @param properties         the properties to cache
+     * @param propertiesModified the modification time of the properties file the properties have been read from
+     * @param propertiesLength   the length of the properties file the properties have been read from
+     */
+    public void putProperties(String key,
+                              Map<String, String> properties,
+                              long propertiesModified,
+                              long propertiesLength) {
+        Entry entry = new Entry(key, properties, propertiesModified, propertiesLength);
+        if (entry.weight > maxBytes) {
+            return;
+        }
+
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+            bytes += entry.weight;
+            evictIfNecessary();
+        }
+    }
+
+    private void evictIfNecessary() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().weight;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the cached metadata of an object if it is still up-to-date.
+     * <p>
+     * Only hits are counted, as the caller reads the properties when the metadata is missing, which then counts as
+     * hit or miss. This way, each lookup is only counted once.
+     *
+     * @param key                the key of the object, made up of its bucket and key
+     * @param propertiesModified the current modification time of the properties file
+     * @param propertiesLength   the current length of the properties file
+     * @param dataModified       the current modification time of the data file
+     * @return the cached metadata or <b>null</b> if none is cached or if the cached one is outdated
+     */
+    @Nullable
+    public ObjectMetadata getMetadata(String key, long propertiesModified, long propertiesLength, long dataModified) {
+        Entry entry = fetchValidEntry(key, propertiesModified, propertiesLength);
+        ObjectMetadata metadata = entry == null ? null : entry.metadata;
+        if (metadata == null || metadata.getLastModified().toEpochMilli() != dataModified) {
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return metadata;
+    }
+
+    /**
+     * Attaches the given metadata to the cached properties of an object.
+     * <p>
+     * If the properties of the object are not cached, the metadata is not cached either.
+     *
+     * @param key      the key of the object, made up of its bucket and key
+     * @param metadata the metadata to cache
+     */
+    public void putMetadata(String key, ObjectMetadata metadata) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.metadata = metadata;
+            }
+        }
+    }
+
+    @Nullable
+    private Entry fetchValidEntry(String key, long propertiesModified, long propertiesLength) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.isValid(propertiesModified, propertiesLength)) {
+                entries.remove(key);
+                bytes -= entry.weight;
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Drops all cached data of an object, as it has been changed or deleted.
+     *
+     * @param key the key of the object, made up of its bucket and key
+     */
+    public void invalidate(String key) {
+        synchronized (entries) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                bytes -= entry.weight;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups which could be answered from the cache.
+     *
+     * @return the number of cache hits since startup
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups which could not be answered from the cache.
+     *
+     * @return the number of cache misses since startup
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the ratio of lookups which could be answered from the cache.
+     *
+     * @return the hit rate in percent
+     */
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : hits.get() * 100d / lookups;
+    }
+
+    /**
+     * Returns the number of entries which have been evicted to make room for others.
+     *
+     * @return the number of evictions since startup
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of cached objects.
+     *
+     * @return the number of entries in the cache
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns the estimated memory occupied by the cache.
+     *
+     * @return a string representation of the estimated memory usage and the allowed maximum
+     */
+    public String getUsage() {
+        synchronized (entries) {
+            return NLS.formatSize(bytes) + " / " + NLS.formatSize(maxBytes);
+        }
+    }
+
+    @Override
+    public void gather(MetricsCollector collector) {
+        collector.metric("s3_metadata_cache_hit_rate",
+                         "s3-metadata-cache-hit-rate",
+                         "S3 Metadata Cache Hit Rate",
+                         getHitRate(),
+                         "%");
+        collector.metric("s3_metadata_cache_size",
+                         "s3-metadata-cache-size",
+                         "S3 Metadata Cache Size",
+                         getSize(),
+                         null);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import com.google.common.io.BaseEncoding;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Combines the parts of a multipart upload into the final object.
+ * <p>
+ * As the size of each part is known in advance, the target file is allocated once and all parts are copied to their
+ * respective offsets concurrently, using the executor <tt>multipart-combine</tt>. The ETag of the combined object is
+ * derived from the recorded ETags of the parts, like S3 does, so that the result never has to be read again.
+ * <p>
+ * Alternatively, parts can be kept as they are, so that completing an upload neither copies any data nor needs
+ * additional disk space. The resulting composite object references its parts as segments and can be
+ * {@linkplain #compact(StoredObject) compacted} into a plain object later on.
+ */
+@Register(classes = MultipartCombiner.class)
+public class MultipartCombiner {
+
+    private static final String EXECUTOR_MULTIPART_COMBINE = "multipart-combine";
+
+    @ConfigValue("storage.compositeMultipartObjects")
+    private boolean compositeObjects;
+
+    @Part
+    private Tasks tasks;
+
+    /**
+     * Completes the given upload by storing the given parts as contents of the given object.
+     * <p>
+     * Depending on <tt>storage.compositeMultipartObjects</tt>, the parts are either copied into the data file of the
+     * object or kept as segments of a composite object.
+     *
+     * @param upload the upload containing the parts
+     * @param parts  the parts which make up the object, in order
+     * @param object the object to store
+     * @throws IOException in case of an IO error while storing the object
+     */
+    public void complete(MultipartUpload upload, List<MultipartUpload.Part> parts, StoredObject object)
+            throws IOException {
+        List<File> sources = parts.stream().map(part -> upload.getPartFile(part.getNumber())).toList();
+        List<Long> partSizes = sources.stream().map(File::length).toList();
+        if (compositeObjects) {
+            compose(upload, sources, object);
+        } else {
+            replaceContents(sources, object);
+        }
+        object.setPartSizes(partSizes);
+    }
+
+    /**
+     * Merges the segments of a composite object into its data file, so that it becomes a plain object again.
+     *
+     * @param object the object to compact
+     * @throws IOException in case of an IO error while merging the segments
+     */
+    public void compact(StoredObject object) throws IOException {
+        if (object.isComposite()) {
+            replaceContents(object.getSegments(), object);
+            object.invalidateMetadata();
+        }
+    }
+
+    private void replaceContents(List<File> sources, StoredObject object) throws IOException {
+        // combine the parts right next to the final object, so that it can be moved into place atomically
+        File file = File.createTempFile("$multipart-", ".tmp", object.getFile().getParentFile());
+        try {
+            combine(sources, file);
+            moveAtomically(file, object.getFile());
+        } catch (IOException exception) {
+            sirius.kernel.commons.Files.delete(file);
+            throw exception;
+        }
+        object.deleteSegments();
+    }
+
+    /**
+     * Moves the parts into the segments directory of the object, which only costs a rename per part as long as the
+     * multipart directory resides on the same file system as the bucket.
+     * <p>
+     * The new segments are collected in a directory of their own, which then replaces the previous segments by a
+     * single atomic rename. The previous segments are only deleted once the new layout is in place.
+     */
+    private void compose(MultipartUpload upload, List<File> sources, StoredObject object) throws IOException {
+        File directory = object.getFile().getParentFile();
+        Path segments = Files.createTempDirectory(directory.toPath(), "$segments-");
+        File placeholder = File.createTempFile("$multipart-", ".tmp", directory);
+        Path previousSegments;
+        try {
+            long totalSize = 0;
+            for (int index = 0; index < sources.size(); index++) {
+                File source = sources.get(index);
+                totalSize += source.length();
+                Files.move(source.toPath(), segments.resolve(String.valueOf(index + 1)));
+            }
+
+            // the placeholder is a sparse file, which carries the size of the object without occupying any space
+            try (RandomAccessFile file = new RandomAccessFile(placeholder, "rw")) {
+                file.setLength(totalSize);
+            }
+
+            previousSegments = object.replaceSegments(segments);
+        } catch (IOException exception) {
+            sirius.kernel.commons.Files.delete(placeholder);
+            deleteQuietly(segments);
+            throw new IOException(Strings.apply("Failed to compose the object of upload %s", upload.getUploadId()),
+                                  exception);
+        }
+
+        moveAtomically(placeholder, object.getFile());
+        if (previousSegments != null) {
+            deleteQuietly(previousSegments);
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            sirius.kernel.commons.Files.delete(path);
+        } catch (IOException exception) {
+            Exceptions.ignore(exception);
+        }
+    }
+
+    private void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(),
+                       target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Exceptions.ignore(exception);
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the given files, in the given order, into the target file.
+     *
+     * @param sources the files to combine
+     * @param target  the file to write, which is replaced entirely
+     * @throws IOException in case of an IO error while copying a file
+     */
+    public void combine(List<File> sources, File target) throws IOException {
+        long totalSize = sources.stream().mapToLong(File::length).sum();
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(totalSize);
+        }
+
+        List<CompletableFuture<Void>> copies = new ArrayList<>(sources.size());
+        CountDownLatch finishedCopies = new CountDownLatch(sources.size());
+        long offset = 0;
+        for (File source : sources) {
+            long size = source.length();
+            long position = offset;
+            CompletableFuture<Void> copy = new CompletableFuture<>();
+            copies.add(copy);
+            tasks.executor(EXECUTOR_MULTIPART_COMBINE).fork(() -> {
+                try {
+                    // copies which are still queued once another one failed are skipped
+                    if (!copy.isDone()) {
+                        copyPart(source, size, target, position);
+                        copy.complete(null);
+                    }
+                } catch (Exception exception) {
+                    copy.completeExceptionally(exception);
+                } finally {
+                    finishedCopies.countDown();
+                }
+            });
+            offset += size;
+        }
+
+        awaitCopies(copies, finishedCopies);
+    }
+
+    private void copyPart(File source, long size, File target, long position) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < size) {
+                long transferred = out.transferFrom(in, position + copied, size - copied);
+                if (transferred <= 0) {
+                    throw new IOException("File " + source.getName() + " is shorter than expected");
+                }
+                copied += transferred;
+            }
+        }
+    }
+
+    /**
+     * Waits until all copies succeeded.
+     * <p>
+     * Once a copy failed, the queued ones are skipped. The running ones are awaited, so that the caller can safely
+     * delete the target file.
+     */
+    private void awaitCopies(List<CompletableFuture<Void>> copies, CountDownLatch finishedCopies) throws IOException {
+        try {
+            for (CompletableFuture<Void> copy : copies) {
+                copy.get();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while combining parts");
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(exception.getCause());
+        } finally {
+            copies.forEach(copy -> copy.cancel(false));
+            awaitFinishedCopies(finishedCopies);
+        }
+    }
+
+    private void awaitFinishedCopies(CountDownLatch finishedCopies) {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                finishedCopies.await();
+                break;
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Computes the ETag of a multipart object as S3 does.
+     * <p>
+     * This is the MD5 hash of the concatenated binary MD5 hashes of all parts, followed by a dash and the number of
+     * parts.
+     *
+     * @param parts the parts the object consists of
+     * @return the ETag of the combined object
+     */
+    public static String computeETag(List<MultipartUpload.Part> parts) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            for (MultipartUpload.Part part : parts) {
+                md5.update(BaseEncoding.base16().lowerCase().decode(part.getETag().toLowerCase()));
+            }
+            return BaseEncoding.base16().lowerCase().encode(md5.digest()) + "-" + parts.size();
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.commons.Hasher;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Represents a pending multipart upload along with the parts uploaded so far.
+ * <p>
+ * Each upload is stored in its own directory below the multipart directory. Next to the data of the parts, the
+ * directory contains a manifest describing the upload itself and a small properties file per part which records its
+ * size, ETag and additional checksum once the part has been written. Therefore, uploads survive server restarts and
+ * parts never have to be hashed again.
+ */
+public class MultipartUpload {
+
+    /**
+     * Contains the headers to store along with the completed object.
+     */
+    private static final String PROPERTIES_FILENAME = "properties";
+
+    private static final String MANIFEST_FILENAME = "$upload.properties";
+
+    private static final String MANIFEST_BUCKET = "bucket";
+    private static final String MANIFEST_KEY = "key";
+    private static final String MANIFEST_INITIATED = "initiated";
+    private static final String PART_SIZE = "size";
+    private static final String PART_ETAG = "etag";
+    private static final String PART_LAST_MODIFIED = "lastModified";
+    private static final String PART_CHECKSUM_NAME = "checksumName";
+    private static final String PART_CHECKSUM = "checksum";
+
+    /**
+     * Represents an uploaded part.
+     */
+    public static class Part {
+        private final int number;
+        private final long size;
+        private final String etag;
+        private final Instant lastModified;
+        private final String checksumName;
+        private final String checksum;
+
+        protected Part(int number,
+                       long size,
+                       String etag,
+                       Instant lastModified,
+                       @Nullable String checksumName,
+                       @Nullable String checksum) {
+            this.number = number;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.checksumName = checksumName;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Returns the number of the part.
+         *
+         * @return the number of the part within the upload
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Returns the size of the part.
+         *
+         * @return the size of the part in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the ETag of the part.
+         *
+         * @return the hex encoded MD5 hash of the part
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Returns the time when the part was uploaded.
+         *
+         * @return the time when the part was uploaded
+         */
+        public Instant getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the header name of the additional checksum of the part.
+         *
+         * @return the header name like <tt>x-amz-checksum-crc32</tt>, or <b>null</b> if no additional checksum has
+         * been computed
+         */
+        @Nullable
+        public String getChecksumName() {
+            return checksumName;
+        }
+
+        /**
+         * Returns the additional checksum of the part.
+         *
+         * @return the base64 encoded checksum, or <b>null</b> if no additional checksum has been computed
+         */
+        @Nullable
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    private final String uploadId;
+    private final String bucketName;
+    private final String key;
+    private final Instant initiated;
+    private final File directory;
+    private final NavigableMap<Integer, Part> parts = new ConcurrentSkipListMap<>();
+
+    private MultipartUpload(String uploadId, String bucketName, String key, Instant initiated, File directory) {
+        this.uploadId = uploadId;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.initiated = initiated;
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a new upload within the given directory and persists its manifest.
+     *
+     * @param uploadId   the id of the upload
+     * @param bucketName the name of the bucket the object is uploaded to
+     * @param key        the key of the object which is uploaded
+     * @param directory  the directory to store the upload in
+     * @return the newly created upload
+     * @throws IOException in case the manifest cannot be written
+     */
+    protected static MultipartUpload create(String uploadId, String bucketName, String key, File directory)
+            throws IOException {
+        MultipartUpload upload = new MultipartUpload(uploadId, bucketName, key, Instant.now(), directory);
+
+        Properties manifest = new Properties();
+        manifest.setProperty(MANIFEST_BUCKET, bucketName);
+        manifest.setProperty(MANIFEST_KEY, key);
+        manifest.setProperty(MANIFEST_INITIATED, String.valueOf(upload.initiated.toEpochMilli()));
+        store(manifest, new File(directory, MANIFEST_FILENAME));
+
+        return upload;
+    }
+
+    /**
+     * Restores an upload from the given directory.
+     *
+     * @param directory the directory containing the upload
+     * @return the restored upload or <b>null</b> if the directory does not contain a valid manifest
+     */
+    @Nullable
+    protected static MultipartUpload load(File directory) {
+        File manifestFile = new File(directory, MANIFEST_FILENAME);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+
+        try {
+            Properties manifest = load(manifestFile);
+            MultipartUpload upload = new MultipartUpload(directory.getName(),
+                                                         manifest.getProperty(MANIFEST_BUCKET),
+                                                         manifest.getProperty(MANIFEST_KEY),
+                                                         Instant.ofEpochMilli(Long.parseLong(manifest.getProperty(
+                                                                 MANIFEST_INITIATED))),
+                                                         directory);
+            for (File file : Objects.requireNonNull(directory.listFiles())) {
+                upload.restorePart(file);
+            }
+            return upload;
+        } catch (Exception exception) {
+            Exceptions.handle()
+                      .to(Storage.LOG)
+                      .error(exception)
+                      .withSystemErrorMessage("Failed to restore the multipart upload in %s: %s (%s)",
+                                              directory.getAbsolutePath())
+                      .handle();
+            return null;
+        }
+    }
+
+    private void restorePart(File file) throws IOException {
+        int number = parsePartNumber(file.getName());
+        if (number <= 0 || !file.isFile()) {
+            return;
+        }
+
+        File partManifestFile = getPartManifestFile(number);
+        if (partManifestFile.exists()) {
+            Properties partManifest = load(partManifestFile);
+            parts.put(number,
+                      new Part(number,
+                               Long.parseLong(partManifest.getProperty(PART_SIZE)),
+                               partManifest.getProperty(PART_ETAG),
+                               Instant.ofEpochMilli(Long.parseLong(partManifest.getProperty(PART_LAST_MODIFIED))),
+                               partManifest.getProperty(PART_CHECKSUM_NAME),
+                               partManifest.getProperty(PART_CHECKSUM)));
+        } else {
+            // the server went down after writing the part but before recording it, so we recover it once
+            recordPart(number, file.length(), Hasher.md5().hashFile(file).toHexString(), null, null);
+        }
+    }
+
+    private static int parsePartNumber(String name) {
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException exception) {
+            Exceptions.ignore(exception);
+            return -1;
+        }
+    }
+
+    /**
+     * Records a part which has been completely written to its {@linkplain #getPartFile(int) part file}.
+     * <p>
+     * Uploading a part with the same number again replaces the previous part.
+     *
+     * @param number       the number of the part
+     * @param size         the size of the part in bytes
+     * @param etag         the hex encoded MD5 hash of the part
+     * @param checksumName the header name of the additional checksum of the part, or <b>null</b> if there is none
+     * @param checksum     the base64 encoded additional checksum of the part, or <b>null</b> if there is none
+     * @return the recorded part
+     * @throws IOException in case the part manifest cannot be written
+     */
+    public Part recordPart(int number,
+                           long size,
+                           String etag,
+                           @Nullable String checksumName,
+                           @Nullable String checksum) throws IOException {
+        Part part = new Part(number, size, etag, Instant.now(), checksumName, checksum);
+
+        Properties partManifest = new Properties();
+        partManifest.setProperty(PART_SIZE, String.valueOf(size));
+        partManifest.setProperty(PART_ETAG, etag);
+        partManifest.setProperty(PART_LAST_MODIFIED, String.valueOf(part.getLastModified().toEpochMilli()));
+        if (checksumName != null && checksum != null) {
+            partManifest.setProperty(PART_CHECKSUM_NAME, checksumName);
+            partManifest.setProperty(PART_CHECKSUM, checksum);
+        }
+        store(partManifest, getPartManifestFile(number));
+
+        parts.put(number, part);
+        return part;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (FileInputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "");
+        }
+    }
+
+    /**
+     * Returns the id of the upload.
+     *
+     * @return the id of the upload
+     */
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Returns the name of the bucket the object is uploaded to.
+     *
+     * @return the name of the target bucket
+     */
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    /**
+     * Returns the key of the object which is uploaded.
+     *
+     * @return the key of the target object
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the time when the upload was initiated.
+     *
+     * @return the time when the upload was initiated
+     */
+    public Instant getInitiated() {
+        return initiated;
+    }
+
+    /**
+     * Determines if the upload targets the given object.
+     *
+     * @param bucket the bucket to check
+     * @param key    the key to check
+     * @return <b>true</b> if the upload targets the given object, <b>false</b> otherwise
+     */
+    public boolean belongsTo(Bucket bucket, String key) {
+        return Strings.areEqual(bucketName, bucket.getName()) && Strings.areEqual(this.key, key);
+    }
+
+    /**
+     * Returns the directory containing the upload.
+     *
+     * @return the directory containing all files of the upload
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the file containing the headers to be stored along with the completed object.
+     *
+     * @return the properties file of the upload
+     */
+    public File getPropertiesFile() {
+        return new File(directory, PROPERTIES_FILENAME);
+    }
+
+    /**
+     * Returns the file containing the data of the given part.
+     *
+     * @param number the number of the part
+     * @return the file containing the data of the part
+     */
+    public File getPartFile(int number) {
+        return new File(directory, String.valueOf(number));
+    }
+
+    private File getPartManifestFile(int number) {
+        return new File(directory, "$" + number + ".properties");
+    }
+
+    /**
+     * Returns the part with the given number.
+     *
+     * @param number the number of the part
+     * @return the part with the given number or <b>null</b> if no such part has been uploaded
+     */
+    @Nullable
+    public Part getPart(int number) {
+        return parts.get(number);
+    }
+
+    /**
+     * Returns all uploaded parts, ordered by their number.
+     *
+     * @return all uploaded parts
+     */
+    public List<Part> getParts() {
+        return new ArrayList<>(parts.values());
+    }
+
+    /**
+     * Returns the uploaded parts following the given part number, ordered by their number.
+     *
+     * @param marker the part number after which to start
+     * @param limit  the maximal number of parts to return
+     * @return at most <tt>limit</tt> parts following the given part number
+     */
+    public List<Part> getParts(int marker, int limit) {
+        return parts.tailMap(marker, false).values().stream().limit(limit).toList();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of all pending multipart uploads.
+ * <p>
+ * The state of each upload is persisted in the multipart directory, see {@link MultipartUpload}. Pending uploads are
+ * restored from there when accessed for the first time after startup.
+ */
+@Register(classes = MultipartUploads.class)
+public class MultipartUploads {
+
+    @ConfigValue("storage.multipartDir")
+    private String multipartDir;
+
+    private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+
+    private volatile boolean restored;
+
+    /**
+     * Starts a new multipart upload.
+     *
+     * @param bucket     the bucket the object is uploaded to
+     * @param key        the key of the object which is uploaded
+     * @param properties the headers to store along with the completed object
+     * @return the newly created upload
+     * @throws IOException in case the upload cannot be persisted
+     */
+    public MultipartUpload create(Bucket bucket, String key, Map<String, String> properties) throws IOException {
+        restoreUploads();
+
+        // random ids never collide with uploads left over from previous runs
+        String uploadId = UUID.randomUUID().toString().replace("-", "");
+        File directory = new File(multipartDir, uploadId);
+        if (!directory.mkdirs()) {
+            throw new IOException(Strings.apply("Failed to create upload directory %s", directory.getAbsolutePath()));
+        }
+
+        MultipartUpload upload = MultipartUpload.create(uploadId, bucket.getName(), key, directory);
+
+        Properties clonedProperties = new Properties();
+        properties.forEach(clonedProperties::setProperty);
+        try (FileOutputStream outputStream = new FileOutputStream(upload.getPropertiesFile())) {
+            clonedProperties.store(outputStream, "");
+        }
+
+        uploads.put(uploadId, upload);
+        return upload;
+    }
+
+    /**
+     * Returns the pending upload with the given id.
+     *
+     * @param uploadId the id of the upload
+     * @return the upload or <b>null</b> if there is no such pending upload
+     */
+    @Nullable
+    public MultipartUpload getUpload(String uploadId) {
+        restoreUploads();
+        return uploads.get(uploadId);
+    }
+
+    /**
+     * Returns the pending uploads for the given bucket, ordered by key and initiation time.
+     * <p>
+     * Without an upload id marker, the list starts with the first key following the key marker. Otherwise, it starts
+     * with the upload following the given one, which may share the key marker.
+     *
+     * @param bucket         the bucket to list the uploads for
+     * @param prefix         the prefix all keys must start with, may be <b>null</b>
+     * @param keyMarker      the key after which to start, may be <b>null</b>
+     * @param uploadIdMarker the upload after which to start, may be <b>null</b>
+     * @return the matching pending uploads of the given bucket
+     */
+    public List<MultipartUpload> getUploads(Bucket bucket,
+                                            @Nullable String prefix,
+                                            @Nullable String keyMarker,
+                                            @Nullable String uploadIdMarker) {
+        restoreUploads();
+        List<MultipartUpload> result = uploads.values()
+                                              .stream()
+                                              .filter(upload -> Strings.areEqual(upload.getBucketName(),
+                                                                                 bucket.getName()))
+                                              .filter(upload -> Strings.isEmpty(prefix)
+                                                                || upload.getKey().startsWith(prefix))
+                                              .sorted(Comparator.comparing(MultipartUpload::getKey,
+                                                                           ObjectIndex::compareUtf8Binary)
+                                                                .thenComparing(MultipartUpload::getInitiated))
+                                              .toList();
+        if (Strings.isEmpty(keyMarker)) {
+            return result;
+        }
+
+        int start = 0;
+        while (start < result.size() && ObjectIndex.compareUtf8Binary(result.get(start).getKey(), keyMarker) < 0) {
+            start++;
+        }
+        if (Strings.isFilled(uploadIdMarker)) {
+            for (int index = start; index < result.size() && Strings.areEqual(result.get(index).getKey(), keyMarker);
+                 index++) {
+                if (Strings.areEqual(result.get(index).getUploadId(), uploadIdMarker)) {
+                    return result.subList(index + 1, result.size());
+                }
+            }
+        }
+        while (start < result.size() && Strings.areEqual(result.get(start).getKey(), keyMarker)) {
+            start++;
+        }
+
+        return result.subList(start, result.size());
+    }
+
+    /**
+     * Removes the upload with the given id from the pending uploads, e.g. as it is being completed.
+     * <p>
+     * Note that the directory of the upload is left untouched, see {@link #delete(MultipartUpload)}.
+     *
+     * @param uploadId the id of the upload
+     * @return the removed upload or <b>null</b> if there is no such pending upload
+     */
+    @Nullable
+    public MultipartUpload remove(String uploadId) {
+        restoreUploads();
+        return uploads.remove(uploadId);
+    }
+
+    /**
+     * Registers a removed upload as pending again, e.g. as completing it has failed.
+     * <p>
+     * This permits to retry or abort the upload instead of leaving its parts behind until the next restart.
+     *
+     * @param upload the upload to register again
+     */
+    public void reinstate(MultipartUpload upload) {
+        uploads.putIfAbsent(upload.getUploadId(), upload);
+    }
+
+    /**
+     * Deletes the directory of the given upload along with all data of the upload.
+     *
+     * @param upload the upload to delete
+     */
+    public void delete(MultipartUpload upload) {
+        uploads.remove(upload.getUploadId());
+        try {
+            sirius.kernel.commons.Files.delete(upload.getDirectory().toPath());
+        } catch (IOException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+        }
+    }
+
+    private void restoreUploads() {
+        if (restored) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!restored) {
+                File[] directories = new File(multipartDir).listFiles(File::isDirectory);
+                for (File directory : Objects.requireNonNullElse(directories, new File[0])) {
+                    MultipartUpload upload = MultipartUpload.load(directory);
+                    if (upload != null) {
+                        uploads.putIfAbsent(upload.getUploadId(), upload);
+                    }
+                }
+                restored = true;
+            }
+        }
+    }
+}
@@ -9,10 +9,9 @@
 package ninja;
 
 import com.google.common.collect.Maps;
-import com.google.common.io.ByteStreams;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import sirius.kernel.commons.Hasher;
 import sirius.kernel.commons.PriorityCollector;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.di.std.Part;
@@ -29,9 +28,12 @@ import sirius.web.http.MimeHelper;
 import sirius.web.http.Response;
 import sirius.web.http.WebContext;
 import sirius.web.security.UserContext;
+import sirius.web.services.JSONStructuredOutput;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +52,24 @@ public class NinjaController extends BasicController {
     @Part
     private APILog log;
 
+    @Part
+    private MultipartCombiner multipartCombiner;
+
+    @Part
+    private MetadataCache metadataCache;
+
+    @Part
+    private OperationMetrics operationMetrics;
+
+    @Part
+    private UpstreamCache upstreamCache;
+
+    @Part
+    private UpstreamHydrations upstreamHydrations;
+
+    @Part
+    private UpstreamReconciler upstreamReconciler;
+
     /**
      * Handles requests to <tt>/ui</tt>.
      * <p>
@@ -60,6 +80,8 @@ public class NinjaController extends BasicController {
      *     <li><tt>/ui?license</tt>: Shows the license terms.</li>
      *     <li><tt>/ui?api</tt>: Shows the implemented S3 API.</li>
      *     <li><tt>/ui?log</tt>: Shows the log.</li>
+     *     <li><tt>/ui?stats</tt>: Shows statistics of the internal caches.</li>
+     *     <li><tt>/ui?metrics</tt>: Reports the metrics of all S3 operations in the Prometheus text format.</li>
      * </ul>
      *
      * @param webContext the context describing the current request
@@ -85,6 +107,18 @@ public class NinjaController extends BasicController {
             return;
         }
 
+        // handle /ui?stats
+        if (webContext.hasParameter("stats")) {
+            webContext.respondWith().template("/templates/stats.html.pasta", metadataCache, upstreamCache);
+            return;
+        }
+
+        // handle /ui?metrics
+        if (webContext.hasParameter("metrics")) {
+            metrics(webContext);
+            return;
+        }
+
         // handle /ui
         buckets(webContext);
     }
@@ -114,6 +148,22 @@ public class NinjaController extends BasicController {
                             start + pageSize + 1);
     }
 
+    /**
+     * Handles requests to <tt>/ui?metrics</tt>.
+     *
+     * @param webContext the context describing the current request
+     */
+    private void metrics(WebContext webContext) {
+        StringBuilder metrics = new StringBuilder();
+        operationMetrics.writePrometheusMetrics(metrics);
+        try (OutputStream out = webContext.respondWith()
+                                          .outputStream(HttpResponseStatus.OK, "text/plain; version=0.0.4")) {
+            out.write(metrics.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw Exceptions.handle(Storage.LOG, e);
+        }
+    }
+
     private void buckets(WebContext webContext) {
         List<Bucket> buckets = Collections.emptyList();
         try {
@@ -140,6 +190,10 @@ public class NinjaController extends BasicController {
      *     <li><tt>/ui/[bucket]?delete</tt>: Deletes the bucket.</li>
      *     <li><tt>/ui/[bucket]?make-public</tt>: Makes the bucket public.</li>
      *     <li><tt>/ui/[bucket]?make-private</tt>: Makes the bucket private.</li>
+     *     <li><tt>POST /ui/[bucket]?hydrate&amp;prefix=[prefix]</tt>: Starts mirroring the bucket from the upstream
+     *     instance.</li>
+     *     <li><tt>POST /ui/[bucket]?cancel-hydration</tt>: Cancels mirroring the bucket.</li>
+     *     <li><tt>/ui/[bucket]?hydration</tt>: Reports the progress of mirroring the bucket as JSON.</li>
      * </ul>
      *
      * @param webContext the context describing the current request
@@ -157,7 +211,7 @@ public class NinjaController extends BasicController {
                 return;
             }
 
-            if (!bucket.create()) {
+            if (!storage.createBucket(bucket)) {
                 throw Exceptions.createHandled()
                                 .to(Storage.LOG)
                                 .withDirectMessage("Failed creating bucket. Missing file system permission?")
@@ -226,6 +280,36 @@ public class NinjaController extends BasicController {
             return;
         }
 
+        // handle POST /ui/[bucket]?hydrate
+        if (webContext.hasParameter("hydrate")) {
+            if (!HttpMethod.POST.equals(webContext.getRequest().method())) {
+                UserContext.message(Message.error().withTextMessage("Mirroring can only be started via POST."));
+            } else {
+                upstreamHydrations.start(bucket, webContext.get("prefix").asString());
+                UserContext.message(Message.info().withTextMessage("Mirroring from the upstream instance started."));
+            }
+            webContext.respondWith().redirectTemporarily(address);
+            return;
+        }
+
+        // handle POST /ui/[bucket]?cancel-hydration
+        if (webContext.hasParameter("cancel-hydration")) {
+            if (!HttpMethod.POST.equals(webContext.getRequest().method())) {
+                UserContext.message(Message.error().withTextMessage("Mirroring can only be cancelled via POST."));
+            } else if (upstreamHydrations.cancel(bucket)) {
+                UserContext.message(Message.info()
+                                           .withTextMessage("Mirroring cancelled, it can be resumed later."));
+            }
+            webContext.respondWith().redirectTemporarily(address);
+            return;
+        }
+
+        // handle /ui/[bucket]?hydration
+        if (webContext.hasParameter("hydration")) {
+            hydration(webContext, bucket);
+            return;
+        }
+
         // handle /ui/[bucket]?upload
         if (webContext.hasParameter("upload")) {
             uploadFile(webContext, bucket);
@@ -235,6 +319,35 @@ public class NinjaController extends BasicController {
         objects(webContext, bucket);
     }
 
+    /**
+     * Handles <tt>/ui/[bucket]?hydration</tt> by reporting the progress of mirroring the bucket as JSON.
+     *
+     * @param webContext the context describing the current request
+     * @param bucket     the bucket being mirrored
+     */
+    private void hydration(WebContext webContext, Bucket bucket) {
+        Hydration hydration = upstreamHydrations.getHydration(bucket);
+        JSONStructuredOutput output = webContext.respondWith().json();
+        output.beginResult();
+        output.property("resumable", upstreamHydrations.isResumable(bucket));
+        if (hydration != null) {
+            output.property("state", hydration.getState().name());
+            output.property("prefix", hydration.getPrefix());
+            output.property("resumedAfter", hydration.getResumedAfter());
+            output.property("listed", hydration.getListed());
+            output.property("processed", hydration.getProcessed());
+            output.property("downloaded", hydration.getDownloaded());
+            output.property("skipped", hydration.getSkipped());
+            output.property("failed", hydration.getFailed());
+            output.property("bytes", hydration.getBytes());
+            output.property("bytesPerSecond", hydration.getThroughput());
+            output.property("durationMillis", hydration.getDuration().toMillis());
+            output.property("progress", hydration.getProgress());
+            output.property("lastError", hydration.getLastError());
+        }
+        output.endResult();
+    }
+
     /**
      * Handles manual object via <tt>/ui/[bucket]?upload</tt>.
      *
@@ -245,16 +358,20 @@ public class NinjaController extends BasicController {
         try {
             String name = webContext.get("filename").asString(webContext.get("qqfile").asString());
             StoredObject object = bucket.getObject(name);
-            try (FileOutputStream fos = new FileOutputStream(object.getFile())) {
-                ByteStreams.copy(webContext.getContent(), fos);
+            DigestingWriter writer = new DigestingWriter(object.getFile());
+            try (InputStream in = webContext.getContent()) {
+                writer.write(in).commit();
             }
+            object.discardLayout();
 
             Map<String, String> properties = Maps.newTreeMap();
             properties.put(HttpHeaderNames.CONTENT_TYPE.toString(),
                            webContext.getHeaderValue(HttpHeaderNames.CONTENT_TYPE)
                                      .asString(MimeHelper.guessMimeType(name)));
-            properties.put("Content-MD5", Hasher.md5().hashFile(object.getFile()).toBase64String());
+            properties.put("Content-MD5", writer.getContentMd5());
+            properties.put("ETag", writer.getETag());
             object.setProperties(properties);
+            bucket.indexObject(name);
 
             webContext.respondWith()
                       .json()
@@ -282,7 +399,7 @@ public class NinjaController extends BasicController {
         page.withLimitedItemsSupplier(limit -> bucket.getObjects(page.getQuery(), limit));
         page.withTotalItems(bucket.countObjects(page.getQuery()));
 
-        webContext.respondWith().template("/templates/bucket.html.pasta", bucket, page);
+        webContext.respondWith().template("/templates/bucket.html.pasta", bucket, page, upstreamHydrations);
     }
 
     /**
@@ -293,6 +410,7 @@ public class NinjaController extends BasicController {
      * Optional query parameters include:
      * <ul>
      *     <li><tt>/ui/[bucket]/[object]?delete</tt>: Deletes the object.</li>
+     *     <li><tt>/ui/[bucket]/[object]?compact</tt>: Merges the segments of a composite object.</li>
      * </ul>
      *
      * @param webContext the context describing the current request
@@ -310,25 +428,62 @@ public class NinjaController extends BasicController {
 
         String id = String.join("/", idParts);
         StoredObject object = bucket.getObject(id);
-        if (!object.exists()) {
-            UserContext.message(Message.error().withTextMessage("Object does not exist."));
-            webContext.respondWith().redirectTemporarily("/ui/" + bucket.getEncodedName());
-            return;
-        }
 
-        // handle /ui/[bucket]/[object]?delete
+        // handle /ui/[bucket]/[object]?delete - this also hides objects which only exist upstream
         if (webContext.hasParameter("delete")) {
             object.delete();
+            bucket.unindexObject(id);
+
+            // just like S3 DeleteObject, hide an object which might exist upstream by a tombstone
+            upstreamReconciler.objectDeleted(bucket, id);
 
             UserContext.message(Message.info().withTextMessage("Object successfully deleted."));
             webContext.respondWith().redirectTemporarily("/ui/" + bucket.getEncodedName());
             return;
         }
 
+        if (!object.exists()) {
+            UserContext.message(Message.error().withTextMessage("Object does not exist."));
+            webContext.respondWith().redirectTemporarily("/ui/" + bucket.getEncodedName());
+            return;
+        }
+
+        // handle /ui/[bucket]/[object]?compact
+        if (webContext.hasParameter("compact")) {
+            compactObject(webContext, bucket, object);
+            return;
+        }
+
         Response response = webContext.respondWith().named(object.getKey());
         for (Map.Entry<String, String> entry : object.getProperties().entrySet()) {
             response.addHeader(entry.getKey(), entry.getValue());
         }
-        response.file(object.getFile());
+        if (object.isComposite()) {
+            response.setHeader(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(object.getSizeBytes()));
+            try (InputStream in = object.openInputStream();
+                 OutputStream out = response.outputStream(HttpResponseStatus.OK,
+                                                          MimeHelper.guessMimeType(object.getKey()))) {
+                in.transferTo(out);
+            } catch (IOException e) {
+                throw Exceptions.handle(Storage.LOG, e);
+            }
+        } else {
+            response.file(object.getFile());
+        }
+    }
+
+    private void compactObject(WebContext webContext, Bucket bucket, StoredObject object) {
+        try {
+            multipartCombiner.compact(object);
+        } catch (IOException e) {
+            throw Exceptions.createHandled()
+                            .to(Storage.LOG)
+                            .error(e)
+                            .withDirectMessage("Failed compacting object. Missing file system permission?")
+                            .handle();
+        }
+
+        UserContext.message(Message.info().withTextMessage("Object successfully compacted."));
+        webContext.respondWith().redirectTemporarily("/ui/" + bucket.getEncodedName());
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Computes one of the additional checksums an S3 client may announce for an upload via an
+ * <tt>x-amz-checksum-[algorithm]</tt> header or trailer, or request via <tt>x-amz-sdk-checksum-algorithm</tt>.
+ * <p>
+ * The checksum is computed incrementally while the data is streamed and is rendered as base64 encoded value, just like
+ * the one sent by the client. Supported algorithms are CRC32, CRC32C, SHA-1 and SHA-256.
+ */
+public class ObjectChecksum {
+
+    /**
+     * Contains the common prefix of all checksum headers.
+     */
+    private static final String HEADER_PREFIX = "x-amz-checksum-";
+
+    private static final Set<String> HEADER_NAMES =
+            Set.of(HEADER_PREFIX + "crc32", HEADER_PREFIX + "crc32c", HEADER_PREFIX + "sha1", HEADER_PREFIX + "sha256");
+
+    private final String headerName;
+    private final Checksum checksum;
+    private final MessageDigest digest;
+
+    private ObjectChecksum(String headerName, @Nullable Checksum checksum, @Nullable MessageDigest digest) {
+        this.headerName = headerName;
+        this.checksum = checksum;
+        this.digest = digest;
+    }
+
+    /**
+     * Creates a checksum for the given header name.
+     *
+     * @param headerName the name of the header or trailer carrying the checksum, like <tt>x-amz-checksum-crc32</tt>
+     * @return the checksum to compute or <b>null</b> if the algorithm is not supported
+     */
+    @Nullable
+    static ObjectChecksum forHeader(@Nullable String headerName) {
+        if (headerName == null) {
+            return null;
+        }
+
+        String name = headerName.trim().toLowerCase();
+        try {
+            return switch (name) {
+                case HEADER_PREFIX + "crc32" -> new ObjectChecksum(name, new CRC32(), null);
+                case HEADER_PREFIX + "crc32c" -> new ObjectChecksum(name, new CRC32C(), null);
+                case HEADER_PREFIX + "sha1" -> new ObjectChecksum(name, null, MessageDigest.getInstance("SHA-1"));
+                case HEADER_PREFIX + "sha256" -> new ObjectChecksum(name, null, MessageDigest.getInstance("SHA-256"));
+                default -> null;
+            };
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Creates a checksum for the given algorithm.
+     *
+     * @param algorithm the name of the algorithm as given in <tt>x-amz-sdk-checksum-algorithm</tt>, like
+     *                  <tt>CRC32</tt>
+     * @return the checksum to compute or <b>null</b> if the algorithm is not supported
+     */
+    @Nullable
+    static ObjectChecksum forAlgorithm(@Nullable String algorithm) {
+        if (algorithm == null) {
+            return null;
+        }
+
+        return forHeader(HEADER_PREFIX + algorithm.trim().toLowerCase());
+    }
+
+    /**
+     * Determines if the given header or property name denotes a checksum of a supported algorithm.
+     *
+     * @param name the name to check
+     * @return <b>true</b> if the name is the one of a checksum header, <b>false</b> otherwise
+     */
+    public static boolean isChecksumHeader(String name) {
+        return HEADER_NAMES.contains(name.toLowerCase());
+    }
+
+    /**
+     * Determines the name of the XML element carrying the given checksum in responses.
+     *
+     * @param headerName the name of the header carrying the checksum, like <tt>x-amz-checksum-crc32</tt>
+     * @return the name of the XML element, like <tt>ChecksumCRC32</tt>
+     */
+    public static String toElementName(String headerName) {
+        return "Checksum" + headerName.substring(HEADER_PREFIX.length()).toUpperCase();
+    }
+
+    /**
+     * Computes the composite checksum of a multipart upload from the checksums of its parts.
+     * <p>
+     * Just like the ETag of a multipart upload, the composite checksum is the checksum of the concatenated binary
+     * checksums of all parts, followed by the number of parts.
+     *
+     * @param headerName    the name of the header carrying the checksum
+     * @param partChecksums the base64 encoded checksums of all parts in order
+     * @return the composite checksum like <tt>[base64]-[number of parts]</tt>
+     */
+    static String computeComposite(String headerName, List<String> partChecksums) {
+        ObjectChecksum composite = Objects.requireNonNull(forHeader(headerName));
+        for (String partChecksum : partChecksums) {
+            byte[] data = Base64.getDecoder().decode(partChecksum);
+            composite.update(data, 0, data.length);
+        }
+        return composite.getValue() + "-" + partChecksums.size();
+    }
+
+    /**
+     * Returns the name of the header carrying the checksum.
+     *
+     * @return the header name in lower case
+     */
+    String getHeaderName() {
+        return headerName;
+    }
+
+    /**
+     * Feeds the given data into the checksum.
+     *
+     * @param data   the buffer containing the data to process
+     * @param offset the offset of the data within the buffer
+     * @param length the number of bytes to process
+     */
+    void update(byte[] data, int offset, int length) {
+        if (checksum != null) {
+            checksum.update(data, offset, length);
+        } else {
+            digest.update(data, offset, length);
+        }
+    }
+
+    /**
+     * Feeds the given data into the checksum.
+     *
+     * @param data the data to process, which is left untouched
+     */
+    void update(ByteBuf data) {
+        ByteBuffer buffer = data.nioBuffer();
+        if (checksum != null) {
+            checksum.update(buffer);
+        } else {
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * Completes the computation and returns the checksum.
+     *
+     * @return the base64 encoded checksum of all data processed
+     */
+    String getValue() {
+        if (checksum != null) {
+            // CRC checksums are rendered as 4 bytes in big endian order
+            return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array());
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+}
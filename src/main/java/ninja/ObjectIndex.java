@@ -0,0 +1,156 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.commons.Strings;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the keys of all objects of a bucket sorted in UTF-8 binary order, as required by the S3 listing calls.
+ * <p>
+ * The index is built lazily by scanning the bucket directory once, and is kept up-to-date by all operations creating
+ * or deleting objects. Listings can thus seek directly to the requested marker or prefix and stop after the requested
+ * number of keys, instead of listing, decoding and sorting the whole directory for each call.
+ * <p>
+ * Objects which are removed from the directory by other means are detected (and dropped from the index) when the
+ * listing fails to read their attributes.
+ */
+class ObjectIndex {
+
+    private final Bucket bucket;
+
+    private final NavigableSet<String> keys = new ConcurrentSkipListSet<>(ObjectIndex::compareUtf8Binary);
+
+    private volatile boolean loaded;
+
+    /**
+     * Creates a new index for the given bucket.
+     *
+     * @param bucket the bucket to index
+     */
+    ObjectIndex(Bucket bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * Adds the given key to the index.
+     *
+     * @param key the key of the object which has been stored
+     */
+    void add(String key) {
+        keys.add(key);
+    }
+
+    /**
+     * Removes the given key from the index.
+     *
+     * @param key the key of the object which has been deleted
+     */
+    void remove(String key) {
+        keys.remove(key);
+    }
+
+    /**
+     * Returns the number of indexed objects.
+     *
+     * @return the number of objects within the bucket
+     */
+    int size() {
+        ensureLoaded();
+        return keys.size();
+    }
+
+    /**
+     * Enumerates the keys in UTF-8 binary order, starting after the given marker and limited to the given prefix.
+     *
+     * @param marker the key after which to start, may be <b>null</b>
+     * @param prefix the prefix all returned keys must start with, may be <b>null</b>
+     * @return a stream of all matching keys, in UTF-8 binary order
+     */
+    Stream<String> stream(@Nullable String marker, @Nullable String prefix) {
+        ensureLoaded();
+
+        NavigableSet<String> candidates = keys;
+        if (Strings.isFilled(marker) && (Strings.isEmpty(prefix) || compareUtf8Binary(marker, prefix) >= 0)) {
+            candidates = keys.tailSet(marker, false);
+        } else if (Strings.isFilled(prefix)) {
+            candidates = keys.tailSet(prefix, true);
+        }
+
+        if (Strings.isEmpty(prefix)) {
+            return candidates.stream();
+        }
+
+        // all keys sharing a prefix are adjacent in the sort order, so we can stop at the first one not matching
+        return candidates.stream().takeWhile(key -> key.startsWith(prefix));
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!loaded) {
+                scan();
+                loaded = true;
+            }
+        }
+    }
+
+    private void scan() {
+        // objects which are stored concurrently are added to the set directly, adding them twice does no harm
+        try (Stream<Path> children = Files.list(bucket.getFolder().toPath())) {
+            children.filter(childPath -> bucket.filterObjects(childPath.toFile()))
+                    .map(childPath -> StoredObject.decodeKey(childPath.getFileName().toString()))
+                    .forEach(keys::add);
+        } catch (IOException exception) {
+            throw Exceptions.handle(Storage.LOG, exception);
+        }
+    }
+
+    /**
+     * Compares the given strings by the binary representation of their UTF-8 encoding without actually encoding them.
+     * <p>
+     * The natural order of {@link String} compares UTF-16 chars, which only differs from the UTF-8 order for surrogate
+     * pairs: These encode the supplementary characters, which are ordered last in UTF-8, but are ordered before the
+     * characters <tt>U+E000</tt> to <tt>U+FFFF</tt> in UTF-16. We thus shift the surrogates up when comparing.
+     *
+     * @param left  the first string to compare
+     * @param right the second string to compare
+     * @return a negative number, zero or a positive number if the first string is less, equal or greater than the
+     * second one
+     */
+    static int compareUtf8Binary(String left, String right) {
+        int length = Math.min(left.length(), right.length());
+        for (int index = 0; index < length; ++index) {
+            char leftChar = left.charAt(index);
+            char rightChar = right.charAt(index);
+            if (leftChar != rightChar) {
+                return Integer.compare(toUtf8Order(leftChar), toUtf8Order(rightChar));
+            }
+        }
+        return left.length() - right.length();
+    }
+
+    private static int toUtf8Order(char character) {
+        if (character >= Character.MIN_SURROGATE) {
+            return Character.isSurrogate(character) ? character + 0x2000 : character - 0x800;
+        }
+        return character;
+    }
+}
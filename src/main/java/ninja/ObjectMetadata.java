@@ -0,0 +1,55 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import java.time.Instant;
+
+/**
+ * Provides a snapshot of the metadata of a {@link StoredObject}, as kept in memory to answer requests without touching
+ * the files of the object.
+ */
+public class ObjectMetadata {
+
+    private final String etag;
+    private final Instant lastModified;
+    private final long size;
+
+    protected ObjectMetadata(String etag, Instant lastModified, long size) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    /**
+     * Returns the ETag of the object.
+     *
+     * @return the ETag of the object, without quotes
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Returns the date of the last modification of the object.
+     *
+     * @return the last modification date of the object
+     */
+    public Instant getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the size of the object.
+     *
+     * @return the size of the object in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+}
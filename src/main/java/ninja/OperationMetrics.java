@@ -0,0 +1,241 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import ninja.errors.S3ErrorCode;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.metrics.MetricProvider;
+import sirius.kernel.health.metrics.MetricsCollector;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Keeps latency histograms and throughput counters for each {@link S3Operation} and each bucket, along with the
+ * number of errors per {@link S3ErrorCode}.
+ * <p>
+ * The key figures are reported to the sirius metrics infrastructure and can be fetched in the Prometheus text format
+ * via <tt>/ui?metrics</tt>. All counters are kept since startup. Recording only updates atomic counters and never
+ * allocates, except when a bucket is seen for the first time.
+ */
+@Register(classes = {OperationMetrics.class, MetricProvider.class})
+public class OperationMetrics implements MetricProvider {
+
+    /**
+     * Limits the number of buckets tracked separately, further ones are reported as {@link #OTHER_BUCKETS}.
+     */
+    private static final int MAX_BUCKETS = 1024;
+
+    private static final String OTHER_BUCKETS = "-";
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * Contains the counters kept per operation or per bucket.
+     */
+    private static class Counters {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+    }
+
+    private final Counters[] operations = new Counters[S3Operation.values().length];
+    private final ConcurrentMap<String, Counters> buckets = new ConcurrentHashMap<>();
+    private final AtomicLongArray errorCodes = new AtomicLongArray(S3ErrorCode.values().length);
+
+    /**
+     * Creates the counters of all operations upfront, so that recording never has to.
+     */
+    public OperationMetrics() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new Counters();
+        }
+    }
+
+    private Counters getBucketCounters(@Nullable String bucket) {
+        String name = bucket == null ? OTHER_BUCKETS : bucket;
+        Counters counters = buckets.get(name);
+        if (counters != null) {
+            return counters;
+        }
+        if (buckets.size() >= MAX_BUCKETS) {
+            name = OTHER_BUCKETS;
+        }
+
+        return buckets.computeIfAbsent(name, ignored -> new Counters());
+    }
+
+    /**
+     * Records a completed call.
+     *
+     * @param operation      the operation which has been performed
+     * @param bucket         the bucket which has been accessed, or <b>null</b> if the call was not bucket specific
+     * @param durationMicros the time it took to handle the call in microseconds
+     * @param bytesIn        the number of bytes received as request body
+     */
+    public void record(S3Operation operation, @Nullable String bucket, long durationMicros, long bytesIn) {
+        record(operations[operation.ordinal()], durationMicros, bytesIn);
+        record(getBucketCounters(bucket), durationMicros, bytesIn);
+    }
+
+    private void record(Counters counters, long durationMicros, long bytesIn) {
+        counters.latency.record(durationMicros);
+        if (bytesIn > 0) {
+            counters.bytesIn.addAndGet(bytesIn);
+        }
+    }
+
+    /**
+     * Records the bytes sent as response body of a call.
+     *
+     * @param operation the operation which has been performed
+     * @param bucket    the bucket which has been accessed
+     * @param bytesOut  the number of bytes sent
+     */
+    public void recordBytesOut(S3Operation operation, @Nullable String bucket, long bytesOut) {
+        operations[operation.ordinal()].bytesOut.addAndGet(bytesOut);
+        getBucketCounters(bucket).bytesOut.addAndGet(bytesOut);
+    }
+
+    /**
+     * Records an error sent in response to a call.
+     *
+     * @param operation the operation which has failed
+     * @param bucket    the bucket which has been accessed, or <b>null</b> if the call was not bucket specific
+     * @param errorCode the error code which has been sent
+     */
+    public void recordError(S3Operation operation, @Nullable String bucket, S3ErrorCode errorCode) {
+        operations[operation.ordinal()].errors.incrementAndGet();
+        getBucketCounters(bucket).errors.incrementAndGet();
+        errorCodes.incrementAndGet(errorCode.ordinal());
+    }
+
+    @Override
+    public void gather(MetricsCollector collector) {
+        for (S3Operation operation : S3Operation.values()) {
+            Counters counters = operations[operation.ordinal()];
+            if (counters.latency.getCount() == 0) {
+                continue;
+            }
+
+            String name = operation.getApiName();
+            String code = "s3-" + operation.name().toLowerCase().replace('_', '-');
+            collector.metric("s3_operation_calls_" + operation.name().toLowerCase(),
+                             code + "-calls",
+                             "S3 " + name + " Calls",
+                             counters.latency.getCount(),
+                             null);
+            collector.metric("s3_operation_p99_" + operation.name().toLowerCase(),
+                             code + "-p99",
+                             "S3 " + name + " 99th Percentile",
+                             counters.latency.getPercentile(99) / 1000d,
+                             "ms");
+        }
+    }
+
+    /**
+     * Renders all counters in the Prometheus text exposition format.
+     *
+     * @param output the builder to append the metrics to
+     */
+    public void writePrometheusMetrics(StringBuilder output) {
+        output.append("# TYPE s3_operation_latency_seconds summary\n");
+        for (S3Operation operation : S3Operation.values()) {
+            writeLatency(output,
+                         "s3_operation_latency_seconds",
+                         "operation",
+                         operation.getApiName(),
+                         operations[operation.ordinal()]);
+        }
+        writeCounters(output, "operation", toOperationMap());
+
+        output.append("# TYPE s3_bucket_latency_seconds summary\n");
+        Map<String, Counters> sortedBuckets = new TreeMap<>(buckets);
+        for (Map.Entry<String, Counters> bucket : sortedBuckets.entrySet()) {
+            writeLatency(output, "s3_bucket_latency_seconds", "bucket", bucket.getKey(), bucket.getValue());
+        }
+        writeCounters(output, "bucket", sortedBuckets);
+
+        output.append("# TYPE s3_errors_total counter\n");
+        for (S3ErrorCode errorCode : S3ErrorCode.values()) {
+            long errors = errorCodes.get(errorCode.ordinal());
+            if (errors > 0) {
+                output.append("s3_errors_total{code=\"").append(errorCode.name()).append("\"} ").append(errors);
+                output.append('\n');
+            }
+        }
+    }
+
+    private Map<String, Counters> toOperationMap() {
+        Map<String, Counters> result = new TreeMap<>();
+        for (S3Operation operation : S3Operation.values()) {
+            result.put(operation.getApiName(), operations[operation.ordinal()]);
+        }
+        return result;
+    }
+
+    private void writeLatency(StringBuilder output, String metric, String label, String value, Counters counters) {
+        if (counters.latency.getCount() == 0) {
+            return;
+        }
+
+        String labels = label + "=\"" + escape(value) + "\"";
+        for (double percentile : PERCENTILES) {
+            output.append(metric)
+                  .append('{')
+                  .append(labels)
+                  .append(",quantile=\"")
+                  .append(percentile / 100)
+                  .append("\"} ")
+                  .append(counters.latency.getPercentile(percentile) / 1_000_000d)
+                  .append('\n');
+        }
+        output.append(metric).append("_sum{").append(labels).append("} ");
+        output.append(counters.latency.getSum() / 1_000_000d).append('\n');
+        output.append(metric).append("_count{").append(labels).append("} ");
+        output.append(counters.latency.getCount()).append('\n');
+    }
+
+    private void writeCounters(StringBuilder output, String label, Map<String, Counters> countersByLabel) {
+        writeCounter(output, "s3_" + label + "_bytes_in_total", label, countersByLabel, counters -> counters.bytesIn);
+        writeCounter(output, "s3_" + label + "_bytes_out_total", label, countersByLabel, counters -> counters.bytesOut);
+        writeCounter(output, "s3_" + label + "_errors_total", label, countersByLabel, counters -> counters.errors);
+    }
+
+    private void writeCounter(StringBuilder output,
+                              String metric,
+                              String label,
+                              Map<String, Counters> countersByLabel,
+                              Function<Counters, AtomicLong> counter) {
+        output.append("# TYPE ").append(metric).append(" counter\n");
+        for (Map.Entry<String, Counters> entry : countersByLabel.entrySet()) {
+            if (entry.getValue().latency.getCount() > 0) {
+                output.append(metric)
+                      .append('{')
+                      .append(label)
+                      .append("=\"")
+                      .append(escape(entry.getKey()))
+                      .append("\"} ")
+                      .append(counter.apply(entry.getValue()).get())
+                      .append('\n');
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
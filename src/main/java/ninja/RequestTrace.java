@@ -0,0 +1,212 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import ninja.errors.S3ErrorCode;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.nls.NLS;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Breaks down the time spent on an object request into phases, like checking the signature, receiving the body or
+ * writing to disk.
+ * <p>
+ * A trace is bound to the thread handling the request, so that the phases can be recorded anywhere along the request
+ * path without passing the trace around. All methods do nothing if no trace has been started for the current thread.
+ * <p>
+ * Phases are either delimited by {@link #mark(String)}, which attributes the time since the previous mark to the given
+ * phase, or measured by the caller and reported via {@link #record(String, long)}. Recorded time is subtracted from the
+ * next mark, so that the phases add up to the total time of the request.
+ * <p>
+ * Additionally, the bytes allocated by the handling thread are reported, if supported by the JVM. Note that this does
+ * not include allocations by the network threads which receive and send the data.
+ * <p>
+ * Finally, the trace keeps the outcome of the request and the number of bytes transferred, so that these can be
+ * reported once the request has been handled.
+ */
+public class RequestTrace {
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    private static final com.sun.management.ThreadMXBean THREADS = determineThreadBean();
+
+    private final List<String> phases = new ArrayList<>();
+    private final List<Long> durations = new ArrayList<>();
+    private final long threadId = Thread.currentThread().getId();
+    private final long allocatedBytesAtStart = getAllocatedBytes();
+    private long lastMark = System.nanoTime();
+    private long recordedSinceLastMark;
+    private String outcome = "OK";
+    private long bytes;
+
+    @Nullable
+    private static com.sun.management.ThreadMXBean determineThreadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+            && threads.isThreadAllocatedMemorySupported()
+            && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads;
+        }
+
+        return null;
+    }
+
+    private long getAllocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * Starts a trace for the request handled by the current thread.
+     *
+     * @param waitedNanos the time which passed between receiving the request and starting to handle it
+     */
+    static void start(long waitedNanos) {
+        RequestTrace trace = new RequestTrace();
+        trace.add("wait", waitedNanos);
+        CURRENT.set(trace);
+    }
+
+    /**
+     * Attributes the time since the previous mark to the given phase.
+     *
+     * @param phase the name of the phase which just ended
+     */
+    static void mark(String phase) {
+        RequestTrace trace = CURRENT.get();
+        if (trace == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        trace.add(phase, Math.max(0, now - trace.lastMark - trace.recordedSinceLastMark));
+        trace.lastMark = now;
+        trace.recordedSinceLastMark = 0;
+    }
+
+    /**
+     * Records a phase which has been measured by the caller.
+     *
+     * @param phase the name of the phase
+     * @param nanos the time spent in the phase in nanoseconds
+     */
+    static void record(String phase, long nanos) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.add(phase, nanos);
+            trace.recordedSinceLastMark += nanos;
+        }
+    }
+
+    /**
+     * Records that the request of the current thread failed.
+     *
+     * @param errorCode the error code sent in response
+     */
+    public static void fail(S3ErrorCode errorCode) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.outcome = errorCode.name();
+        }
+    }
+
+    /**
+     * Records the number of bytes transferred as payload of the request or response.
+     *
+     * @param bytes the number of bytes received or sent
+     */
+    static void bytes(long bytes) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.bytes = bytes;
+        }
+    }
+
+    /**
+     * Returns the outcome of the request of the current thread.
+     *
+     * @return <tt>OK</tt> or the name of the error code sent in response
+     */
+    static String getOutcome() {
+        RequestTrace trace = CURRENT.get();
+        return trace == null ? "OK" : trace.outcome;
+    }
+
+    /**
+     * Returns the number of bytes transferred as payload by the request of the current thread.
+     *
+     * @return the number of bytes received or sent
+     */
+    static long getBytes() {
+        RequestTrace trace = CURRENT.get();
+        return trace == null ? 0 : trace.bytes;
+    }
+
+    /**
+     * Returns the time spent in the given phase by the request of the current thread.
+     *
+     * @param phase the name of the phase
+     * @return the time spent in the phase in nanoseconds, or <b>0</b> if it has not been recorded
+     */
+    static long getDuration(String phase) {
+        RequestTrace trace = CURRENT.get();
+        if (trace == null) {
+            return 0;
+        }
+
+        int index = trace.phases.indexOf(phase);
+        return index < 0 ? 0 : trace.durations.get(index);
+    }
+
+    private void add(String phase, long nanos) {
+        int index = phases.indexOf(phase);
+        if (index >= 0) {
+            durations.set(index, durations.get(index) + nanos);
+        } else {
+            phases.add(phase);
+            durations.add(nanos);
+        }
+    }
+
+    /**
+     * Renders the phases recorded so far for the current thread.
+     *
+     * @return a short text listing all phases and their durations along with the allocated bytes, or <b>null</b> if
+     * no trace has been started
+     */
+    @Nullable
+    static String summarize() {
+        RequestTrace trace = CURRENT.get();
+        if (trace == null) {
+            return null;
+        }
+
+        List<String> parts = new ArrayList<>(trace.phases.size() + 1);
+        for (int i = 0; i < trace.phases.size(); i++) {
+            parts.add(Strings.apply("%s: %.1f ms",
+                                    trace.phases.get(i),
+                                    trace.durations.get(i) / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+        if (trace.allocatedBytesAtStart >= 0) {
+            parts.add("allocated: " + NLS.formatSize(trace.getAllocatedBytes() - trace.allocatedBytesAtStart));
+        }
+
+        return String.join(", ", parts);
+    }
+
+    /**
+     * Ends the trace of the current thread.
+     */
+    static void stop() {
+        CURRENT.remove();
+    }
+}
@@ -10,27 +10,28 @@ package ninja;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
-import com.google.common.io.BaseEncoding;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import jdk.jfr.Event;
 import ninja.errors.S3ErrorCode;
 import ninja.errors.S3ErrorSynthesizer;
+import ninja.events.MultipartEvent;
+import ninja.events.ObjectEvent;
+import ninja.events.SignatureEvent;
 import ninja.queries.S3QueryProcessor;
-import org.asynchttpclient.BoundRequestBuilder;
 import sirius.kernel.async.CallContext;
 import sirius.kernel.commons.Callback;
-import sirius.kernel.commons.Hasher;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Tuple;
 import sirius.kernel.commons.Value;
+import sirius.kernel.commons.Watch;
 import sirius.kernel.di.GlobalContext;
-import sirius.kernel.di.std.ConfigValue;
 import sirius.kernel.di.std.Part;
 import sirius.kernel.di.std.Register;
-import sirius.kernel.health.Counter;
 import sirius.kernel.health.Exceptions;
 import sirius.kernel.health.Log;
 import sirius.kernel.xml.Attribute;
@@ -43,31 +44,29 @@ import sirius.web.http.Response;
 import sirius.web.http.WebContext;
 import sirius.web.http.WebDispatcher;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.URL;
-import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.chrono.IsoChronology;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
-import java.util.Base64;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Properties;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.function.Consumer;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 
 import static ninja.Aws4HashCalculator.AWS_AUTH4_PATTERN;
@@ -82,10 +81,14 @@ public class S3Dispatcher implements WebDispatcher {
     private static final String UI_PATH = "ui";
     private static final String UI_PATH_PREFIX = "ui/";
 
-    private static final String TEMPORARY_PROPERTIES_FILENAME = "properties";
+    private static final int MAX_PART_NUMBER = 10000;
+    private static final int DEFAULT_MAX_PARTS = 1000;
 
     private static final String HTTP_HEADER_NAME_ETAG = "ETag";
+    private static final String HEADER_REQUEST_ID = "x-amz-request-id";
+    private static final String INTERNAL_HEADER_REQUEST_ID = "x-ninja-request-id";
     private static final String HTTP_HEADER_NAME_CONTENT_TYPE = "Content-Type";
+    private static final String PARAM_PART_NUMBER = "partNumber";
     private static final String CONTENT_TYPE_XML = "application/xml";
     private static final String RESPONSE_DISPLAY_NAME = "DisplayName";
     private static final String RESPONSE_BUCKET = "Bucket";
@@ -114,21 +117,35 @@ public class S3Dispatcher implements WebDispatcher {
     @Part
     private APILog log;
 
+    @Part
+    private AccessLog accessLog;
+
+    @Part
+    private OperationMetrics operationMetrics;
+
     @Part
     private AwsHashCalculator hashCalculator;
 
     @Part
     private S3ErrorSynthesizer errorSynthesizer;
 
-    @ConfigValue("storage.multipartDir")
-    private String multipartDir;
-
     @Part
     private AwsUpstream awsUpstream;
 
-    private final Set<String> multipartUploads = Collections.synchronizedSet(new TreeSet<>());
+    @Part
+    private UpstreamCache upstreamCache;
 
-    private final Counter uploadIdCounter = new Counter();
+    @Part
+    private UpstreamReconciler upstreamReconciler;
+
+    @Part
+    private ListingMetrics listingMetrics;
+
+    @Part
+    private MultipartUploads multipartUploads;
+
+    @Part
+    private MultipartCombiner multipartCombiner;
 
     /**
      * ISO 8601 date/time formatter.
@@ -209,19 +226,172 @@ public class S3Dispatcher implements WebDispatcher {
 
         InputStreamHandler handler = createInputStreamHandler(webContext);
         webContext.setContentHandler(handler);
-        return req -> writeObject(req, request.bucket, request.key, handler);
+        return req -> {
+            writeObject(req, request.bucket, request.key, handler);
+            recordOperation(req, request);
+        };
     }
 
     private InputStreamHandler createInputStreamHandler(WebContext webContext) {
-        if (aws4HashCalculator.supports(webContext)
+        String contentSha256 = webContext.getHeaderValue("x-amz-content-sha256").asString("");
+        if ((aws4HashCalculator.supports(webContext) || contentSha256.startsWith("STREAMING-"))
             && HttpMethod.PUT.equals(webContext.getRequest().method())
             && webContext.getHeader("x-amz-decoded-content-length") != null) {
-            return new SignedChunkHandler();
+            return createChunkHandler(webContext, contentSha256);
         } else {
             return new InputStreamHandler();
         }
     }
 
+    private SignedChunkHandler createChunkHandler(WebContext webContext, String contentSha256) {
+        ObjectChecksum checksum = createChecksum(webContext);
+        boolean signedChunks = Strings.areEqual(contentSha256, "STREAMING-AWS4-HMAC-SHA256-PAYLOAD")
+                               || Strings.areEqual(contentSha256, "STREAMING-AWS4-HMAC-SHA256-PAYLOAD-TRAILER");
+        ChunkSignatureVerifier verifier = signedChunks ? createChunkSignatureVerifier(webContext) : null;
+        SignedChunkHandler handler =
+                new SignedChunkHandler(verifier,
+                                       checksum,
+                                       ObjectChecksum.forHeader(webContext.getHeader("x-amz-trailer")) != null,
+                                       checksum == null ? null : webContext.getHeader(checksum.getHeaderName()));
+        if (signedChunks && verifier == null) {
+            handler.rejectAuthorization();
+        }
+        return handler;
+    }
+
+    /**
+     * Determines the additional checksum to compute for an upload.
+     * <p>
+     * The checksum is either announced as trailer, given upfront as <tt>x-amz-checksum-[algorithm]</tt> header or
+     * merely requested via <tt>x-amz-sdk-checksum-algorithm</tt>.
+     *
+     * @param webContext the context describing the current request
+     * @return the checksum to compute, or <b>null</b> if none was requested
+     */
+    @Nullable
+    private ObjectChecksum createChecksum(WebContext webContext) {
+        ObjectChecksum checksum = ObjectChecksum.forHeader(webContext.getHeader("x-amz-trailer"));
+        if (checksum != null) {
+            return checksum;
+        }
+
+        for (String name : webContext.getRequest().headers().names()) {
+            checksum = ObjectChecksum.forHeader(name);
+            if (checksum != null) {
+                return checksum;
+            }
+        }
+
+        return ObjectChecksum.forAlgorithm(webContext.getHeader("x-amz-sdk-checksum-algorithm"));
+    }
+
+    /**
+     * Determines the validated additional checksum of an upload and reports an error if it does not match the one
+     * given by the client.
+     * <p>
+     * Checksums of chunked uploads are computed and validated by the {@link SignedChunkHandler}, whereas all others
+     * are computed by the given writer.
+     *
+     * @param webContext the context describing the current request
+     * @param bucket     the bucket containing the object to upload
+     * @param id         name of the object to upload
+     * @param in         the stream the upload has been read from
+     * @param writer     the writer which stored the upload
+     * @return a tuple of the header name and the value of the checksum, an empty tuple if no checksum was requested,
+     * or <b>null</b> if an error has been reported
+     */
+    @Nullable
+    private Tuple<String, String> completeChecksum(WebContext webContext,
+                                                   Bucket bucket,
+                                                   String id,
+                                                   InputStreamHandler in,
+                                                   DigestingWriter writer) {
+        if (in instanceof SignedChunkHandler chunkHandler) {
+            return Tuple.create(chunkHandler.getChecksumHeaderName(), chunkHandler.getChecksum());
+        }
+
+        String checksumName = writer.getChecksumHeaderName();
+        if (checksumName == null) {
+            return Tuple.create();
+        }
+
+        String expectedChecksum = webContext.getHeader(checksumName);
+        if (expectedChecksum != null && !Strings.areEqual(expectedChecksum, writer.getChecksum())) {
+            signalObjectError(webContext,
+                              bucket.getName(),
+                              id,
+                              S3ErrorCode.BadDigest,
+                              Strings.apply("The %s you specified did not match the calculated checksum.",
+                                            checksumName));
+            return null;
+        }
+
+        return Tuple.create(checksumName, writer.getChecksum());
+    }
+
+    /**
+     * Creates the verifier for the chain of signatures carried by the chunks of a signed payload.
+     *
+     * @param webContext the request which transmits signed chunks
+     * @return the verifier seeded with the signature of the request, or <b>null</b> if the request carries no valid
+     * AWS4 authorization, in which case the upload is to be rejected
+     */
+    @Nullable
+    private ChunkSignatureVerifier createChunkSignatureVerifier(WebContext webContext) {
+        try {
+            return aws4HashCalculator.createChunkSignatureVerifier(webContext);
+        } catch (Exception exception) {
+            // a missing or malformed authorization is a client error, which is reported once the request is handled
+            Exceptions.ignore(exception);
+            return null;
+        }
+    }
+
+    /**
+     * Determines if the chunks of the given upload carried invalid signatures or checksums, or if the body was
+     * malformed or incomplete, and reports an error if so.
+     *
+     * @param webContext the context describing the current request
+     * @param bucket     the bucket containing the object to upload
+     * @param id         name of the object to upload
+     * @param in         the stream the upload has been read from
+     * @return <b>true</b> if the body is complete and its signatures and checksums are valid or have not been
+     * checked, <b>false</b> if an error has been reported
+     */
+    private boolean checkChunkedUpload(WebContext webContext, Bucket bucket, String id, InputStreamHandler in) {
+        if (!(in instanceof SignedChunkHandler chunkHandler)) {
+            return true;
+        }
+
+        if (chunkHandler.isIncomplete()) {
+            signalObjectError(webContext,
+                              bucket.getName(),
+                              id,
+                              S3ErrorCode.IncompleteBody,
+                              chunkHandler.getIncompleteReason());
+            return false;
+        }
+        if (chunkHandler.isSignatureMismatch()) {
+            signalObjectError(webContext,
+                              bucket.getName(),
+                              id,
+                              S3ErrorCode.SignatureDoesNotMatch,
+                              "The signature of a chunk does not match the data transmitted.");
+            return false;
+        }
+        if (chunkHandler.isChecksumMismatch()) {
+            signalObjectError(webContext,
+                              bucket.getName(),
+                              id,
+                              S3ErrorCode.BadDigest,
+                              Strings.apply("The %s you specified did not match the calculated checksum.",
+                                            chunkHandler.getChecksumHeaderName()));
+            return false;
+        }
+
+        return true;
+    }
+
     @Override
     public DispatchDecision dispatch(WebContext webContext) throws Exception {
         S3Request request = parseRequest(webContext);
@@ -230,6 +400,14 @@ public class S3Dispatcher implements WebDispatcher {
             return DispatchDecision.CONTINUE;
         }
 
+        DispatchDecision decision = dispatchRequest(webContext, request);
+        if (decision == DispatchDecision.DONE) {
+            recordOperation(webContext, request);
+        }
+        return decision;
+    }
+
+    private DispatchDecision dispatchRequest(WebContext webContext, S3Request request) throws Exception {
         if (Strings.isFilled(request.query)) {
             forwardQueryToProcessor(webContext, request);
             return DispatchDecision.DONE;
@@ -254,6 +432,134 @@ public class S3Dispatcher implements WebDispatcher {
         return DispatchDecision.DONE;
     }
 
+    private void recordOperation(WebContext webContext, S3Request request) {
+        operationMetrics.record(determineOperation(webContext, request),
+                                request.bucket,
+                                CallContext.getCurrent().getWatch().elapsed(TimeUnit.MICROSECONDS, false),
+                                HttpUtil.getContentLength(webContext.getRequest(), 0L));
+    }
+
+    /**
+     * Determines the S3 operation performed by the given request.
+     *
+     * @param webContext the context describing the current request
+     * @return the operation addressed by the request
+     */
+    public static S3Operation determineOperation(WebContext webContext) {
+        S3Request request = parseRequest(webContext);
+        if (request.uri.equals(UI_PATH) || request.uri.startsWith(UI_PATH_PREFIX)) {
+            return S3Operation.OTHER;
+        }
+
+        return determineOperation(webContext, request);
+    }
+
+    private static S3Operation determineOperation(WebContext webContext, S3Request request) {
+        HttpMethod method = webContext.getRequest().method();
+        if (Strings.isFilled(request.query)
+            && !Strings.areEqual(request.query, "uploads")
+            && !Strings.areEqual(request.query, "delete")) {
+            return switch (request.query) {
+                case "attributes" -> S3Operation.GET_OBJECT_ATTRIBUTES;
+                default -> S3Operation.OTHER;
+            };
+        }
+
+        if (Strings.isEmpty(request.bucket)) {
+            return S3Operation.LIST_BUCKETS;
+        }
+
+        if (Strings.isEmpty(request.key)) {
+            return determineBucketOperation(webContext, request, method);
+        }
+
+        return determineObjectOperation(webContext, method);
+    }
+
+    private static S3Operation determineBucketOperation(WebContext webContext, S3Request request, HttpMethod method) {
+        if (HttpMethod.POST.equals(method) && Strings.areEqual(request.query, "delete")) {
+            return S3Operation.DELETE_OBJECTS;
+        }
+        if (HttpMethod.GET.equals(method) && Strings.areEqual(request.query, "uploads")) {
+            return S3Operation.LIST_MULTIPART_UPLOADS;
+        }
+        if (HttpMethod.GET.equals(method)) {
+            return webContext.get("list-type").asInt(1) == 2 ?
+                   S3Operation.LIST_OBJECTS_V2 :
+                   S3Operation.LIST_OBJECTS_V1;
+        }
+        if (HttpMethod.HEAD.equals(method)) {
+            return S3Operation.HEAD_BUCKET;
+        }
+        if (HttpMethod.PUT.equals(method)) {
+            return S3Operation.CREATE_BUCKET;
+        }
+        if (HttpMethod.DELETE.equals(method)) {
+            return S3Operation.DELETE_BUCKET;
+        }
+
+        return S3Operation.OTHER;
+    }
+
+    private static S3Operation determineObjectOperation(WebContext webContext, HttpMethod method) {
+        boolean multipart = webContext.hasParameter("uploadId");
+        if (HttpMethod.GET.equals(method)) {
+            return multipart ? S3Operation.LIST_PARTS : S3Operation.GET_OBJECT;
+        }
+        if (HttpMethod.HEAD.equals(method)) {
+            return S3Operation.HEAD_OBJECT;
+        }
+        if (HttpMethod.DELETE.equals(method)) {
+            return multipart ? S3Operation.ABORT_MULTIPART_UPLOAD : S3Operation.DELETE_OBJECT;
+        }
+        if (HttpMethod.PUT.equals(method)) {
+            if (webContext.getRequest().headers().contains("x-amz-copy-source")) {
+                return S3Operation.COPY_OBJECT;
+            }
+            return multipart ? S3Operation.UPLOAD_PART : S3Operation.PUT_OBJECT;
+        }
+        if (HttpMethod.POST.equals(method)) {
+            if (webContext.hasParameter("uploads")) {
+                return S3Operation.CREATE_MULTIPART_UPLOAD;
+            }
+            return multipart ? S3Operation.COMPLETE_MULTIPART_UPLOAD : S3Operation.OTHER;
+        }
+
+        return S3Operation.OTHER;
+    }
+
+    /**
+     * Starts the response to an S3 request.
+     * <p>
+     * The response carries the id of the request as <tt>x-amz-request-id</tt>, which is also recorded in the
+     * {@link AccessLog}, so that log records can be matched to responses.
+     *
+     * @param webContext the request to respond to
+     * @return the response to the request
+     */
+    public static Response respondWith(WebContext webContext) {
+        return webContext.respondWith().addHeader(HEADER_REQUEST_ID, getRequestId(webContext));
+    }
+
+    /**
+     * Returns the id of an S3 request, which is assigned once it is first needed.
+     * <p>
+     * The id is kept as internal header of the request, as the request is handled by several threads if it has a
+     * body.
+     *
+     * @param webContext the request to identify
+     * @return the id of the request, made up of 16 hexadecimal digits
+     */
+    public static String getRequestId(WebContext webContext) {
+        HttpHeaders headers = webContext.getRequest().headers();
+        String requestId = headers.get(INTERNAL_HEADER_REQUEST_ID);
+        if (requestId == null) {
+            requestId = String.format("%016X", ThreadLocalRandom.current().nextLong());
+            headers.set(INTERNAL_HEADER_REQUEST_ID, requestId);
+        }
+        return requestId;
+    }
+
     /**
      * Returns the effective URI.
      * <p>
@@ -375,24 +681,52 @@ public class S3Dispatcher implements WebDispatcher {
                                    S3ErrorCode errorCode,
                                    String message) {
         if (HttpMethod.HEAD.equals(webContext.getRequest().method())) {
-            webContext.respondWith().status(errorCode.getHttpStatusCode());
+            respondWith(webContext).status(errorCode.getHttpStatusCode());
+            operationMetrics.recordError(determineOperation(webContext), bucket, errorCode);
+            RequestTrace.fail(errorCode);
         } else {
             errorSynthesizer.synthesiseError(webContext, bucket, key, errorCode, message);
         }
+        RequestTrace.mark("respond");
         log.log(webContext.getRequest().method().name(),
                 message + " - " + webContext.getRequestedURI(),
                 APILog.Result.ERROR,
-                CallContext.getCurrent().getWatch());
+                CallContext.getCurrent().getWatch(),
+                RequestTrace.summarize());
+        accessLog.record(webContext,
+                         errorCode.getHttpStatusCode().code(),
+                         errorCode.name(),
+                         -1,
+                         -1,
+                         CallContext.getCurrent().getWatch());
     }
 
     /**
      * Writes an API success entry to the log
      */
-    private void signalObjectSuccess(WebContext webContext) {
+    private void signalObjectSuccess(WebContext webContext, HttpResponseStatus status) {
+        signalObjectSuccess(webContext, status, -1, -1);
+    }
+
+    /**
+     * Writes an API success entry to the log
+     *
+     * @param webContext the context describing the current request
+     * @param status     the HTTP status sent in response
+     * @param bytesSent  the number of bytes of the response body, or <b>-1</b> if there is none or it is unknown
+     * @param objectSize the total size of the object concerned, or <b>-1</b> if it is unknown
+     */
+    private void signalObjectSuccess(WebContext webContext,
+                                     HttpResponseStatus status,
+                                     long bytesSent,
+                                     long objectSize) {
+        RequestTrace.mark("respond");
         log.log(webContext.getRequest().method().name(),
                 webContext.getRequestedURI(),
                 APILog.Result.OK,
-                CallContext.getCurrent().getWatch());
+                CallContext.getCurrent().getWatch(),
+                RequestTrace.summarize());
+        accessLog.record(webContext, status.code(), null, bytesSent, objectSize, CallContext.getCurrent().getWatch());
     }
 
     /**
@@ -405,7 +739,7 @@ public class S3Dispatcher implements WebDispatcher {
 
         if (HttpMethod.GET.equals(method)) {
             List<Bucket> buckets = storage.getBuckets();
-            Response response = webContext.respondWith();
+            Response response = respondWith(webContext);
 
             response.setHeader(HTTP_HEADER_NAME_CONTENT_TYPE, CONTENT_TYPE_XML);
 
@@ -446,7 +780,7 @@ public class S3Dispatcher implements WebDispatcher {
     private void bucket(WebContext webContext, String bucketName) {
         Bucket bucket = storage.getBucket(bucketName);
 
-        if (!objectCheckAuth(webContext, bucket, null)) {
+        if (!objectCheckAuth(webContext, bucket, null, null)) {
             return;
         }
 
@@ -454,8 +788,8 @@ public class S3Dispatcher implements WebDispatcher {
 
         if (HttpMethod.HEAD.equals(method)) {
             if (bucket.exists()) {
-                signalObjectSuccess(webContext);
-                webContext.respondWith().status(HttpResponseStatus.OK);
+                signalObjectSuccess(webContext, HttpResponseStatus.OK);
+                respondWith(webContext).status(HttpResponseStatus.OK);
             } else {
                 signalObjectError(webContext, bucketName, null, S3ErrorCode.NoSuchBucket, ERROR_BUCKET_DOES_NOT_EXIST);
             }
@@ -487,8 +821,8 @@ public class S3Dispatcher implements WebDispatcher {
                     return;
                 }
 
-                signalObjectSuccess(webContext);
-                webContext.respondWith().status(HttpResponseStatus.OK);
+                signalObjectSuccess(webContext, HttpResponseStatus.OK);
+                respondWith(webContext).status(HttpResponseStatus.OK);
             }
         } else if (HttpMethod.PUT.equals(method)) {
             if (bucket.exists()) {
@@ -500,7 +834,7 @@ public class S3Dispatcher implements WebDispatcher {
                 return;
             }
 
-            if (!bucket.create()) {
+            if (!storage.createBucket(bucket)) {
                 signalObjectError(webContext, bucketName, null, S3ErrorCode.InternalError, ERROR_FILE_SYSTEM_ACCESS);
                 return;
             }
@@ -512,8 +846,8 @@ public class S3Dispatcher implements WebDispatcher {
                 return;
             }
 
-            signalObjectSuccess(webContext);
-            webContext.respondWith().status(HttpResponseStatus.OK);
+            signalObjectSuccess(webContext, HttpResponseStatus.OK);
+            respondWith(webContext).status(HttpResponseStatus.OK);
         } else {
             throw new IllegalArgumentException(webContext.getRequest().method().name());
         }
@@ -529,12 +863,26 @@ public class S3Dispatcher implements WebDispatcher {
      * @throws IOException in case of IO errors and there like
      */
     private void readObject(WebContext webContext, String bucketName, String key) throws IOException {
+        S3Operation operation = determineObjectOperation(webContext, webContext.getRequest().method());
+        Event event = createObjectEvent(operation);
+        event.begin();
+        startTrace();
+        try {
+            readTracedObject(webContext, bucketName, key);
+        } finally {
+            commitObjectEvent(webContext, event, operation, bucketName, key);
+            RequestTrace.stop();
+        }
+    }
+
+    private void readTracedObject(WebContext webContext, String bucketName, String key) throws IOException {
         Bucket bucket = storage.getBucket(bucketName);
         String uploadId = webContext.get("uploadId").asString();
 
-        if (!checkObjectRequest(webContext, bucket, key)) {
+        if (!checkObjectRequest(webContext, bucket, key, null)) {
             return;
         }
+        RequestTrace.mark("auth");
 
         HttpMethod method = webContext.getRequest().method();
         if (HttpMethod.HEAD.equals(method)) {
@@ -547,7 +895,7 @@ public class S3Dispatcher implements WebDispatcher {
             }
         } else if (HttpMethod.DELETE.equals(method)) {
             if (Strings.isFilled(uploadId)) {
-                abortMultipartUpload(webContext, uploadId);
+                abortMultipartUpload(webContext, bucket, key, uploadId);
             } else {
                 deleteObject(webContext, bucket, key);
             }
@@ -567,20 +915,49 @@ public class S3Dispatcher implements WebDispatcher {
      */
     private void writeObject(WebContext webContext, String bucketName, String key, InputStreamHandler in)
             throws IOException {
+        S3Operation operation = determineObjectOperation(webContext, webContext.getRequest().method());
+        Event event = createObjectEvent(operation);
+        event.begin();
+        startTrace();
+        try {
+            writeTracedObject(webContext, bucketName, key, in);
+        } finally {
+            commitObjectEvent(webContext, event, operation, bucketName, key);
+            RequestTrace.stop();
+        }
+    }
+
+    private void writeTracedObject(WebContext webContext, String bucketName, String key, InputStreamHandler in)
+            throws IOException {
         Bucket bucket = storage.getBucket(bucketName);
         String uploadId = webContext.get("uploadId").asString();
 
-        if (!checkObjectRequest(webContext, bucket, key)) {
+        if (in instanceof SignedChunkHandler chunkHandler && chunkHandler.isAuthorizationRejected()) {
+            S3ErrorCode errorCode = Strings.isEmpty(webContext.getHeader(HttpHeaderNames.AUTHORIZATION)) ?
+                                    S3ErrorCode.AccessDenied :
+                                    S3ErrorCode.SignatureDoesNotMatch;
+            signalObjectError(webContext,
+                              bucketName,
+                              key,
+                              errorCode,
+                              "Signed chunks require a valid AWS4 authorization of the request.");
             return;
         }
 
+        // the signature of an upload with signed chunks has already been computed to verify the chunks
+        String precomputedHash = in instanceof SignedChunkHandler chunkHandler ? chunkHandler.getSeedSignature() : null;
+        if (!checkObjectRequest(webContext, bucket, key, precomputedHash)) {
+            return;
+        }
+        RequestTrace.mark("auth");
+
         HttpMethod method = webContext.getRequest().method();
         if (HttpMethod.PUT.equals(method)) {
             Value copy = webContext.getHeaderValue("x-amz-copy-source");
             if (copy.isFilled()) {
                 copyObject(webContext, bucket, key, copy.asString());
-            } else if (webContext.hasParameter("partNumber") && Strings.isFilled(uploadId)) {
-                multiObject(webContext, uploadId, webContext.get("partNumber").asString(), in);
+            } else if (webContext.hasParameter(PARAM_PART_NUMBER) && Strings.isFilled(uploadId)) {
+                multiObject(webContext, bucket, key, uploadId, webContext.get(PARAM_PART_NUMBER).asInt(0), in);
             } else {
                 putObject(webContext, bucket, key, in);
             }
@@ -595,18 +972,69 @@ public class S3Dispatcher implements WebDispatcher {
         }
     }
 
-    private boolean checkObjectRequest(WebContext webContext, Bucket bucket, String id) {
+    /**
+     * Creates the flight recorder event for the given object operation.
+     * <p>
+     * Unless the event is enabled in a running recording, beginning and committing it does nothing.
+     *
+     * @param operation the operation to record
+     * @return the event to record the operation with
+     */
+    private Event createObjectEvent(S3Operation operation) {
+        if (operation == S3Operation.UPLOAD_PART || operation == S3Operation.COMPLETE_MULTIPART_UPLOAD) {
+            return new MultipartEvent();
+        }
+        return new ObjectEvent();
+    }
+
+    private void commitObjectEvent(WebContext webContext,
+                                   Event event,
+                                   S3Operation operation,
+                                   String bucketName,
+                                   String key) {
+        if (!event.shouldCommit()) {
+            return;
+        }
+
+        if (event instanceof MultipartEvent multipartEvent) {
+            multipartEvent.operation = operation.getApiName();
+            multipartEvent.bucket = bucketName;
+            multipartEvent.keyLength = key.length();
+            multipartEvent.partNumber = webContext.get(PARAM_PART_NUMBER).asInt(0);
+            multipartEvent.bytes = RequestTrace.getBytes();
+            multipartEvent.outcome = RequestTrace.getOutcome();
+        } else if (event instanceof ObjectEvent objectEvent) {
+            objectEvent.operation = operation.getApiName();
+            objectEvent.bucket = bucketName;
+            objectEvent.keyLength = key.length();
+            objectEvent.bytes = RequestTrace.getBytes();
+            objectEvent.outcome = RequestTrace.getOutcome();
+        }
+        event.commit();
+    }
+
+    /**
+     * Starts tracing the phases of the current object request, which are attached to its entry in the {@link APILog}.
+     */
+    private void startTrace() {
+        RequestTrace.start(CallContext.getCurrent().getWatch().elapsed(TimeUnit.NANOSECONDS, false));
+    }
+
+    private boolean checkObjectRequest(WebContext webContext,
+                                       Bucket bucket,
+                                       String id,
+                                       @Nullable String precomputedHash) {
         if (Strings.isEmpty(id)) {
             signalObjectError(webContext, bucket.getName(), id, S3ErrorCode.NoSuchKey, "Please provide an object id.");
             return false;
         }
-        if (!objectCheckAuth(webContext, bucket, id)) {
+        if (!objectCheckAuth(webContext, bucket, id, precomputedHash)) {
             return false;
         }
 
         if (!bucket.exists()) {
             if (storage.isAutocreateBuckets()) {
-                if (!bucket.create()) {
+                if (!storage.createBucket(bucket)) {
                     signalObjectError(webContext,
                                       bucket.getName(),
                                       id,
@@ -626,12 +1054,37 @@ public class S3Dispatcher implements WebDispatcher {
         return true;
     }
 
-    private boolean objectCheckAuth(WebContext webContext, Bucket bucket, String key) {
+    /**
+     * Verifies the signature of the given request.
+     *
+     * @param webContext      the context describing the current request
+     * @param bucket          the bucket being accessed
+     * @param key             the key of the object being accessed, or <b>null</b> for bucket requests
+     * @param precomputedHash the signature which has already been computed for this request, or <b>null</b> if it
+     *                        is yet to be computed
+     * @return <b>true</b> if the request may proceed, <b>false</b> if an error has been reported
+     */
+    private boolean objectCheckAuth(WebContext webContext,
+                                    Bucket bucket,
+                                    String key,
+                                    @Nullable String precomputedHash) {
         String hash = getAuthHash(webContext);
         if (Strings.isFilled(hash)) {
-            String expectedHash = hashCalculator.computeHash(webContext, "");
-            String alternativeHash = hashCalculator.computeHash(webContext, "/s3");
-            if (!expectedHash.equals(hash) && !alternativeHash.equals(hash)) {
+            SignatureEvent event = new SignatureEvent();
+            event.begin();
+            // requests addressed via the "/s3" prefix have been signed including it
+            String pathPrefix = webContext.getRawRequestedURI().startsWith("/s3") ? "/s3" : "";
+            String expectedHash = precomputedHash != null ?
+                                  precomputedHash :
+                                  hashCalculator.computeHash(webContext, pathPrefix);
+            boolean matches = expectedHash.equals(hash);
+            if (event.shouldCommit()) {
+                event.bucket = bucket.getName();
+                event.keyLength = key == null ? 0 : key.length();
+                event.outcome = matches ? "OK" : S3ErrorCode.SignatureDoesNotMatch.name();
+                event.commit();
+            }
+            if (!matches) {
                 errorSynthesizer.synthesiseError(webContext,
                                                  bucket.getName(),
                                                  key,
@@ -640,10 +1093,18 @@ public class S3Dispatcher implements WebDispatcher {
                                                          "The computed request signature does not match the one provided. Check login credentials. (Expected: %s, Found: %s)",
                                                          expectedHash,
                                                          hash));
+                RequestTrace.mark("auth");
                 log.log(webContext.getRequest().method().name(),
                         webContext.getRequestedURI(),
                         APILog.Result.REJECTED,
-                        CallContext.getCurrent().getWatch());
+                        CallContext.getCurrent().getWatch(),
+                        RequestTrace.summarize());
+                accessLog.record(webContext,
+                                 S3ErrorCode.SignatureDoesNotMatch.getHttpStatusCode().code(),
+                                 S3ErrorCode.SignatureDoesNotMatch.name(),
+                                 -1,
+                                 -1,
+                                 CallContext.getCurrent().getWatch());
                 return false;
             }
         }
@@ -653,10 +1114,18 @@ public class S3Dispatcher implements WebDispatcher {
                                              key,
                                              S3ErrorCode.AccessDenied,
                                              "Authentication required");
+            RequestTrace.mark("auth");
             log.log(webContext.getRequest().method().name(),
                     webContext.getRequestedURI(),
                     APILog.Result.REJECTED,
-                    CallContext.getCurrent().getWatch());
+                    CallContext.getCurrent().getWatch(),
+                    RequestTrace.summarize());
+            accessLog.record(webContext,
+                             S3ErrorCode.AccessDenied.getHttpStatusCode().code(),
+                             S3ErrorCode.AccessDenied.name(),
+                             -1,
+                             -1,
+                             CallContext.getCurrent().getWatch());
             return false;
         }
 
@@ -685,10 +1154,12 @@ public class S3Dispatcher implements WebDispatcher {
         String marker = webContext.get("marker").asString();
         String prefix = webContext.get("prefix").asString();
 
-        Response response = webContext.respondWith();
+        Response response = respondWith(webContext);
         response.setHeader(HTTP_HEADER_NAME_CONTENT_TYPE, CONTENT_TYPE_XML);
 
-        bucket.outputObjectsV1(response.xml(), maxKeys, marker, prefix);
+        Watch watch = Watch.start();
+        int numberOfObjects = bucket.outputObjectsV1(response.xml(), maxKeys, marker, prefix);
+        listingMetrics.record(numberOfObjects, watch.elapsedMillis());
     }
 
     private void listObjectsV2(WebContext webContext, Bucket bucket) {
@@ -696,10 +1167,12 @@ public class S3Dispatcher implements WebDispatcher {
         String marker = webContext.get("start-after").asString();
         String prefix = webContext.get("prefix").asString();
 
-        Response response = webContext.respondWith();
+        Response response = respondWith(webContext);
         response.setHeader(HTTP_HEADER_NAME_CONTENT_TYPE, CONTENT_TYPE_XML);
 
-        bucket.outputObjectsV2(response.xml(), maxKeys, marker, prefix);
+        Watch watch = Watch.start();
+        int numberOfObjects = bucket.outputObjectsV2(response.xml(), maxKeys, marker, prefix);
+        listingMetrics.record(numberOfObjects, watch.elapsedMillis());
     }
 
     /**
@@ -712,23 +1185,13 @@ public class S3Dispatcher implements WebDispatcher {
     private void deleteObject(final WebContext webContext, final Bucket bucket, final String id) {
         StoredObject object = bucket.getObject(id);
         object.delete();
+        bucket.unindexObject(id);
 
-        // If it exists online, we mark it locally as "deleted"
-        if (awsUpstream.isConfigured() && awsUpstream.fetchClient().doesObjectExist(bucket.getName(), id)) {
-            try {
-                object.markDeleted();
-            } catch (IOException ignored) {
-                signalObjectError(webContext,
-                                  bucket.getName(),
-                                  id,
-                                  S3ErrorCode.InternalError,
-                                  Strings.apply("Error while marking file as deleted"));
-                return;
-            }
-        }
+        // objects which might exist upstream are hidden by a tombstone, the upstream instance is checked asynchronously
+        upstreamReconciler.objectDeleted(bucket, id);
 
-        webContext.respondWith().status(HttpResponseStatus.NO_CONTENT);
-        signalObjectSuccess(webContext);
+        respondWith(webContext).status(HttpResponseStatus.NO_CONTENT);
+        signalObjectSuccess(webContext, HttpResponseStatus.NO_CONTENT);
     }
 
     /**
@@ -745,37 +1208,68 @@ public class S3Dispatcher implements WebDispatcher {
             signalObjectError(webContext, bucket.getName(), id, S3ErrorCode.IncompleteBody, "No content posted");
             return;
         }
-        try (FileOutputStream out = new FileOutputStream(object.getFile())) {
-            ByteStreams.copy(inputStream, out);
+        DigestingWriter writer = new DigestingWriter(object.getFile());
+        if (!(inputStream instanceof SignedChunkHandler)) {
+            writer.withChecksum(createChecksum(webContext));
+        }
+        RequestTrace.mark("prepare");
+        writer.write(inputStream);
+        RequestTrace.bytes(writer.getLength());
+        if (!checkChunkedUpload(webContext, bucket, id, inputStream)) {
+            writer.discard();
+            return;
+        }
+        Tuple<String, String> checksum = completeChecksum(webContext, bucket, id, inputStream, writer);
+        if (checksum == null) {
+            writer.discard();
+            return;
         }
 
         Map<String, String> properties = parseUploadProperties(webContext);
-        byte[] hash = Hasher.md5().hashFile(object.getFile()).toHash();
-        String md5 = Base64.getEncoder().encodeToString(hash);
+        if (checksum.getSecond() != null) {
+            properties.keySet().removeIf(name -> name.equalsIgnoreCase(checksum.getFirst()));
+            properties.put(checksum.getFirst(), checksum.getSecond());
+        }
         String contentMd5 = properties.get("Content-MD5");
-        if (properties.containsKey("Content-MD5") && !md5.equals(contentMd5)) {
-            object.delete();
+        if (!writer.matchesContentMd5(contentMd5)) {
+            writer.discard();
             signalObjectError(webContext,
                               bucket.getName(),
                               id,
                               S3ErrorCode.BadDigest,
-                              Strings.apply("Invalid MD5 checksum (Input: %s, Expected: %s)", contentMd5, md5));
+                              Strings.apply("Invalid MD5 checksum (Input: %s, Expected: %s)",
+                                            contentMd5,
+                                            writer.getContentMd5()));
             return;
         }
-        String etag = BaseEncoding.base16().encode(hash).toLowerCase();
+        RequestTrace.mark("verify");
+        writer.commit();
+        object.discardLayout();
+        RequestTrace.mark("commit");
+
+        String etag = writer.getETag();
         properties.put(HTTP_HEADER_NAME_ETAG, etag);
         object.setProperties(properties);
+        bucket.indexObject(id);
+        RequestTrace.mark("properties");
 
-        Response response = webContext.respondWith();
+        Response response = respondWith(webContext);
+        if (checksum.getSecond() != null) {
+            response.addHeader(checksum.getFirst(), checksum.getSecond());
+        }
         response.addHeader(HTTP_HEADER_NAME_ETAG, etag(etag)).status(HttpResponseStatus.OK);
         response.addHeader(HttpHeaderNames.ACCESS_CONTROL_EXPOSE_HEADERS, HTTP_HEADER_NAME_ETAG);
-        signalObjectSuccess(webContext);
+        signalObjectSuccess(webContext, HttpResponseStatus.OK, -1, writer.getLength());
     }
 
     private Map<String, String> parseUploadProperties(WebContext webContext) {
         Map<String, String> properties = Maps.newTreeMap();
         for (String name : webContext.getRequest().headers().names()) {
             String nameLower = name.toLowerCase();
+            if ("x-amz-trailer".equals(nameLower)) {
+                // the checksum announced as trailer is stored under its own name once it has been validated
+                continue;
+            }
             if (nameLower.startsWith("x-amz-") || "content-md5".equals(nameLower) || "content-type".equals(nameLower)) {
                 properties.put(name, webContext.getHeader(name));
             }
@@ -833,15 +1327,21 @@ public class S3Dispatcher implements WebDispatcher {
         }
 
         StoredObject object = bucket.getObject(key);
-        Files.copy(sourceObject.getFile(), object.getFile());
-        if (sourceObject.getPropertiesFile().exists()) {
-            Files.copy(sourceObject.getPropertiesFile(), object.getPropertiesFile());
+        DigestingWriter writer = new DigestingWriter(object.getFile());
+        try (InputStream in = sourceObject.openInputStream()) {
+            writer.write(in).commit();
         }
+        object.discardLayout();
 
-        String etag = BaseEncoding.base16().encode(Hasher.md5().hashFile(object.getFile()).toHash()).toLowerCase();
+        // the properties of the destination are always replaced, and the copy is a plain object with its own ETag
+        String etag = writer.getETag();
+        Map<String, String> properties = new TreeMap<>(sourceObject.getProperties());
+        properties.put(HTTP_HEADER_NAME_ETAG, etag);
+        object.setProperties(properties);
+        bucket.indexObject(key);
 
         XMLStructuredOutput structuredOutput =
-                webContext.respondWith().addHeader(HTTP_HEADER_NAME_ETAG, etag(etag)).xml();
+                respondWith(webContext).addHeader(HTTP_HEADER_NAME_ETAG, etag(etag)).xml();
         structuredOutput.beginOutput("CopyObjectResult");
         structuredOutput.beginObject("LastModified");
         structuredOutput.text(ISO8601_INSTANT.format(object.getLastModifiedInstant()));
@@ -850,11 +1350,14 @@ public class S3Dispatcher implements WebDispatcher {
         structuredOutput.text(etag(etag));
         structuredOutput.endObject();
         structuredOutput.endOutput();
-        signalObjectSuccess(webContext);
+        signalObjectSuccess(webContext, HttpResponseStatus.OK, -1, object.getSizeBytes());
     }
 
     /**
      * Handles GET /bucket/id
+     * <p>
+     * Supports fetching a part of the object, either via a <tt>Range</tt> header containing one or more ranges or via
+     * the <tt>partNumber</tt> parameter. Also, conditional requests are answered, see {@link ConditionalRequest}.
      *
      * @param webContext the context describing the current request
      * @param bucket     the bucket containing the object to download
@@ -862,11 +1365,11 @@ public class S3Dispatcher implements WebDispatcher {
      */
     private void getObject(WebContext webContext, Bucket bucket, String id, boolean sendFile) throws IOException {
         StoredObject object = bucket.getObject(id);
-        if (!object.exists() && !object.isMarkedDeleted() && awsUpstream.isConfigured()) {
-            URL fetchURL = awsUpstream.generateGetObjectURL(bucket, object, sendFile);
-            Consumer<BoundRequestBuilder> requestTuner =
-                    requestBuilder -> requestBuilder.setMethod(sendFile ? "GET" : "HEAD");
-            webContext.enableTiming(null).respondWith().tunnel(fetchURL.toString(), requestTuner, null, null);
+        if (object.exists() && upstreamCache.isEnabled() && !upstreamCache.revalidate(bucket, object)) {
+            object = bucket.getObject(id);
+        }
+        if (!object.exists() && awsUpstream.isConfigured() && !bucket.hasTombstone(id)) {
+            fetchUpstreamObject(webContext, bucket, object, sendFile);
             return;
         }
 
@@ -875,10 +1378,67 @@ public class S3Dispatcher implements WebDispatcher {
             return;
         }
 
-        Response response = webContext.respondWith();
+        // evaluate conditional requests based on the cached metadata, so that the files of the object remain untouched
+        ObjectMetadata metadata = object.getMetadata();
+        ConditionalRequest.Outcome outcome = ConditionalRequest.evaluate(webContext, metadata);
+        RequestTrace.mark("metadata");
+        if (outcome == ConditionalRequest.Outcome.PRECONDITION_FAILED) {
+            signalObjectError(webContext,
+                              bucket.getName(),
+                              id,
+                              S3ErrorCode.PreconditionFailed,
+                              "At least one of the preconditions you specified did not hold");
+            return;
+        }
+        if (outcome == ConditionalRequest.Outcome.NOT_MODIFIED) {
+            respondWith(webContext)
+                      .addHeader(HTTP_HEADER_NAME_ETAG, etag(metadata.getETag()))
+                      .addHeader(HttpHeaderNames.LAST_MODIFIED,
+                                 Outcall.RFC2616_INSTANT.format(metadata.getLastModified()))
+                      .status(HttpResponseStatus.NOT_MODIFIED);
+            signalObjectSuccess(webContext, HttpResponseStatus.NOT_MODIFIED);
+            return;
+        }
+
+        List<ByteRange> ranges;
+        List<Long> partSizes = null;
+        if (webContext.hasParameter(PARAM_PART_NUMBER)) {
+            partSizes = object.getPartSizes();
+            int partNumber = webContext.get(PARAM_PART_NUMBER).asInt(0);
+            if (partNumber < 1 || partNumber > partSizes.size()) {
+                signalObjectError(webContext,
+                                  bucket.getName(),
+                                  id,
+                                  S3ErrorCode.InvalidPartNumber,
+                                  "The requested partnumber is not satisfiable");
+                return;
+            }
+            ranges = List.of(ByteRange.ofPart(partSizes, partNumber));
+        } else {
+            String range = webContext.getHeaderValue(HttpHeaderNames.RANGE).asString();
+            ranges = ByteRange.parse(range, object.getSizeBytes());
+            if (ranges != null && ranges.isEmpty()) {
+                signalObjectError(webContext,
+                                  bucket.getName(),
+                                  id,
+                                  S3ErrorCode.InvalidRange,
+                                  "The requested range is not satisfiable");
+                return;
+            }
+        }
+
+        Response response = respondWith(webContext);
         Map<String, String> properties = object.getProperties();
+        // checksums cover the whole object and are only reported if requested
+        boolean includeChecksums = ranges == null
+                                   && "ENABLED".equalsIgnoreCase(webContext.getHeader("x-amz-checksum-mode"));
         for (Map.Entry<String, String> entry : properties.entrySet()) {
-            response.addHeader(entry.getKey(), entry.getValue());
+            if (StoredObject.UPSTREAM_VALIDATED_PROPERTY.equals(entry.getKey())) {
+                continue;
+            }
+            if (includeChecksums || !ObjectChecksum.isChecksumHeader(entry.getKey())) {
+                response.addHeader(entry.getKey(), entry.getValue());
+            }
         }
         for (Map.Entry<String, String> entry : getOverridenHeaders(webContext).entrySet()) {
             response.setHeader(entry.getKey(), entry.getValue());
@@ -887,14 +1447,20 @@ public class S3Dispatcher implements WebDispatcher {
         // check for the ETAG, set it if necessary, and add it to the response
         String etag = properties.get(HTTP_HEADER_NAME_ETAG);
         if (Strings.isEmpty(etag)) {
-            etag = BaseEncoding.base16().encode(Hasher.md5().hashFile(object.getFile()).toHash()).toLowerCase();
-            properties.put(HTTP_HEADER_NAME_ETAG, etag);
-            object.setProperties(properties);
+            etag = object.getETag();
         }
         response.addHeader(HTTP_HEADER_NAME_ETAG, etag(etag.toLowerCase()));
         response.addHeader(HttpHeaderNames.ACCESS_CONTROL_EXPOSE_HEADERS, HTTP_HEADER_NAME_ETAG);
+        response.setHeader(HttpHeaderNames.ACCEPT_RANGES, "bytes");
+        if (partSizes != null) {
+            response.setHeader("x-amz-mp-parts-count", String.valueOf(partSizes.size()));
+        }
 
-        if (sendFile) {
+        if (ranges != null) {
+            sendRanges(webContext, response, object, determineContentType(object, properties), ranges, sendFile);
+        } else if (sendFile && object.isComposite()) {
+            sendSegments(response, object, properties);
+        } else if (sendFile) {
             response.file(object.getFile());
         } else {
             String contentType = MimeHelper.guessMimeType(object.getFile().getName());
@@ -904,7 +1470,164 @@ public class S3Dispatcher implements WebDispatcher {
             response.addHeader(HttpHeaderNames.CONTENT_LENGTH, object.getFile().length());
             response.status(HttpResponseStatus.OK);
         }
-        signalObjectSuccess(webContext);
+        long bytesOut = -1;
+        if (sendFile) {
+            bytesOut = computeBytesOut(object, ranges);
+            operationMetrics.recordBytesOut(S3Operation.GET_OBJECT, bucket.getName(), bytesOut);
+            RequestTrace.bytes(bytesOut);
+        }
+        signalObjectSuccess(webContext,
+                            ranges == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT,
+                            bytesOut,
+                            object.getSizeBytes());
+    }
+
+    private long computeBytesOut(StoredObject object, @Nullable List<ByteRange> ranges) {
+        if (ranges == null) {
+            return object.getSizeBytes();
+        }
+
+        long bytesOut = 0;
+        for (ByteRange range : ranges) {
+            bytesOut += range.getLength();
+        }
+        return bytesOut;
+    }
+
+    private String determineContentType(StoredObject object, Map<String, String> properties) {
+        return properties.entrySet()
+                         .stream()
+                         .filter(entry -> HTTP_HEADER_NAME_CONTENT_TYPE.equalsIgnoreCase(entry.getKey()))
+                         .map(Map.Entry::getValue)
+                         .findFirst()
+                         .orElseGet(() -> MimeHelper.guessMimeType(object.getKey()));
+    }
+
+    private void sendSegments(Response response, StoredObject object, Map<String, String> properties)
+            throws IOException {
+        response.setHeader(HttpHeaderNames.LAST_MODIFIED,
+                           Outcall.RFC2616_INSTANT.format(object.getLastModifiedInstant()));
+        response.setHeader(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(object.getSizeBytes()));
+        try (OutputStream out = response.outputStream(HttpResponseStatus.OK, determineContentType(object, properties));
+             WritableByteChannel channel = Channels.newChannel(out)) {
+            object.transferTo(0, object.getSizeBytes(), channel);
+        }
+    }
+
+    /**
+     * Serves an object which is missing locally from the upstream instance.
+     * <p>
+     * Complete objects are stored locally while being sent if the {@link UpstreamCache} is enabled. Concurrent requests
+     * for the same object wait for the first one and are then served locally. All other requests are tunneled.
+     */
+    private void fetchUpstreamObject(WebContext webContext, Bucket bucket, StoredObject object, boolean sendFile)
+            throws IOException {
+        upstreamReconciler.forget(bucket, object.getKey());
+        boolean completeObject = webContext.getHeaderValue(HttpHeaderNames.RANGE).isEmptyString()
+                                 && !webContext.hasParameter(PARAM_PART_NUMBER);
+        if (!upstreamCache.isEnabled()) {
+            awsUpstream.tunnelGetObject(webContext, bucket, object, sendFile);
+            return;
+        }
+        if (!sendFile || !completeObject) {
+            if (upstreamCache.awaitRunningFetch(bucket, object)) {
+                getObject(webContext, bucket, object.getKey(), sendFile);
+            } else {
+                awsUpstream.tunnelGetObject(webContext, bucket, object, sendFile);
+            }
+            return;
+        }
+
+        switch (upstreamCache.readThrough(webContext, bucket, object)) {
+            case SENT -> signalObjectSuccess(webContext,
+                                             HttpResponseStatus.OK,
+                                             RequestTrace.getBytes(),
+                                             RequestTrace.getBytes());
+            case STORED -> getObject(webContext, bucket, object.getKey(), sendFile);
+            case NOT_FOUND -> signalObjectError(webContext,
+                                                bucket.getName(),
+                                                object.getKey(),
+                                                S3ErrorCode.NoSuchKey,
+                                                "Object does not exist");
+        }
+    }
+
+    /**
+     * Sends the given ranges of the object as <tt>206 Partial Content</tt>.
+     * <p>
+     * A single range of a plain object is served by the file response of sirius, which hands the file region to netty,
+     * so that the kernel copies it to the socket. Therefore, the range is passed on as normalized <tt>Range</tt>
+     * header, which also covers ranges requested via <tt>partNumber</tt>.
+     * <p>
+     * Only ranges of composite objects and multiple ranges, which are sent as <tt>multipart/byteranges</tt>, are
+     * copied through the response stream, as they interleave several files or generated part headers. The data is
+     * still read by the file channels of the object and never buffered as a whole, but it is copied once in user space.
+     */
+    private void sendRanges(WebContext webContext,
+                            Response response,
+                            StoredObject object,
+                            String contentType,
+                            List<ByteRange> ranges,
+                            boolean sendContent) throws IOException {
+        long totalLength = object.getSizeBytes();
+        if (ranges.size() == 1 && sendContent && !object.isComposite()) {
+            ByteRange range = ranges.get(0);
+            webContext.getRequest()
+                      .headers()
+                      .set(HttpHeaderNames.RANGE, "bytes=" + range.getFirst() + "-" + range.getLast());
+            response.setHeader(HttpHeaderNames.CONTENT_TYPE, contentType);
+            response.file(object.getFile());
+            return;
+        }
+
+        response.setHeader(HttpHeaderNames.LAST_MODIFIED,
+                           Outcall.RFC2616_INSTANT.format(object.getLastModifiedInstant()));
+
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setHeader(HttpHeaderNames.CONTENT_RANGE, range.toContentRange(totalLength));
+            response.setHeader(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(range.getLength()));
+            response.setHeader(HttpHeaderNames.CONTENT_TYPE, contentType);
+            if (!sendContent) {
+                response.status(HttpResponseStatus.PARTIAL_CONTENT);
+                return;
+            }
+            try (OutputStream out = response.outputStream(HttpResponseStatus.PARTIAL_CONTENT, contentType);
+                 WritableByteChannel channel = Channels.newChannel(out)) {
+                object.transferTo(range.getFirst(), range.getLength(), channel);
+            }
+            return;
+        }
+
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = Strings.apply("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+                                              boundary,
+                                              contentType,
+                                              range.toContentRange(totalLength)).getBytes(StandardCharsets.UTF_8);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range.getLength();
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        contentLength += trailer.length;
+
+        String multipartContentType = "multipart/byteranges; boundary=" + boundary;
+        response.setHeader(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(contentLength));
+        response.setHeader(HttpHeaderNames.CONTENT_TYPE, multipartContentType);
+        if (!sendContent) {
+            response.status(HttpResponseStatus.PARTIAL_CONTENT);
+            return;
+        }
+        try (OutputStream out = response.outputStream(HttpResponseStatus.PARTIAL_CONTENT, multipartContentType);
+             WritableByteChannel channel = Channels.newChannel(out)) {
+            for (int index = 0; index < ranges.size(); index++) {
+                out.write(partHeaders.get(index));
+                object.transferTo(ranges.get(index).getFirst(), ranges.get(index).getLength(), channel);
+            }
+            out.write(trailer);
+        }
     }
 
     /**
@@ -915,11 +1638,15 @@ public class S3Dispatcher implements WebDispatcher {
      * @param id         name of the object to upload
      */
     private void startMultipartUpload(WebContext webContext, Bucket bucket, String id) {
-        Response response = webContext.respondWith();
+        Response response = respondWith(webContext);
 
         Map<String, String> properties = Maps.newTreeMap();
         for (String name : webContext.getRequest().headers().names()) {
             String nameLower = name.toLowerCase();
+            if ("x-amz-trailer".equals(nameLower)) {
+                // the checksum announced as trailer is stored under its own name once it has been validated
+                continue;
+            }
             if (nameLower.startsWith("x-amz-") || "content-md5".equals(nameLower) || "content-type".equals(nameLower)) {
                 properties.put(name, webContext.getHeader(name));
                 response.addHeader(name, webContext.getHeader(name));
@@ -927,66 +1654,124 @@ public class S3Dispatcher implements WebDispatcher {
         }
         response.setHeader(HTTP_HEADER_NAME_CONTENT_TYPE, CONTENT_TYPE_XML);
 
-        String uploadId = String.valueOf(uploadIdCounter.inc());
-        multipartUploads.add(uploadId);
-
-        getUploadDir(uploadId).mkdirs();
-
-        storePropertiesInUploadDir(properties, uploadId);
+        MultipartUpload upload;
+        try {
+            upload = multipartUploads.create(bucket, id, properties);
+        } catch (IOException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+            errorSynthesizer.synthesiseError(webContext,
+                                             bucket.getName(),
+                                             id,
+                                             S3ErrorCode.InternalError,
+                                             ERROR_FILE_SYSTEM_ACCESS);
+            return;
+        }
 
         XMLStructuredOutput out = response.xml();
         out.beginOutput("InitiateMultipartUploadResult");
         out.property(RESPONSE_BUCKET, bucket.getName());
         out.property("Key", id);
-        out.property("UploadId", uploadId);
+        out.property("UploadId", upload.getUploadId());
         out.endOutput();
+        signalObjectSuccess(webContext, HttpResponseStatus.OK);
     }
 
-    private void storePropertiesInUploadDir(Map<String, String> properties, String uploadId) {
-        Properties clonedProperties = new Properties();
-        properties.forEach(clonedProperties::setProperty);
-
-        try (FileOutputStream outputStream = new FileOutputStream(new File(getUploadDir(uploadId),
-                                                                           TEMPORARY_PROPERTIES_FILENAME))) {
-            clonedProperties.store(outputStream, "");
-        } catch (IOException exception) {
-            Exceptions.handle(exception);
+    /**
+     * Fetches the pending multipart upload with the given id, making sure that it targets the given object.
+     * <p>
+     * If there is no such upload, an error is reported and <b>null</b> is returned.
+     */
+    @Nullable
+    private MultipartUpload fetchMultipartUpload(WebContext webContext, Bucket bucket, String id, String uploadId) {
+        MultipartUpload upload = multipartUploads.getUpload(uploadId);
+        if (upload == null || !upload.belongsTo(bucket, id)) {
+            signalObjectError(webContext,
+                              bucket.getName(),
+                              id,
+                              S3ErrorCode.NoSuchUpload,
+                              ERROR_MULTIPART_UPLOAD_DOES_NOT_EXIST);
+            return null;
         }
+
+        return upload;
     }
 
     /**
      * Handles PUT /bucket/id?uploadId=X&partNumber=Y
      *
      * @param webContext the context describing the current request
+     * @param bucket     the bucket containing the object to upload
+     * @param id         name of the object to upload
      * @param uploadId   the multipart upload this part belongs to
      * @param partNumber the number of this part in the complete upload
      * @param part       input stream with the content of this part
      */
-    private void multiObject(WebContext webContext, String uploadId, String partNumber, InputStreamHandler part) {
-        if (!multipartUploads.contains(uploadId)) {
+    private void multiObject(WebContext webContext,
+                             Bucket bucket,
+                             String id,
+                             String uploadId,
+                             int partNumber,
+                             InputStreamHandler part) {
+        MultipartUpload upload = fetchMultipartUpload(webContext, bucket, id, uploadId);
+        if (upload == null) {
+            return;
+        }
+
+        if (partNumber < 1 || partNumber > MAX_PART_NUMBER) {
             errorSynthesizer.synthesiseError(webContext,
-                                             null,
-                                             null,
-                                             S3ErrorCode.NoSuchUpload,
-                                             ERROR_MULTIPART_UPLOAD_DOES_NOT_EXIST);
+                                             bucket.getName(),
+                                             id,
+                                             S3ErrorCode.InvalidArgument,
+                                             Strings.apply("Part number must be an integer between 1 and %s",
+                                                           MAX_PART_NUMBER));
             return;
         }
 
         try {
-            File partFile = new File(getUploadDir(uploadId), partNumber);
-            partFile.deleteOnExit();
-            Files.touch(partFile);
-
-            try (FileOutputStream out = new FileOutputStream(partFile)) {
-                ByteStreams.copy(part, out);
+            DigestingWriter writer = new DigestingWriter(upload.getPartFile(partNumber));
+            if (!(part instanceof SignedChunkHandler)) {
+                writer.withChecksum(createChecksum(webContext));
             }
+            writer.write(part);
+            RequestTrace.bytes(writer.getLength());
             part.close();
+            if (!checkChunkedUpload(webContext, bucket, id, part)) {
+                writer.discard();
+                return;
+            }
+            Tuple<String, String> checksum = completeChecksum(webContext, bucket, id, part, writer);
+            if (checksum == null) {
+                writer.discard();
+                return;
+            }
 
-            String etag = BaseEncoding.base16().encode(Hasher.md5().hashFile(partFile).toHash()).toLowerCase();
-            webContext.respondWith()
-                      .setHeader(HTTP_HEADER_NAME_ETAG, etag)
-                      .addHeader(HttpHeaderNames.ACCESS_CONTROL_EXPOSE_HEADERS, HTTP_HEADER_NAME_ETAG)
-                      .status(HttpResponseStatus.OK);
+            String contentMd5 = webContext.getHeader("Content-MD5");
+            if (!writer.matchesContentMd5(contentMd5)) {
+                writer.discard();
+                errorSynthesizer.synthesiseError(webContext,
+                                                 bucket.getName(),
+                                                 id,
+                                                 S3ErrorCode.BadDigest,
+                                                 Strings.apply("Invalid MD5 checksum (Input: %s, Expected: %s)",
+                                                               contentMd5,
+                                                               writer.getContentMd5()));
+                return;
+            }
+            writer.commit();
+
+            String etag = upload.recordPart(partNumber,
+                                            writer.getLength(),
+                                            writer.getETag(),
+                                            checksum.getFirst(),
+                                            checksum.getSecond()).getETag();
+            Response response = respondWith(webContext);
+            if (checksum.getSecond() != null) {
+                response.setHeader(checksum.getFirst(), checksum.getSecond());
+            }
+            response.setHeader(HTTP_HEADER_NAME_ETAG, etag)
+                    .addHeader(HttpHeaderNames.ACCESS_CONTROL_EXPOSE_HEADERS, HTTP_HEADER_NAME_ETAG)
+                    .status(HttpResponseStatus.OK);
+            signalObjectSuccess(webContext, HttpResponseStatus.OK, -1, writer.getLength());
         } catch (IOException exception) {
             errorSynthesizer.synthesiseError(webContext,
                                              null,
@@ -1010,21 +1795,17 @@ public class S3Dispatcher implements WebDispatcher {
                                          String id,
                                          final String uploadId,
                                          InputStreamHandler in) {
-        if (!multipartUploads.remove(uploadId)) {
-            errorSynthesizer.synthesiseError(webContext,
-                                             null,
-                                             null,
-                                             S3ErrorCode.NoSuchUpload,
-                                             ERROR_MULTIPART_UPLOAD_DOES_NOT_EXIST);
+        MultipartUpload upload = fetchMultipartUpload(webContext, bucket, id, uploadId);
+        if (upload == null) {
             return;
         }
 
-        final Map<Integer, File> parts = new HashMap<>();
+        final Map<Integer, String> requestedParts = new TreeMap<>();
 
         XMLReader reader = new XMLReader();
         reader.addHandler("Part", part -> {
             int number = part.queryValue("PartNumber").asInt(0);
-            parts.put(number, new File(getUploadDir(uploadId), String.valueOf(number)));
+            requestedParts.put(number, part.queryValue(HTTP_HEADER_NAME_ETAG).asString());
         });
         try {
             reader.parse(in);
@@ -1032,92 +1813,110 @@ public class S3Dispatcher implements WebDispatcher {
             Exceptions.handle(exception);
         }
 
-        File file = combineParts(id,
-                                 uploadId,
-                                 parts.entrySet()
-                                      .stream()
-                                      .sorted(Map.Entry.comparingByKey())
-                                      .map(Map.Entry::getValue)
-                                      .toList());
+        List<MultipartUpload.Part> parts = new ArrayList<>(requestedParts.size());
+        for (Map.Entry<Integer, String> requestedPart : requestedParts.entrySet()) {
+            MultipartUpload.Part part = upload.getPart(requestedPart.getKey());
+            String requestedETag = Strings.isFilled(requestedPart.getValue()) ?
+                                   requestedPart.getValue().replace("\"", "") :
+                                   null;
+            if (part == null || (requestedETag != null && !requestedETag.equalsIgnoreCase(part.getETag()))) {
+                errorSynthesizer.synthesiseError(webContext,
+                                                 bucket.getName(),
+                                                 id,
+                                                 S3ErrorCode.InvalidPart,
+                                                 Strings.apply("Part %s was not uploaded or its ETag does not match",
+                                                               requestedPart.getKey()));
+                return;
+            }
+            parts.add(part);
+        }
 
-        file.deleteOnExit();
-        if (!file.exists()) {
+        if (parts.isEmpty()) {
             errorSynthesizer.synthesiseError(webContext,
-                                             null,
-                                             null,
-                                             S3ErrorCode.NoSuchUpload,
-                                             "Multipart File does not exist");
+                                             bucket.getName(),
+                                             id,
+                                             S3ErrorCode.InvalidRequest,
+                                             "You must specify at least one part");
+            return;
+        }
+
+        // claim the upload so that concurrent requests cannot complete it twice
+        if (multipartUploads.remove(uploadId) == null) {
+            signalObjectError(webContext, bucket.getName(), id, S3ErrorCode.NoSuchUpload, "Upload does not exist");
             return;
         }
+
+        StoredObject object = bucket.getObject(id);
+        boolean completed = false;
         try {
-            StoredObject object = bucket.getObject(id);
-            Files.move(file, object.getFile());
+            multipartCombiner.complete(upload, parts, object);
 
-            commitPropertiesFromUploadDir(uploadId, object);
+            commitPropertiesFromUploadDir(upload, object);
 
-            delete(getUploadDir(uploadId));
+            multipartUploads.delete(upload);
+            completed = true;
 
-            String etag = Hasher.md5().hashFile(object.getFile()).toHexString();
+            String etag = MultipartCombiner.computeETag(parts);
+            Tuple<String, String> checksum = computeCompositeChecksum(parts);
 
-            // update ETAG of the underlying object
-            Map<String, String> properties = object.getProperties();
+            // update ETAG and checksum of the underlying object
+            Map<String, String> properties = new TreeMap<>(object.getProperties());
             properties.put(HTTP_HEADER_NAME_ETAG, etag);
+            if (checksum != null) {
+                properties.put(checksum.getFirst(), checksum.getSecond());
+            }
             object.setProperties(properties);
+            bucket.indexObject(id);
 
-            XMLStructuredOutput out = webContext.respondWith().xml();
+            XMLStructuredOutput out = respondWith(webContext).xml();
             out.beginOutput("CompleteMultipartUploadResult");
             out.property("Location", "");
             out.property(RESPONSE_BUCKET, bucket.getName());
             out.property("Key", id);
-            out.property(HTTP_HEADER_NAME_ETAG, etag);
+            out.property(HTTP_HEADER_NAME_ETAG, etag(etag));
+            if (checksum != null) {
+                out.property(ObjectChecksum.toElementName(checksum.getFirst()), checksum.getSecond());
+            }
             out.endOutput();
+            signalObjectSuccess(webContext, HttpResponseStatus.OK, -1, object.getSizeBytes());
         } catch (IOException exception) {
-            Exceptions.ignore(exception);
             errorSynthesizer.synthesiseError(webContext,
-                                             null,
-                                             null,
+                                             bucket.getName(),
+                                             id,
                                              S3ErrorCode.InternalError,
-                                             "Could not build response");
-        }
-    }
-
-    private void commitPropertiesFromUploadDir(String uploadId, StoredObject object) throws IOException {
-        File propertiesFile = new File(getUploadDir(uploadId), TEMPORARY_PROPERTIES_FILENAME);
-        if (propertiesFile.exists()) {
-            Files.move(propertiesFile, object.getPropertiesFile());
+                                             Exceptions.handle(Storage.LOG, exception).getMessage());
+        } finally {
+            // an upload which could not be combined remains pending, so that it can be retried or aborted
+            if (!completed) {
+                multipartUploads.reinstate(upload);
+            }
         }
     }
 
-    private File getUploadDir(String uploadId) {
-        return new File(multipartDir + PATH_DELIMITER + uploadId);
-    }
-
-    private File combineParts(String id, String uploadId, List<File> parts) {
-        File file = new File(getUploadDir(uploadId), StoredObject.encodeKey(id));
-
-        try {
-            if (!file.createNewFile()) {
-                Storage.LOG.WARN("Failed to create multipart result file %s (%s).",
-
-                                 file.getName(), file.getAbsolutePath());
-            }
-            try (FileOutputStream outStream = new FileOutputStream(file);
-                 FileChannel outChannel = outStream.getChannel()) {
-                combine(parts, outChannel);
-            }
-        } catch (IOException exception) {
-            throw Exceptions.handle(exception);
+    /**
+     * Computes the composite checksum of a multipart upload, provided that all parts carry a checksum of the same
+     * algorithm.
+     *
+     * @param parts the parts making up the object
+     * @return a tuple of the header name and value of the composite checksum, or <b>null</b> if there is none
+     */
+    @Nullable
+    private Tuple<String, String> computeCompositeChecksum(List<MultipartUpload.Part> parts) {
+        String checksumName = parts.get(0).getChecksumName();
+        if (checksumName == null
+            || parts.stream()
+                    .anyMatch(part -> !checksumName.equals(part.getChecksumName()) || part.getChecksum() == null)) {
+            return null;
         }
 
-        return file;
+        List<String> partChecksums = parts.stream().map(MultipartUpload.Part::getChecksum).toList();
+        return Tuple.create(checksumName, ObjectChecksum.computeComposite(checksumName, partChecksums));
     }
 
-    private void combine(List<File> parts, FileChannel out) throws IOException {
-        for (File part : parts) {
-            try (RandomAccessFile randomAccessToPart = new RandomAccessFile(part, "r")) {
-                out.write(randomAccessToPart.getChannel()
-                                            .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessToPart.length()));
-            }
+    private void commitPropertiesFromUploadDir(MultipartUpload upload, StoredObject object) throws IOException {
+        File propertiesFile = upload.getPropertiesFile();
+        if (propertiesFile.exists()) {
+            Files.move(propertiesFile, object.getPropertiesFile());
         }
     }
 
@@ -1125,20 +1924,19 @@ public class S3Dispatcher implements WebDispatcher {
      * Handles DELETE /bucket/id?uploadId=X
      *
      * @param webContext the context describing the current request
+     * @param bucket     the bucket containing the object to upload
+     * @param id         name of the object to upload
      * @param uploadId   the multipart upload that should be cancelled
      */
-    private void abortMultipartUpload(WebContext webContext, String uploadId) {
-        multipartUploads.remove(uploadId);
-        webContext.respondWith().status(HttpResponseStatus.OK);
-        delete(getUploadDir(uploadId));
-    }
-
-    private static void delete(File file) {
-        try {
-            sirius.kernel.commons.Files.delete(file.toPath());
-        } catch (IOException exception) {
-            Exceptions.handle(Storage.LOG, exception);
+    private void abortMultipartUpload(WebContext webContext, Bucket bucket, String id, String uploadId) {
+        MultipartUpload upload = fetchMultipartUpload(webContext, bucket, id, uploadId);
+        if (upload == null) {
+            return;
         }
+
+        multipartUploads.delete(upload);
+        respondWith(webContext).status(HttpResponseStatus.NO_CONTENT);
+        signalObjectSuccess(webContext, HttpResponseStatus.NO_CONTENT);
     }
 
     /**
@@ -1147,18 +1945,25 @@ public class S3Dispatcher implements WebDispatcher {
      * @param webContext the context describing the current request
      * @param bucket     the bucket containing the object to download
      * @param id         name of the object to use as download
+     * @param uploadId   the multipart upload of which the parts should be listed
      */
     private void getPartList(WebContext webContext, Bucket bucket, String id, String uploadId) {
-        if (!multipartUploads.contains(uploadId)) {
-            errorSynthesizer.synthesiseError(webContext,
-                                             null,
-                                             null,
-                                             S3ErrorCode.NoSuchUpload,
-                                             ERROR_MULTIPART_UPLOAD_DOES_NOT_EXIST);
+        MultipartUpload upload = fetchMultipartUpload(webContext, bucket, id, uploadId);
+        if (upload == null) {
             return;
         }
 
-        Response response = webContext.respondWith();
+        int marker = webContext.get("part-number-marker").asInt(0);
+        int maxParts = Math.min(webContext.get("max-parts").asInt(DEFAULT_MAX_PARTS), DEFAULT_MAX_PARTS);
+
+        // fetch one more part than requested to determine whether the list is truncated
+        List<MultipartUpload.Part> parts = upload.getParts(marker, maxParts + 1);
+        boolean truncated = parts.size() > maxParts;
+        if (truncated) {
+            parts = parts.subList(0, maxParts);
+        }
+
+        Response response = respondWith(webContext);
 
         response.setHeader(HTTP_HEADER_NAME_CONTENT_TYPE, CONTENT_TYPE_XML);
 
@@ -1171,32 +1976,20 @@ public class S3Dispatcher implements WebDispatcher {
         outputOwnerInfo(out, "Initiator");
         outputOwnerInfo(out, "Owner");
 
-        File uploadDir = getUploadDir(uploadId);
-        int marker = webContext.get("part-number-marker").asInt(0);
-        int maxParts = webContext.get("max-parts").asInt(0);
-
-        FileFilter filter = file -> !Strings.areEqual(file.getName(), TEMPORARY_PROPERTIES_FILENAME);
-        File[] parts = Objects.requireNonNull(uploadDir.listFiles(filter));
-
         out.property("StorageClass", "STANDARD");
         out.property("PartNumberMarker", marker);
-        if ((marker + maxParts) < parts.length) {
-            out.property("NextPartNumberMarker", marker + maxParts + 1);
+        if (!parts.isEmpty()) {
+            out.property("NextPartNumberMarker", parts.get(parts.size() - 1).getNumber());
         }
-
-        if (Strings.isFilled(maxParts)) {
-            out.property("MaxParts", maxParts);
-        }
-
-        boolean truncated = 0 < maxParts && maxParts < parts.length;
+        out.property("MaxParts", maxParts);
         out.property("IsTruncated", truncated);
 
-        for (File part : parts) {
+        for (MultipartUpload.Part part : parts) {
             out.beginObject("Part");
-            out.property("PartNumber", part.getName());
-            out.property("LastModified", ISO8601_INSTANT.format(Instant.ofEpochMilli(part.lastModified())));
-            out.property(HTTP_HEADER_NAME_ETAG, Hasher.md5().hashFile(part).toHexString());
-            out.property("Size", part.length());
+            out.property("PartNumber", part.getNumber());
+            out.property("LastModified", ISO8601_INSTANT.format(part.getLastModified()));
+            out.property(HTTP_HEADER_NAME_ETAG, part.getETag());
+            out.property("Size", part.getSize());
             out.endObject();
         }
 
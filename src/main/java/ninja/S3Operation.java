@@ -0,0 +1,51 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+/**
+ * Enumerates the S3 operations handled by the {@link S3Dispatcher}, as tracked by the {@link OperationMetrics}.
+ */
+public enum S3Operation {
+
+    LIST_BUCKETS("ListBuckets"),
+    CREATE_BUCKET("CreateBucket"),
+    HEAD_BUCKET("HeadBucket"),
+    DELETE_BUCKET("DeleteBucket"),
+    LIST_OBJECTS_V1("ListObjects"),
+    LIST_OBJECTS_V2("ListObjectsV2"),
+    GET_OBJECT("GetObject"),
+    HEAD_OBJECT("HeadObject"),
+    PUT_OBJECT("PutObject"),
+    COPY_OBJECT("CopyObject"),
+    DELETE_OBJECT("DeleteObject"),
+    DELETE_OBJECTS("DeleteObjects"),
+    CREATE_MULTIPART_UPLOAD("CreateMultipartUpload"),
+    UPLOAD_PART("UploadPart"),
+    COMPLETE_MULTIPART_UPLOAD("CompleteMultipartUpload"),
+    ABORT_MULTIPART_UPLOAD("AbortMultipartUpload"),
+    LIST_PARTS("ListParts"),
+    LIST_MULTIPART_UPLOADS("ListMultipartUploads"),
+    GET_OBJECT_ATTRIBUTES("GetObjectAttributes"),
+    OTHER("Other");
+
+    private final String apiName;
+
+    S3Operation(String apiName) {
+        this.apiName = apiName;
+    }
+
+    /**
+     * Returns the name of the operation as used in the S3 API reference.
+     *
+     * @return the name of the API call, like <tt>GetObject</tt>
+     */
+    public String getApiName() {
+        return apiName;
+    }
+}
@@ -9,192 +9,480 @@
 package ninja;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
 import sirius.kernel.health.Log;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.util.Optional;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Handles chunks of data which contains signatures generated by the AWS SDK.
+ * Handles uploads sent in <tt>aws-chunked</tt> encoding by the AWS SDK, with or without signed chunks and trailing
+ * headers.
  * <p>
- * We currently do not check the signature of each token, as we checked the request signature.
- * This seems to do the job for a test / mock sever for now.
+ * The <tt>aws-chunked</tt> encoding is decoded by a state machine which passes on slices of the incoming buffers, so
+ * that the payload is never copied. Only if a chunk header is split across several network reads, the received part
+ * of the header is kept in a small pooled buffer until the remainder arrives.
+ * <p>
+ * If a {@link ChunkSignatureVerifier} is given, the signature of each chunk is verified once its data has been
+ * received. As soon as a chunk with an invalid signature is encountered, the stream is ended and all further data is
+ * dropped. The consumer of the stream has to check {@link #isSignatureMismatch()} once the stream has been read, in
+ * order to reject the upload.
+ * <p>
+ * If the body is malformed or ends before the final chunk and the terminating empty line have been received, the
+ * stream is ended as well. The consumer has to check {@link #isIncomplete()} in this case, as the data read so far
+ * is only a part of the object.
+ * <p>
+ * If an {@link ObjectChecksum} is given, it is computed while the data passes through. Once the transfer is complete,
+ * it is compared against the expected value, given either upfront or as trailing header. The consumer has to check
+ * {@link #isChecksumMismatch()} in this case.
  */
 class SignedChunkHandler extends sirius.web.http.InputStreamHandler {
 
     /**
-     * Temporary buffer object used for caching incomplete chunks.
+     * Enumerates the parts of a chunk the decoder can be waiting for.
      */
-    private final ByteBuf chunkBuffer = Unpooled.buffer();
+    private enum State {
+        /**
+         * The decoder waits for the chunk header, made up of the hex-encoded length and the signature.
+         */
+        HEADER,
 
-    @Override
-    public void handle(ByteBuf content, boolean last) throws IOException {
-        if (!content.isReadable()) {
-            super.handle(content, last);
-            return;
-        }
+        /**
+         * The decoder passes on the data of the current chunk.
+         */
+        DATA,
 
-        // copy everything into the auxiliary buffer first, and try to pull as many complete chunks as possible from it
-        // afterward
-        chunkBuffer.writeBytes(content);
-        if (tryToCompleteTransfer()) {
-            drainAndFlush();
-        }
+        /**
+         * The decoder waits for the <tt>CR LF</tt> following the data of the current chunk.
+         */
+        TRAILER,
+
+        /**
+         * The decoder reads the trailing headers following the final chunk, up to the terminating empty line.
+         */
+        TRAILING_HEADERS,
+
+        /**
+         * The final chunk has been read or the transfer has been aborted.
+         */
+        DONE
     }
 
+    private static final byte[] SIGNATURE_PREFIX = "chunk-signature=".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String TRAILER_SIGNATURE = "x-amz-trailer-signature";
+
     /**
-     * Extracts all complete chunks from {@link #chunkBuffer} and returns a flag indicating whether the entire transfer
-     * is complete. The latter case is given when receiving a zero-length chunk.
+     * Limits the size of a chunk header, which is about 90 bytes for a valid one.
+     */
+    private static final int MAX_HEADER_LENGTH = 4096;
+
+    @Nullable
+    private final ChunkSignatureVerifier verifier;
+
+    @Nullable
+    private final ObjectChecksum checksum;
+
+    private final boolean checksumTrailing;
+    private String expectedChecksum;
+    private String computedChecksum;
+    private final StringBuilder trailingHeaders = new StringBuilder();
+    private String trailerSignature;
+
+    private State state = State.HEADER;
+    private int remainingData;
+    private int trailerBytesRead;
+    private String signature;
+
+    /**
+     * Keeps the first part of a chunk header which has been split across network reads.
+     */
+    private ByteBuf headerBuffer;
+
+    private volatile boolean authorizationRejected;
+    private volatile boolean signatureMismatch;
+    private volatile boolean checksumMismatch;
+    private volatile String incompleteReason;
+
+    /**
+     * Creates a new handler.
      *
-     * @return flag indicating whether the transfer is complete. If <b>false</b>, continue to invoke the method after
-     * more data has been received.
-     */
-    private boolean tryToCompleteTransfer() throws IOException {
-        while (true) {
-            int sizeOfChunk = transferNextChunk();
-
-            if (sizeOfChunk == 0) {
-                // we have read the last chunk and completed the transfer hence
-                return true;
-            } else if (sizeOfChunk < 0) {
-                // the last chunk could not be read entirely, we need more data
-                return false;
-            }
-        }
+     * @param verifier         the verifier used to check the chunk signatures, or <b>null</b> to skip the checks
+     * @param checksum         the checksum to compute while streaming, or <b>null</b> if none was requested
+     * @param checksumTrailing determines if the checksum has been announced as trailing header, in which case it is
+     *                         required to be sent
+     * @param expectedChecksum the expected value of the checksum if given upfront, or <b>null</b> if it is sent as
+     *                         trailing header or is only to be computed
+     */
+    SignedChunkHandler(@Nullable ChunkSignatureVerifier verifier,
+                       @Nullable ObjectChecksum checksum,
+                       boolean checksumTrailing,
+                       @Nullable String expectedChecksum) {
+        this.verifier = verifier;
+        this.checksum = checksum;
+        this.checksumTrailing = checksumTrailing;
+        this.expectedChecksum = expectedChecksum;
     }
 
     /**
-     * Extracts the next chunk from the {@link #chunkBuffer} and returns its size in bytes. If the number is negative,
-     * the next chunk is not complete and can not be read yet. The chunk can be processed once more data has been
-     * received.
+     * Marks the upload as rejected, as the chunks are signed but the request carries no valid authorization to verify
+     * them with.
+     * <p>
+     * All data received is dropped, so that the upload is never stored.
+     */
+    void rejectAuthorization() {
+        authorizationRejected = true;
+    }
+
+    /**
+     * Determines if the upload has been rejected, as its signed chunks cannot be verified.
      *
-     * @return number of bytes transferred, or negative number if the chunk has not yet been completely transmitted.
+     * @return <b>true</b> if the request carries no valid authorization, <b>false</b> otherwise
      */
-    private int transferNextChunk() throws IOException {
-        // mark the reader index; we'll jump back if running out of data
-        chunkBuffer.markReaderIndex();
+    boolean isAuthorizationRejected() {
+        return authorizationRejected;
+    }
 
-        // read the chunk size
-        Optional<Integer> optionalLength = readChunkLength(chunkBuffer);
-        if (optionalLength.isEmpty()) {
-            chunkBuffer.resetReaderIndex();
-            return -1;
-        }
-        int length = optionalLength.get();
+    /**
+     * Determines if a chunk with an invalid signature has been received.
+     *
+     * @return <b>true</b> if the signature of a chunk did not match, in which case the stream has been ended
+     * prematurely, <b>false</b> otherwise
+     */
+    boolean isSignatureMismatch() {
+        return signatureMismatch;
+    }
+
+    /**
+     * Returns the signature computed for the request itself, if the chunk signatures are verified.
+     *
+     * @return the signature of the request which seeds the chain of chunk signatures, or <b>null</b> if the chunks
+     * are not signed
+     */
+    @Nullable
+    String getSeedSignature() {
+        return verifier == null ? null : verifier.getSeedSignature();
+    }
+
+    /**
+     * Determines if the body was malformed or ended before the transfer has been completed.
+     *
+     * @return <b>true</b> if the stream has been ended without receiving the whole object, <b>false</b> otherwise
+     */
+    boolean isIncomplete() {
+        return incompleteReason != null;
+    }
 
-        // read the signature
-        Optional<String> optionalSignature = readSignature(chunkBuffer);
-        if (optionalSignature.isEmpty()) {
-            chunkBuffer.resetReaderIndex();
-            return -1;
+    /**
+     * Describes why the body has been considered incomplete.
+     *
+     * @return the reason why the transfer has not been completed, or <b>null</b> if it is not incomplete
+     */
+    @Nullable
+    String getIncompleteReason() {
+        return incompleteReason;
+    }
+
+    /**
+     * Determines if the computed checksum differs from the expected one.
+     * <p>
+     * This is also the case, if a checksum announced as trailing header has not been sent.
+     *
+     * @return <b>true</b> if the checksum did not match, <b>false</b> otherwise
+     */
+    boolean isChecksumMismatch() {
+        return checksumMismatch;
+    }
+
+    /**
+     * Returns the checksum computed for the transmitted data.
+     *
+     * @return the checksum which has been validated against the expected one if there is one, or <b>null</b> if no
+     * checksum has been requested or if the transfer did not complete
+     */
+    @Nullable
+    String getChecksum() {
+        return computedChecksum;
+    }
+
+    /**
+     * Returns the header name of the computed checksum.
+     *
+     * @return the header name of the checksum like <tt>x-amz-checksum-crc32</tt>, or <b>null</b> if no checksum has
+     * been announced
+     */
+    @Nullable
+    String getChecksumHeaderName() {
+        return checksum == null ? null : checksum.getHeaderName();
+    }
+
+    @Override
+    public void handle(ByteBuf content, boolean last) throws IOException {
+        if (state == State.DONE) {
+            // the stream has already been ended, so the remaining data is dropped
+            return;
+        }
+        if (authorizationRejected) {
+            finish();
+            return;
         }
 
-        // before passing on the data, make sure that we have sufficiently many bytes (accounting for the two <CR><LF>
-        // characters)
-        if (chunkBuffer.readableBytes() < length + 2) {
-            chunkBuffer.resetReaderIndex();
-            return -1;
+        try {
+            while (content.isReadable() && state != State.DONE) {
+                switch (state) {
+                    case HEADER, TRAILING_HEADERS -> readLine(content);
+                    case DATA -> readData(content);
+                    case TRAILER -> readTrailer(content);
+                    default -> throw new IOException("Unexpected decoder state: " + state);
+                }
+            }
+        } catch (IOException exception) {
+            rejectBody(exception.getMessage());
+        } catch (RuntimeException exception) {
+            releaseHeaderBuffer();
+            throw exception;
         }
 
-        // make sure that the last two bytes are really <CR><LF>
-        int index = chunkBuffer.readerIndex();
-        byte supposedCR = chunkBuffer.getByte(index + length);
-        byte supposedLF = chunkBuffer.getByte(index + length + 1);
-        if (supposedCR != '\r' || supposedLF != '\n') {
-            throw new IOException("Failed to find expected <CR><LF> characters.");
+        if (state == State.DONE) {
+            if (content.isReadable() && !signatureMismatch && incompleteReason == null) {
+                Log.BACKGROUND.WARN("Data found after reading last content chunk. Ignoring it.");
+            }
+            finish();
+        } else if (last) {
+            rejectBody("The body ended before the final chunk has been received.");
+            finish();
         }
+    }
 
-        // finally pass on the data
-        if (length > 0) {
-            // we could check the signature here
-            ByteBuf data = chunkBuffer.copy(index, length);
-            super.handle(data, false);
+    private void readLine(ByteBuf content) throws IOException {
+        int endOfLine = content.forEachByte(ByteProcessor.FIND_LF);
+        if (endOfLine < 0) {
+            // the line is split across network reads, keep what we have until the remainder arrives
+            bufferHeader(content, content.readableBytes());
+            return;
         }
 
-        chunkBuffer.readerIndex(index + length + 2);
-        chunkBuffer.discardReadBytes();
+        int length = endOfLine + 1 - content.readerIndex();
+        ByteBuf line;
+        if (headerBuffer != null && headerBuffer.isReadable()) {
+            bufferHeader(content, length);
+            line = headerBuffer;
+        } else {
+            line = content.readSlice(length);
+        }
 
-        return length;
+        if (state == State.HEADER) {
+            parseHeader(line);
+        } else {
+            parseTrailingHeader(line);
+        }
+        if (headerBuffer != null) {
+            headerBuffer.clear();
+        }
     }
 
-    private void drainAndFlush() throws IOException {
-        if (chunkBuffer.isReadable()) {
-            chunkBuffer.setIndex(0, 0);
-            Log.BACKGROUND.WARN("Data found after reading last content chunk. Resetting buffer.");
+    private void bufferHeader(ByteBuf content, int length) throws IOException {
+        if (headerBuffer == null) {
+            headerBuffer = PooledByteBufAllocator.DEFAULT.buffer(128);
         }
-        super.handle(Unpooled.EMPTY_BUFFER, true);
+        if (headerBuffer.readableBytes() + length > MAX_HEADER_LENGTH) {
+            throw new IOException("Chunk header exceeds the maximum length.");
+        }
+        headerBuffer.writeBytes(content, length);
     }
 
     /**
-     * Reads and parses the chunk length from the given buffer.
+     * Parses a complete chunk header of the form <tt>[hex length];chunk-signature=[signature]\r\n</tt>, where the
+     * signature is omitted for unsigned payloads.
      *
-     * @param content the buffer to read from.
-     * @return an optional containing the chunk length.
+     * @param header the buffer containing exactly one header, including the trailing <tt>CR LF</tt>
      */
-    private Optional<Integer> readChunkLength(ByteBuf content) {
-        return readRawChunkLength(content).map(string -> Integer.parseInt(string, 16));
+    private void parseHeader(ByteBuf header) throws IOException {
+        int index = header.readerIndex();
+        int end = findEndOfLine(header);
+
+        if (index == end || header.getByte(index) == ';') {
+            throw new IOException("Missing chunk length.");
+        }
+
+        int length = 0;
+        while (index < end && header.getByte(index) != ';') {
+            int digit = Character.digit(header.getByte(index), 16);
+            if (digit < 0 || length > (Integer.MAX_VALUE >> 4)) {
+                throw new IOException("Invalid chunk length.");
+            }
+            length = (length << 4) + digit;
+            index++;
+        }
+
+        signature = null;
+        if (index < end) {
+            // skip the ';' and make sure that the extension is a signature
+            index++;
+            if (end - index < SIGNATURE_PREFIX.length) {
+                throw new IOException("Chunk does not conform to compulsory structure.");
+            }
+            for (byte expected : SIGNATURE_PREFIX) {
+                if (header.getByte(index++) != expected) {
+                    throw new IOException("Chunk does not conform to compulsory structure.");
+                }
+            }
+            if (verifier != null) {
+                signature = header.toString(index, end - index, StandardCharsets.US_ASCII);
+            }
+        }
+
+        remainingData = length;
+        trailerBytesRead = 0;
+        if (length > 0) {
+            state = State.DATA;
+        } else if (verifyChunk()) {
+            // the final chunk is followed by optional trailing headers and an empty line
+            state = State.TRAILING_HEADERS;
+        }
     }
 
     /**
-     * Reads a string containing the hex-encoded chunk length from the given buffer.
+     * Parses a trailing header of the form <tt>[name]:[value]\r\n</tt> or the terminating empty line.
      *
-     * @param content the buffer to read from.
-     * @return an optional containing the raw chunk length string.
-     */
-    private Optional<String> readRawChunkLength(ByteBuf content) {
-        StringBuilder chunkLengthString = new StringBuilder();
-        while (content.isReadable()) {
-            byte data = content.readByte();
-            if (data == ';') {
-                return Optional.of(chunkLengthString.toString());
-            }
-            chunkLengthString.append((char) data);
+     * @param line the buffer containing exactly one line, including the trailing <tt>CR LF</tt>
+     */
+    private void parseTrailingHeader(ByteBuf line) throws IOException {
+        int index = line.readerIndex();
+        int end = findEndOfLine(line);
+        if (index == end) {
+            completeTransfer();
+            return;
+        }
+
+        String header = line.toString(index, end - index, StandardCharsets.US_ASCII);
+        int separator = header.indexOf(':');
+        if (separator < 0) {
+            throw new IOException("Invalid trailing header.");
+        }
+        String name = header.substring(0, separator).trim().toLowerCase();
+        String value = header.substring(separator + 1).trim();
+        if (TRAILER_SIGNATURE.equals(name)) {
+            trailerSignature = value;
+            return;
         }
 
-        // reaching this point, we ran out of data prematurely
-        return Optional.empty();
+        trailingHeaders.append(name).append(':').append(value).append('\n');
+        if (checksum != null && checksum.getHeaderName().equals(name)) {
+            expectedChecksum = value;
+        }
     }
 
     /**
-     * Reads and parses the chunk signature from the given buffer.
+     * Returns the index of the <tt>CR</tt> terminating the given line.
      *
-     * @param content the buffer to read from.
-     * @return an optional containing the chunk signature.
+     * @param line the buffer containing exactly one line, including the trailing <tt>CR LF</tt>
+     * @return the index of the <tt>CR</tt> character
      */
-    private Optional<String> readSignature(ByteBuf content) {
-        return readRawSignature(content).map(string -> {
-            if (!string.startsWith("chunk-signature=")) {
-                throw new IllegalStateException("Chunk does not conform to compulsory structure.");
+    private int findEndOfLine(ByteBuf line) throws IOException {
+        int end = line.writerIndex() - 2;
+        if (end < line.readerIndex() || line.getByte(end) != '\r') {
+            throw new IOException("Failed to find expected <CR><LF> characters.");
+        }
+        return end;
+    }
+
+    private void readData(ByteBuf content) throws IOException {
+        int length = Math.min(remainingData, content.readableBytes());
+        ByteBuf data = content.retainedSlice(content.readerIndex(), length);
+        content.skipBytes(length);
+        try {
+            if (verifier != null) {
+                verifier.update(data);
             }
-            return string.substring(16);
-        });
+            if (checksum != null) {
+                checksum.update(data);
+            }
+            super.handle(data, false);
+        } finally {
+            // the underlying stream handler retains the slices it queues
+            data.release();
+        }
+
+        remainingData -= length;
+        if (remainingData == 0) {
+            state = State.TRAILER;
+        }
     }
 
-    /**
-     * Reads the signature string from the given buffer.
-     *
-     * @param content the buffer to read from.
-     * @return an optional containing the raw chunk signature string.
-     */
-    private Optional<String> readRawSignature(ByteBuf content) {
-        StringBuilder signatureString = new StringBuilder();
-        boolean previousWasCR = false;
-        while (content.isReadable()) {
-            byte data = content.readByte();
-            if (data == '\r') {
-                previousWasCR = true;
-            } else if (previousWasCR && data == '\n') {
-                // extract the string, skipping the trailing <CR> character
-                return Optional.of(signatureString.substring(0, signatureString.length() - 1));
+    private void readTrailer(ByteBuf content) throws IOException {
+        byte expected = trailerBytesRead == 0 ? (byte) '\r' : (byte) '\n';
+        if (content.readByte() != expected) {
+            throw new IOException("Failed to find expected <CR><LF> characters.");
+        }
+        if (++trailerBytesRead == 2 && verifyChunk()) {
+            state = State.HEADER;
+        }
+    }
+
+    private boolean verifyChunk() {
+        if (verifier != null && !verifier.verify(signature)) {
+            rejectSignature();
+            return false;
+        }
+        return true;
+    }
+
+    private void rejectSignature() {
+        Log.BACKGROUND.WARN("Chunk signature mismatch. Ending the transfer.");
+        signatureMismatch = true;
+        state = State.DONE;
+    }
+
+    private void rejectBody(String reason) {
+        Log.BACKGROUND.WARN("Malformed or incomplete chunked body: %s Ending the transfer.", reason);
+        incompleteReason = reason;
+        state = State.DONE;
+    }
+
+    private void completeTransfer() {
+        // signed payloads also sign the trailing headers, if there are any
+        if (verifier != null
+            && !trailingHeaders.isEmpty()
+            && !verifier.verifyTrailer(trailingHeaders.toString(), trailerSignature)) {
+            rejectSignature();
+            return;
+        }
+
+        if (checksum != null) {
+            String value = checksum.getValue();
+            if (expectedChecksum == null && checksumTrailing) {
+                // the checksum has been announced as trailer but not sent
+                checksumMismatch = true;
+            } else if (expectedChecksum == null || value.equals(expectedChecksum)) {
+                computedChecksum = value;
             } else {
-                previousWasCR = false;
+                checksumMismatch = true;
             }
-
-            signatureString.append((char) data);
         }
+        state = State.DONE;
+    }
+
+    private void finish() throws IOException {
+        state = State.DONE;
+        releaseHeaderBuffer();
+        super.handle(Unpooled.EMPTY_BUFFER, true);
+    }
 
-        // reaching this point, we ran out of data prematurely
-        return Optional.empty();
+    @Override
+    public void cleanup() throws IOException {
+        // the transfer may be aborted while a split chunk header is buffered, which would otherwise leak the buffer
+        releaseHeaderBuffer();
+        super.cleanup();
+    }
+
+    private void releaseHeaderBuffer() {
+        if (headerBuffer != null) {
+            headerBuffer.release();
+            headerBuffer = null;
+        }
     }
 }
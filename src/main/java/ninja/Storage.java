@@ -8,7 +8,6 @@
 
 package ninja;
 
-import com.google.common.collect.Lists;
 import sirius.kernel.Sirius;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.di.std.ConfigValue;
@@ -19,8 +18,13 @@ import sirius.kernel.nls.NLS;
 
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Storage service which takes care of organizing buckets on disk.
@@ -40,6 +44,20 @@ public class Storage {
     @ConfigValue("storage.autocreateBuckets")
     private boolean autocreateBuckets;
 
+    /**
+     * Rescans the base directory at least this often, in case a change of its modification time went unnoticed.
+     */
+    private static final long BUCKETS_RESCAN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Contains all existing buckets which have been accessed so far, so that their state is only loaded once.
+     */
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private volatile long bucketsScannedModification = -1;
+
+    private volatile long nextBucketsScan;
+
     private File getBaseDir() {
         baseDir = getBaseDirUnchecked();
 
@@ -93,26 +111,68 @@ public class Storage {
 
     /**
      * Enumerates all known buckets.
+     * <p>
+     * The base directory is only scanned for buckets if its modification time changed, or at least once a minute.
+     * Otherwise, the list is served from the registry of known buckets.
      *
      * @return a list of all known buckets
      */
     public List<Bucket> getBuckets() {
-        List<Bucket> result = Lists.newArrayList();
-        for (File file : Objects.requireNonNull(getBaseDir().listFiles())) {
-            if (file.isDirectory() && Bucket.isValidName(file.getName())) {
-                result.add(new Bucket(file));
-            }
+        discoverBuckets();
+
+        return buckets.values()
+                      .stream()
+                      .filter(Bucket::exists)
+                      .sorted((bucket1, bucket2) -> bucket1.getName().compareToIgnoreCase(bucket2.getName()))
+                      .toList();
+    }
+
+    private void discoverBuckets() {
+        File directory = getBaseDir();
+        if (!isBucketsScanDue(directory)) {
+            return;
         }
 
-        result.sort((bucket1, bucket2) -> bucket1.getName().compareToIgnoreCase(bucket2.getName()));
+        synchronized (buckets) {
+            if (!isBucketsScanDue(directory)) {
+                return;
+            }
+
+            // the modification time is read first, so that changes made during the scan trigger another one
+            long modification = directory.lastModified();
+            Set<String> names = new HashSet<>();
+            for (File file : Objects.requireNonNull(directory.listFiles())) {
+                if (file.isDirectory() && Bucket.isValidName(file.getName())) {
+                    names.add(file.getName());
+                    buckets.computeIfAbsent(file.getName(), ignored -> new Bucket(file));
+                }
+            }
 
-        return result;
+            // buckets which have been deleted outside the server are reloaded, so that holders see them as gone
+            for (Bucket bucket : buckets.values()) {
+                if (!names.contains(bucket.getName())) {
+                    bucket.load();
+                    if (!bucket.exists()) {
+                        buckets.remove(bucket.getName(), bucket);
+                    }
+                }
+            }
+
+            bucketsScannedModification = modification;
+            nextBucketsScan = System.currentTimeMillis() + BUCKETS_RESCAN_INTERVAL_MILLIS;
+        }
+    }
+
+    private boolean isBucketsScanDue(File directory) {
+        return directory.lastModified() != bucketsScannedModification || System.currentTimeMillis() >= nextBucketsScan;
     }
 
     /**
      * Returns a bucket with the given name.
      * <p>
-     * The method never returns <b>null</b>, but {@link Bucket#exists()} may return <b>false</b>.
+     * The method never returns <b>null</b>, but {@link Bucket#exists()} may return <b>false</b>. Existing buckets are
+     * kept in a registry, so that the same instance is returned for the same name. Buckets which do not exist are
+     * not registered, so that requests for arbitrary names do not let the registry grow.
      * <p>
      * Make sure that the name passes {@link Bucket#isValidName(String)} by meeting the naming restrictions documented
      * there.
@@ -138,7 +198,36 @@ public class Storage {
                             .handle();
         }
 
-        return new Bucket(new File(getBaseDir(), name));
+        Bucket bucket = buckets.get(name);
+        if (bucket == null) {
+            bucket = new Bucket(new File(getBaseDir(), name));
+            return bucket.exists() ? Objects.requireNonNullElse(buckets.putIfAbsent(name, bucket), bucket) : bucket;
+        }
+
+        if (!bucket.exists()) {
+            // the bucket might have been created outside the server in the meantime
+            bucket.load();
+            if (!bucket.exists()) {
+                buckets.remove(name, bucket);
+            }
+        }
+
+        return bucket;
+    }
+
+    /**
+     * Creates the given bucket and registers it, so that it is returned by {@link #getBucket(String)} from now on.
+     *
+     * @param bucket the bucket to create, as returned by {@link #getBucket(String)}
+     * @return <b>true</b> if the bucket was created successfully or existed before, <b>false</b> else
+     */
+    public boolean createBucket(Bucket bucket) {
+        if (!bucket.create()) {
+            return false;
+        }
+
+        buckets.putIfAbsent(bucket.getName(), bucket);
+        return true;
     }
 
     /**
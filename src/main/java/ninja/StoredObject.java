@@ -9,19 +9,38 @@
 package ninja;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
 import sirius.kernel.commons.Files;
+import sirius.kernel.commons.Hasher;
 import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.Part;
 import sirius.kernel.health.Exceptions;
 import sirius.kernel.nls.NLS;
 
 import javax.annotation.Nullable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -31,7 +50,16 @@ import java.util.Properties;
  */
 public class StoredObject {
 
-    private static final String DELETED_MARKER = "DeletedMarker";
+    private static final String ETAG_PROPERTY = "ETag";
+
+    /**
+     * Contains the name of the property which marks an object as copy of an upstream object, as stored by the
+     * {@link UpstreamCache}. The value is the timestamp of the last validation against the upstream instance.
+     */
+    static final String UPSTREAM_VALIDATED_PROPERTY = "UpstreamValidated";
+
+    @Part
+    private static MetadataCache metadataCache;
 
     private final File file;
 
@@ -119,10 +147,18 @@ public class StoredObject {
 
     /**
      * Returns the size of the object in bytes.
+     * <p>
+     * The size of a {@linkplain #isComposite() composite object} is the total size of its segments, so that it always
+     * matches the segments being read, even while they are replaced. Its data file is a sparse placeholder of the
+     * same size, so that listings can rely on it.
      *
      * @return the byte-size of the object
      */
     public long getSizeBytes() {
+        if (isComposite()) {
+            return getSegments().stream().mapToLong(File::length).sum();
+        }
+
         return file.length();
     }
 
@@ -148,8 +184,10 @@ public class StoredObject {
      * Deletes the object.
      */
     public void delete() {
+        invalidateMetadata();
         Files.delete(file);
         Files.delete(getPropertiesFile());
+        discardLayout();
     }
 
     /**
@@ -161,6 +199,290 @@ public class StoredObject {
         return file;
     }
 
+    /**
+     * Returns the directory containing the segments of a composite object.
+     * <p>
+     * This is a symbolic link to the actual directory, so that the segments can be replaced by a single rename.
+     *
+     * @return the directory which contains the segments of the object if it is a composite object
+     */
+    public File getSegmentsDirectory() {
+        return new File(file.getParentFile(), "$" + file.getName() + ".segments");
+    }
+
+    /**
+     * Determines if the object is a composite object.
+     * <p>
+     * The contents of a composite object are not stored in its data file, but in an ordered list of segments, which
+     * are the parts of the multipart upload which created the object. See {@link MultipartCombiner}.
+     *
+     * @return <b>true</b> if the object consists of segments, <b>false</b> if the data file holds all contents
+     */
+    public boolean isComposite() {
+        return getSegmentsDirectory().isDirectory();
+    }
+
+    /**
+     * Returns the files which make up the contents of this object, in order.
+     *
+     * @return the segments of a composite object or the data file of a plain object
+     */
+    public List<File> getSegments() {
+        File[] segments = getSegmentsDirectory().listFiles(File::isFile);
+        if (segments == null) {
+            return List.of(file);
+        }
+
+        return Arrays.stream(segments)
+                     .sorted(Comparator.comparingLong(segment -> Long.parseLong(segment.getName())))
+                     .toList();
+    }
+
+    /**
+     * Opens a stream which reads the contents of the object, no matter if it is a composite object or not.
+     *
+     * @return a stream providing the contents of the object
+     * @throws IOException in case the object cannot be opened
+     */
+    public InputStream openInputStream() throws IOException {
+        if (!isComposite()) {
+            return new FileInputStream(file);
+        }
+
+        return new SegmentsInputStream(getSegments());
+    }
+
+    /**
+     * Copies a range of the contents of the object to the given channel.
+     * <p>
+     * The data is transferred by the file system channels of the underlying files, so that it is never buffered
+     * as a whole. Note that this is only a zero-copy transfer if the target is a file or socket channel. Single ranges
+     * of plain objects are therefore sent as file response instead.
+     *
+     * @param position the offset of the first byte to transfer
+     * @param count    the number of bytes to transfer
+     * @param target   the channel to write to
+     * @throws IOException in case of an IO error or if the object ends before the given range
+     */
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long offset = 0;
+        long remaining = count;
+        long current = position;
+        for (File segment : getSegments()) {
+            long length = segment.length();
+            if (remaining > 0 && current < offset + length) {
+                long chunk = Math.min(offset + length - current, remaining);
+                try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+                    transferFully(channel, current - offset, chunk, target);
+                }
+                current += chunk;
+                remaining -= chunk;
+            }
+            offset += length;
+        }
+
+        if (remaining > 0) {
+            throw new EOFException(Strings.apply("Object %s ended before the requested range", key));
+        }
+    }
+
+    private static void transferFully(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long chunk = channel.transferTo(position + transferred, count - transferred, target);
+            if (chunk <= 0) {
+                throw new EOFException();
+            }
+            transferred += chunk;
+        }
+    }
+
+    /**
+     * Returns the file which records the sizes of the parts of an object created by a multipart upload.
+     *
+     * @return the file listing the part sizes
+     */
+    public File getPartsFile() {
+        return new File(file.getParentFile(), "$" + file.getName() + ".parts");
+    }
+
+    /**
+     * Returns the sizes of the parts the object has been uploaded in.
+     *
+     * @return the size of each part of a multipart object, or a single entry with the size of the object otherwise
+     */
+    public List<Long> getPartSizes() {
+        if (isComposite()) {
+            return getSegments().stream().map(File::length).toList();
+        }
+
+        try {
+            if (getPartsFile().exists()) {
+                return java.nio.file.Files.readAllLines(getPartsFile().toPath()).stream().map(Long::valueOf).toList();
+            }
+        } catch (IOException | NumberFormatException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+        }
+
+        return List.of(getSizeBytes());
+    }
+
+    /**
+     * Records the sizes of the parts the object has been uploaded in.
+     *
+     * @param partSizes the size of each part of the object
+     * @throws IOException in case of an IO error
+     */
+    public void setPartSizes(List<Long> partSizes) throws IOException {
+        java.nio.file.Files.write(getPartsFile().toPath(), partSizes.stream().map(String::valueOf).toList());
+    }
+
+    /**
+     * Discards the segments and the recorded parts of the object, as its contents have been replaced or deleted.
+     */
+    public void discardLayout() {
+        deleteSegments();
+        Files.delete(getPartsFile());
+    }
+
+    /**
+     * Makes the given directory the segments of this object.
+     * <p>
+     * The link to the segments is replaced atomically, so that readers either see the previous or the new segments.
+     * The previous segments are left in place, as readers may still be reading them.
+     *
+     * @param segments the directory containing the new segments, which has to reside next to the data file
+     * @return the directory containing the previous segments, or <b>null</b> if the object was no composite object
+     * @throws IOException in case of an IO error while replacing the segments
+     */
+    @Nullable
+    Path replaceSegments(Path segments) throws IOException {
+        Path segmentsLink = getSegmentsDirectory().toPath();
+        Path previousSegments = resolveSegments(segmentsLink);
+        if (segmentsLink.equals(previousSegments)) {
+            // segments stored before they became links are moved aside, as a rename cannot replace a directory
+            previousSegments = java.nio.file.Files.move(segmentsLink,
+                                                        segmentsLink.resolveSibling(segments.getFileName() + ".old"),
+                                                        StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        Path link = segmentsLink.resolveSibling(segments.getFileName() + ".link");
+        java.nio.file.Files.createSymbolicLink(link, segments.getFileName());
+        try {
+            java.nio.file.Files.move(link,
+                                     segmentsLink,
+                                     StandardCopyOption.REPLACE_EXISTING,
+                                     StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            java.nio.file.Files.deleteIfExists(link);
+            if (previousSegments != null && java.nio.file.Files.notExists(segmentsLink, LinkOption.NOFOLLOW_LINKS)) {
+                java.nio.file.Files.move(previousSegments, segmentsLink, StandardCopyOption.ATOMIC_MOVE);
+            }
+            throw exception;
+        }
+
+        return previousSegments;
+    }
+
+    /**
+     * Determines the directory the given link to the segments points to.
+     *
+     * @param segmentsLink the link to the segments of the object
+     * @return the directory containing the segments, the given path itself if it is a plain directory, or
+     * <b>null</b> if there are no segments
+     * @throws IOException in case the link cannot be read
+     */
+    @Nullable
+    private Path resolveSegments(Path segmentsLink) throws IOException {
+        if (java.nio.file.Files.isSymbolicLink(segmentsLink)) {
+            return segmentsLink.resolveSibling(java.nio.file.Files.readSymbolicLink(segmentsLink));
+        }
+        if (java.nio.file.Files.isDirectory(segmentsLink)) {
+            return segmentsLink;
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the segments of a composite object, e.g. as it has been compacted.
+     */
+    void deleteSegments() {
+        Path segmentsLink = getSegmentsDirectory().toPath();
+        try {
+            Path segments = resolveSegments(segmentsLink);
+            // the link is removed first, so that the object turns into a plain object at once
+            java.nio.file.Files.deleteIfExists(segmentsLink);
+            if (segments != null && !segments.equals(segmentsLink)) {
+                Files.delete(segments);
+            }
+        } catch (IOException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+        }
+    }
+
+    /**
+     * Reads the given segments back to back, opening each one only when it is reached.
+     */
+    private static class SegmentsInputStream extends InputStream {
+
+        private final Iterator<File> segments;
+        private InputStream current;
+
+        SegmentsInputStream(List<File> segments) {
+            this.segments = segments.iterator();
+        }
+
+        private boolean advance() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            if (!segments.hasNext()) {
+                return false;
+            }
+
+            current = new FileInputStream(segments.next());
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (current != null || advance()) {
+                int result = current.read();
+                if (result >= 0) {
+                    return result;
+                }
+                advance();
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (current != null || advance()) {
+                int read = current.read(buffer, offset, length);
+                if (read > 0) {
+                    return read;
+                }
+                advance();
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
     /**
      * Determines if the object exists.
      *
@@ -184,15 +506,26 @@ public class StoredObject {
      * <p>
      * These are the <tt>Content-MD5</tt>, <tt>Content-Type</tt> and any <tt>x-amz-*</tt> headers.
      * <p>
-     * Internally, a {@link Properties} file is loaded from disk and converted to a {@link Map}.
+     * Internally, a {@link Properties} file is loaded from disk and converted to a {@link Map}. The properties are
+     * kept in the {@link MetadataCache} as long as the file remains unchanged, and the cached map is handed out
+     * as it is. Therefore, the returned map cannot be modified - copy it to change the properties.
      *
      * @return name-value-pairs representing all properties stored for this object, or an empty map if no properties
      * could be read
      */
     public Map<String, String> getProperties() {
+        File propertiesFile = getPropertiesFile();
+        long propertiesModified = propertiesFile.lastModified();
+        long propertiesLength = propertiesFile.length();
+        Map<String, String> cachedProperties =
+                metadataCache.getProperties(getCacheKey(), propertiesModified, propertiesLength);
+        if (cachedProperties != null) {
+            return cachedProperties;
+        }
+
         // read properties object from disk
         Properties props = new Properties();
-        try (FileInputStream in = new FileInputStream(getPropertiesFile())) {
+        try (FileInputStream in = new FileInputStream(propertiesFile)) {
             props.load(in);
         } catch (IOException e) {
             Exceptions.ignore(e);
@@ -201,7 +534,76 @@ public class StoredObject {
         // convert the properties object to a string-to-string-map
         Map<String, String> map = Maps.newTreeMap();
         props.forEach((propertyKey, value) -> map.put(String.valueOf(propertyKey), String.valueOf(value)));
-        return map;
+        metadataCache.putProperties(getCacheKey(), map, propertiesModified, propertiesLength);
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Returns the ETag of the object, which is the hex-encoded MD5 hash of its contents.
+     * <p>
+     * The ETag is computed once when storing the object and read from the stored properties. Only if it is missing,
+     * e.g. for objects placed in the bucket directory manually, it is computed and added to the properties.
+     *
+     * @return the ETag of the object
+     */
+    public String getETag() {
+        Map<String, String> properties = getProperties();
+        String etag = properties.get(ETAG_PROPERTY);
+        if (Strings.isFilled(etag)) {
+            return etag;
+        }
+
+        etag = isComposite() ? hashSegments() : Hasher.md5().hashFile(file).toHexString();
+        properties = Maps.newTreeMap(properties);
+        properties.put(ETAG_PROPERTY, etag);
+        try {
+            setProperties(properties);
+        } catch (IOException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+        }
+        return etag;
+    }
+
+    private String hashSegments() {
+        try (DigestInputStream in = new DigestInputStream(openInputStream(), MessageDigest.getInstance("MD5"))) {
+            in.transferTo(OutputStream.nullOutputStream());
+            return BaseEncoding.base16().lowerCase().encode(in.getMessageDigest().digest());
+        } catch (IOException | NoSuchAlgorithmException exception) {
+            throw Exceptions.handle(Storage.LOG, exception);
+        }
+    }
+
+    /**
+     * Returns the metadata required to answer conditional requests.
+     * <p>
+     * The metadata is kept in the {@link MetadataCache}, so that it can be provided without reading any file. Note
+     * that the object has to exist.
+     *
+     * @return the metadata of the object
+     */
+    public ObjectMetadata getMetadata() {
+        File propertiesFile = getPropertiesFile();
+        long dataModified = file.lastModified();
+        ObjectMetadata metadata = metadataCache.getMetadata(getCacheKey(),
+                                                            propertiesFile.lastModified(),
+                                                            propertiesFile.length(),
+                                                            dataModified);
+        if (metadata == null) {
+            metadata = new ObjectMetadata(getETag(), Instant.ofEpochMilli(dataModified), file.length());
+            metadataCache.putMetadata(getCacheKey(), metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Drops the cached metadata, as the contents or properties of the object have changed.
+     */
+    protected void invalidateMetadata() {
+        metadataCache.invalidate(getCacheKey());
+    }
+
+    private String getCacheKey() {
+        return file.getParentFile().getName() + "/" + encodedKey;
     }
 
     /**
@@ -227,28 +629,32 @@ public class StoredObject {
         properties.forEach(props::setProperty);
         try (FileOutputStream out = new FileOutputStream(getPropertiesFile())) {
             props.store(out, "");
+        } finally {
+            invalidateMetadata();
         }
     }
 
     /**
-     * Checks if the marker for "deleted" is set.
-     * When an object is marked as "deleted" it can not be requested anymore.
+     * Returns when the object has last been validated against the upstream instance it has been copied from.
      *
-     * @return true if this file is "deleted"
+     * @return the timestamp of the last validation, or <b>null</b> if the object has not been copied from the upstream
+     * instance but stored locally
      */
-    public boolean isMarkedDeleted() {
-        return getProperties().containsKey(DELETED_MARKER);
+    @Nullable
+    public Instant getUpstreamValidated() {
+        String validated = getProperties().get(UPSTREAM_VALIDATED_PROPERTY);
+        return Strings.isFilled(validated) ? Instant.ofEpochMilli(Long.parseLong(validated)) : null;
     }
 
     /**
-     * Sets the object as "deleted", all requests onto this object are handled as if it is deleted.
-     * <br><b>This method does not perform an actual delete!<br>To perform an actual delete please check {@link StoredObject#delete} </b>
+     * Records that the object is an up-to-date copy of the upstream object.
      *
+     * @param validated the timestamp of the validation
      * @throws IOException if the properties could not be updated
      */
-    public void markDeleted() throws IOException {
-        Map<String, String> fileProperties = getProperties();
-        fileProperties.put(DELETED_MARKER, "true");
+    public void markUpstreamValidated(Instant validated) throws IOException {
+        Map<String, String> fileProperties = Maps.newTreeMap(getProperties());
+        fileProperties.put(UPSTREAM_VALIDATED_PROPERTY, String.valueOf(validated.toEpochMilli()));
         setProperties(fileProperties);
     }
 
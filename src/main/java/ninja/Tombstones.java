@@ -0,0 +1,174 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.health.Exceptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the keys of all objects of a bucket which have been deleted locally while an upstream instance is configured.
+ * <p>
+ * Such objects must not be fetched from the {@link AwsUpstream} anymore, as they would otherwise reappear. The keys are
+ * stored in the file <tt>$tombstones</tt> of the bucket, which is written as a journal: adding a key appends its encoded
+ * key, removing a key appends the encoded key prefixed with <tt>!</tt>. As encoded keys never start with <tt>!</tt>,
+ * both kinds of lines can be told apart.
+ * <p>
+ * Once the journal contains more than {@link #COMPACTION_THRESHOLD} lines and more than twice as many lines as there
+ * are tombstones, it is compacted by rewriting it with the current keys only. Bulk cleanups, which remove many
+ * tombstones in a row, thus only cause appends and an occasional rewrite.
+ * <p>
+ * The file is read once when the tombstones are accessed for the first time. Lookups are then answered from memory.
+ */
+class Tombstones {
+
+    private static final String TOMBSTONES_FILE = "$tombstones";
+    private static final String REMOVAL_PREFIX = "!";
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    private final File file;
+
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean loaded;
+
+    /**
+     * Contains the number of lines in the journal, guarded by the monitor of this object.
+     */
+    private int journalLines;
+
+    /**
+     * Creates the tombstones of the given bucket.
+     *
+     * @param bucket the bucket to keep the tombstones for
+     */
+    Tombstones(Bucket bucket) {
+        this.file = new File(bucket.getFolder(), TOMBSTONES_FILE);
+    }
+
+    /**
+     * Determines if the object with the given key has been deleted locally.
+     *
+     * @param key the key of the object to check
+     * @return <b>true</b> if the object has been deleted locally, <b>false</b> otherwise
+     */
+    boolean contains(String key) {
+        ensureLoaded();
+        return keys.contains(key);
+    }
+
+    /**
+     * Records that the object with the given key has been deleted locally.
+     *
+     * @param key the key of the deleted object
+     */
+    synchronized void add(String key) {
+        ensureLoaded();
+        if (keys.add(key)) {
+            append(StoredObject.encodeKey(key));
+        }
+    }
+
+    /**
+     * Removes the tombstone of the object with the given key, e.g. as it has been stored again.
+     *
+     * @param key the key of the object
+     */
+    void remove(String key) {
+        ensureLoaded();
+        if (!keys.contains(key)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!keys.remove(key)) {
+                return;
+            }
+            if (journalLines >= COMPACTION_THRESHOLD && journalLines >= 2 * keys.size()) {
+                compact();
+            } else {
+                append(REMOVAL_PREFIX + StoredObject.encodeKey(key));
+            }
+        }
+    }
+
+    private void append(String line) {
+        try {
+            Files.writeString(file.toPath(),
+                              line + "\n",
+                              StandardCharsets.UTF_8,
+                              StandardOpenOption.CREATE,
+                              StandardOpenOption.APPEND);
+            journalLines++;
+        } catch (IOException exception) {
+            throw Exceptions.handle(Storage.LOG, exception);
+        }
+    }
+
+    private void compact() {
+        try {
+            List<String> lines = new ArrayList<>(keys.size());
+            keys.forEach(key -> lines.add(StoredObject.encodeKey(key)));
+            if (lines.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+            } else {
+                File temporaryFile = new File(file.getParentFile(), TOMBSTONES_FILE + ".tmp");
+                Files.write(temporaryFile.toPath(), lines, StandardCharsets.UTF_8);
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            journalLines = lines.size();
+        } catch (IOException exception) {
+            throw Exceptions.handle(Storage.LOG, exception);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!loaded) {
+                load();
+                loaded = true;
+            }
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                journalLines++;
+                if (line.startsWith(REMOVAL_PREFIX)) {
+                    keys.remove(StoredObject.decodeKey(line.substring(REMOVAL_PREFIX.length())));
+                } else {
+                    keys.add(StoredObject.decodeKey(line));
+                }
+            }
+        } catch (IOException exception) {
+            throw Exceptions.handle(Storage.LOG, exception);
+        }
+    }
+}
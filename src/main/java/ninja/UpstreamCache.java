@@ -0,0 +1,510 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.metrics.MetricProvider;
+import sirius.kernel.health.metrics.MetricsCollector;
+import sirius.kernel.nls.NLS;
+import sirius.web.http.Response;
+import sirius.web.http.WebContext;
+
+import javax.annotation.Nullable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps local copies of objects fetched from the {@link AwsUpstream}, so that they are only fetched once.
+ * <p>
+ * If <tt>upstreamAWS.cache.enabled</tt> is set, a request for an object which is missing locally is answered by
+ * fetching the object from the upstream instance and streaming it to the client while storing it in the local bucket.
+ * Later requests are served from the local copy. Once the copy is older than <tt>upstreamAWS.cache.ttl</tt>, its ETag
+ * is sent as <tt>If-None-Match</tt> to the upstream instance. Unless the upstream object is reported as not modified
+ * or still has the same ETag, the copy is dropped and fetched again.
+ * <p>
+ * Concurrent requests for the same missing object are coalesced, so that the object is only fetched once even if many
+ * clients start at the same time.
+ * <p>
+ * Right before a fetched object is moved into place, the local file and the tombstones are checked again. If the
+ * object has been written or deleted by a client in the meantime, the fetched copy is discarded.
+ * <p>
+ * The disk space occupied by copies is limited to <tt>upstreamAWS.cache.maxBytes</tt>. Once exceeded, the least
+ * recently (<tt>lru</tt>) or least frequently (<tt>lfu</tt>) used copies are deleted, as configured in
+ * <tt>upstreamAWS.cache.eviction</tt>. Objects which have been written locally are never evicted. Note that the usage
+ * statistics are kept in memory, so that copies made before a restart are only accounted for once they are accessed
+ * again.
+ */
+@Register(classes = {UpstreamCache.class, MetricProvider.class})
+public class UpstreamCache implements MetricProvider {
+
+    private static final String EVICTION_LFU = "lfu";
+
+    private static final String HEADER_PREFIX_USER_METADATA = "x-amz-meta-";
+
+    private static final String HTTP_HEADER_NAME_ETAG = "ETag";
+
+    /**
+     * Enumerates the possible outcomes of {@link #readThrough(WebContext, Bucket, StoredObject)}.
+     */
+    public enum Outcome {
+        /**
+         * The object has been fetched from the upstream instance and sent to the client.
+         */
+        SENT,
+
+        /**
+         * The object has been stored locally by a concurrent request, so that it is to be served from there.
+         */
+        STORED,
+
+        /**
+         * The object does not exist upstream either.
+         */
+        NOT_FOUND
+    }
+
+    /**
+     * Contains the usage statistics of a local copy.
+     */
+    private static class CachedObject {
+        private final String bucket;
+        private final String key;
+        private final long size;
+        private final AtomicLong lastAccess = new AtomicLong();
+        private final AtomicLong accesses = new AtomicLong();
+
+        CachedObject(String bucket, String key, long size) {
+            this.bucket = bucket;
+            this.key = key;
+            this.size = size;
+        }
+
+        void touch() {
+            lastAccess.set(System.currentTimeMillis());
+            accesses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Copies all data read from the upstream object to the response.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int data = super.read();
+            if (data >= 0) {
+                copy.write(data);
+            }
+            return data;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                copy.write(buffer, offset, read);
+            }
+            return read;
+        }
+    }
+
+    @ConfigValue("upstreamAWS.cache.enabled")
+    private boolean enabled;
+
+    @ConfigValue("upstreamAWS.cache.maxBytes")
+    private long maxBytes;
+
+    @ConfigValue("upstreamAWS.cache.ttl")
+    private Duration ttl;
+
+    @ConfigValue("upstreamAWS.cache.eviction")
+    private String eviction;
+
+    @ConfigValue("upstreamAWS.cache.coalesceTimeout")
+    private Duration coalesceTimeout;
+
+    @Part
+    private AwsUpstream awsUpstream;
+
+    @Part
+    private Storage storage;
+
+    private final ConcurrentMap<String, CachedObject> objects = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentMap<String, CompletableFuture<Outcome>> fetches = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Determines if objects fetched from the upstream instance are kept locally.
+     *
+     * @return <b>true</b> if the cache is enabled and the upstream instance is configured, <b>false</b> otherwise
+     */
+    public boolean isEnabled() {
+        return enabled && awsUpstream.isConfigured();
+    }
+
+    /**
+     * Fetches an object which is missing locally from the upstream instance and sends it to the client while storing
+     * it locally.
+     * <p>
+     * Concurrent requests for the same object are coalesced: only the first one fetches the object, all others wait
+     * until it is stored and are then served from the local copy. If the object could not be stored, the waiting
+     * requests fetch it on their own.
+     *
+     * @param webContext the request to respond to
+     * @param bucket     the bucket containing the object
+     * @param object     the missing object
+     * @return the outcome of the fetch
+     * @throws IOException in case of an IO error while transferring the object
+     */
+    public Outcome readThrough(WebContext webContext, Bucket bucket, StoredObject object) throws IOException {
+        String cacheKey = bucket.getName() + "/" + object.getKey();
+        CompletableFuture<Outcome> fetch = new CompletableFuture<>();
+        CompletableFuture<Outcome> runningFetch = fetches.putIfAbsent(cacheKey, fetch);
+        if (runningFetch != null) {
+            Outcome outcome = awaitFetch(runningFetch);
+            if (outcome == Outcome.STORED || outcome == Outcome.NOT_FOUND) {
+                return outcome;
+            }
+
+            return fetch(webContext, bucket, object);
+        }
+
+        Outcome outcome = null;
+        try {
+            // a fetch which completed right before this one has started might already have stored the object
+            outcome = object.exists() ? Outcome.STORED : fetch(webContext, bucket, object);
+            return outcome;
+        } finally {
+            fetches.remove(cacheKey, fetch);
+            fetch.complete(outcome == Outcome.SENT && object.exists() ? Outcome.STORED : outcome);
+        }
+    }
+
+    /**
+     * Waits for a concurrent fetch of the given object, if there is one.
+     * <p>
+     * This is used by requests which cannot be answered by {@link #readThrough(WebContext, Bucket, StoredObject)},
+     * like range requests, so that they can be served locally rather than being tunneled.
+     *
+     * @param bucket the bucket containing the object
+     * @param object the missing object
+     * @return <b>true</b> if the object has been stored locally by a concurrent fetch, <b>false</b> otherwise
+     */
+    public boolean awaitRunningFetch(Bucket bucket, StoredObject object) {
+        CompletableFuture<Outcome> runningFetch = fetches.get(bucket.getName() + "/" + object.getKey());
+        return runningFetch != null && awaitFetch(runningFetch) == Outcome.STORED;
+    }
+
+    @Nullable
+    private Outcome awaitFetch(CompletableFuture<Outcome> fetch) {
+        coalesced.incrementAndGet();
+        try {
+            return fetch.get(coalesceTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException exception) {
+            return null;
+        } finally {
+            RequestTrace.mark("coalesce");
+        }
+    }
+
+    private Outcome fetch(WebContext webContext, Bucket bucket, StoredObject object) throws IOException {
+        S3Object upstreamObject;
+        try {
+            upstreamObject = awsUpstream.fetchClient().getObject(bucket.getName(), object.getKey());
+        } catch (AmazonServiceException exception) {
+            if (exception.getStatusCode() == HttpResponseStatus.NOT_FOUND.code()) {
+                return Outcome.NOT_FOUND;
+            }
+            throw Exceptions.handle(Storage.LOG, exception);
+        }
+        misses.incrementAndGet();
+
+        com.amazonaws.services.s3.model.ObjectMetadata upstreamMetadata = upstreamObject.getObjectMetadata();
+        Map<String, String> properties = awsUpstream.toObjectProperties(object.getKey(), upstreamMetadata);
+        String contentType = properties.get(HttpHeaderNames.CONTENT_TYPE.toString());
+
+        Response response = S3Dispatcher.respondWith(webContext);
+        properties.forEach((name, value) -> {
+            if (name.startsWith(HEADER_PREFIX_USER_METADATA)) {
+                response.addHeader(name, value);
+            }
+        });
+        response.setHeader(HTTP_HEADER_NAME_ETAG, "\"" + properties.get(HTTP_HEADER_NAME_ETAG) + "\"");
+        response.setHeader(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(upstreamMetadata.getContentLength()));
+        RequestTrace.bytes(upstreamMetadata.getContentLength());
+
+        // remembers the local state, so that a concurrent write or delete by a client is not overwritten
+        long lastModified = object.getFile().lastModified();
+
+        try (InputStream in = upstreamObject.getObjectContent();
+             OutputStream out = response.outputStream(HttpResponseStatus.OK, contentType)) {
+            if (upstreamMetadata.getContentLength() > maxBytes) {
+                // the object would evict all others, so it is only passed on
+                in.transferTo(out);
+                return Outcome.SENT;
+            }
+
+            DigestingWriter writer = new DigestingWriter(object.getFile());
+            writer.write(new TeeInputStream(in, out));
+            if (object.getFile().lastModified() != lastModified || bucket.hasTombstone(object.getKey())) {
+                writer.discard();
+                return Outcome.SENT;
+            }
+            writer.commit();
+        }
+
+        object.discardLayout();
+        properties.put(StoredObject.UPSTREAM_VALIDATED_PROPERTY, String.valueOf(System.currentTimeMillis()));
+        object.setProperties(properties);
+        bucket.indexObject(object.getKey());
+        register(bucket.getName(), object).touch();
+        evictIfNecessary();
+
+        return Outcome.SENT;
+    }
+
+    /**
+     * Determines if a local object may be served.
+     * <p>
+     * Objects which have been written locally are always served. Copies of upstream objects are validated against the
+     * upstream object once their time to live has expired, and dropped if they are outdated.
+     *
+     * @param bucket the bucket containing the object
+     * @param object the object to serve, which exists locally
+     * @return <b>true</b> if the object may be served, <b>false</b> if it has been dropped as outdated
+     */
+    public boolean revalidate(Bucket bucket, StoredObject object) {
+        Instant validated = object.getUpstreamValidated();
+        if (validated == null) {
+            return true;
+        }
+
+        CachedObject cachedObject = register(bucket.getName(), object);
+        if (validated.plus(ttl).isBefore(Instant.now()) && !isUpToDate(bucket, object)) {
+            drop(cachedObject);
+            return false;
+        }
+
+        hits.incrementAndGet();
+        cachedObject.touch();
+        return true;
+    }
+
+    /**
+     * Validates the local copy by a <tt>HEAD</tt> request carrying its ETag as <tt>If-None-Match</tt>.
+     * <p>
+     * An unchanged upstream object is answered by <tt>304 Not Modified</tt>, which the client reports as error.
+     * Upstream instances which ignore the condition answer with the metadata of the object, so that its ETag is
+     * compared instead.
+     */
+    private boolean isUpToDate(Bucket bucket, StoredObject object) {
+        revalidations.incrementAndGet();
+        GetObjectMetadataRequest request = new GetObjectMetadataRequest(bucket.getName(), object.getKey());
+        request.putCustomRequestHeader(HttpHeaderNames.IF_NONE_MATCH.toString(), "\"" + object.getETag() + "\"");
+        try {
+            com.amazonaws.services.s3.model.ObjectMetadata upstreamMetadata =
+                    awsUpstream.fetchClient().getObjectMetadata(request);
+            if (!Strings.areEqual(AwsUpstream.normalizeETag(upstreamMetadata.getETag()), object.getETag())) {
+                return false;
+            }
+        } catch (AmazonServiceException exception) {
+            if (exception.getStatusCode() == HttpResponseStatus.NOT_FOUND.code()) {
+                return false;
+            }
+            if (exception.getStatusCode() != HttpResponseStatus.NOT_MODIFIED.code()) {
+                // if the upstream instance cannot be reached, the local copy is better than nothing
+                Exceptions.handle(Storage.LOG, exception);
+                return true;
+            }
+        }
+
+        try {
+            object.markUpstreamValidated(Instant.now());
+        } catch (IOException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+        }
+        return true;
+    }
+
+    private CachedObject register(String bucketName, StoredObject object) {
+        return objects.computeIfAbsent(bucketName + "/" + object.getKey(), ignored -> {
+            CachedObject cachedObject = new CachedObject(bucketName, object.getKey(), object.getSizeBytes());
+            bytes.addAndGet(cachedObject.size);
+            return cachedObject;
+        });
+    }
+
+    private synchronized void evictIfNecessary() {
+        if (bytes.get() <= maxBytes) {
+            return;
+        }
+
+        List<CachedObject> candidates = new ArrayList<>(objects.values());
+        if (EVICTION_LFU.equalsIgnoreCase(eviction)) {
+            candidates.sort(Comparator.comparingLong((CachedObject cachedObject) -> cachedObject.accesses.get())
+                                      .thenComparingLong(cachedObject -> cachedObject.lastAccess.get()));
+        } else {
+            candidates.sort(Comparator.comparingLong(cachedObject -> cachedObject.lastAccess.get()));
+        }
+
+        for (CachedObject candidate : candidates) {
+            if (bytes.get() <= maxBytes) {
+                return;
+            }
+            drop(candidate);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void drop(CachedObject cachedObject) {
+        if (objects.remove(cachedObject.bucket + "/" + cachedObject.key, cachedObject)) {
+            bytes.addAndGet(-cachedObject.size);
+        }
+
+        // the object might have been overwritten locally in the meantime, in which case it is kept
+        Bucket bucket = storage.getBucket(cachedObject.bucket);
+        StoredObject object = bucket.getObject(cachedObject.key);
+        if (object.exists() && object.getUpstreamValidated() != null) {
+            object.delete();
+            bucket.unindexObject(cachedObject.key);
+        }
+    }
+
+    /**
+     * Returns the number of requests which have been served from local copies.
+     *
+     * @return the number of cache hits since startup
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which required to fetch the object from the upstream instance.
+     *
+     * @return the number of cache misses since startup
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the ratio of requests which have been served from local copies.
+     *
+     * @return the hit rate in percent
+     */
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : hits.get() * 100d / lookups;
+    }
+
+    /**
+     * Returns the number of local copies which have been validated against the upstream instance.
+     *
+     * @return the number of revalidations since startup
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Returns the number of local copies which have been deleted to stay within the disk budget.
+     *
+     * @return the number of evictions since startup
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of requests which waited for a concurrent fetch of the same object.
+     *
+     * @return the number of coalesced requests since startup
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of known local copies.
+     *
+     * @return the number of local copies accessed since startup
+     */
+    public int getSize() {
+        return objects.size();
+    }
+
+    /**
+     * Returns the disk space occupied by local copies.
+     *
+     * @return a string representation of the disk usage and the allowed maximum
+     */
+    public String getUsage() {
+        return NLS.formatSize(bytes.get()) + " / " + NLS.formatSize(maxBytes);
+    }
+
+    @Override
+    public void gather(MetricsCollector collector) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        collector.metric("s3_upstream_cache_hit_rate",
+                         "s3-upstream-cache-hit-rate",
+                         "S3 Upstream Cache Hit Rate",
+                         getHitRate(),
+                         "%");
+        collector.metric("s3_upstream_cache_size",
+                         "s3-upstream-cache-size",
+                         "S3 Upstream Cache Size",
+                         getSize(),
+                         null);
+    }
+}
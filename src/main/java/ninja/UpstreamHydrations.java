@@ -0,0 +1,322 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Mirrors buckets, or prefixes of them, from the {@link AwsUpstream} into local storage.
+ * <p>
+ * A hydration pages through the upstream listing and downloads the listed objects in parallel, limited to
+ * <tt>upstreamAWS.hydration.concurrency</tt> concurrent transfers. Objects which exist locally with the same ETag are
+ * skipped, as are objects which have been deleted locally. Right before a downloaded object is moved into place, the
+ * local file and the tombstones are checked again, so that objects written or deleted by clients in the meantime are
+ * neither overwritten nor resurrected.
+ * <p>
+ * Once all objects of a listing page have been processed, the last key of the page is recorded in the file
+ * <tt>$hydration.properties</tt> of the bucket. If a hydration is cancelled, fails or the server is restarted, a new
+ * hydration of the same prefix resumes after this key. If an object fails to download, the recorded key stays right
+ * before it for the rest of the run, so that a new hydration retries it. The file is removed once a hydration has
+ * completed without failures.
+ */
+@Register(classes = UpstreamHydrations.class)
+public class UpstreamHydrations {
+
+    private static final String EXECUTOR_HYDRATION = "upstream-hydration";
+    private static final String EXECUTOR_HYDRATION_TRANSFERS = "upstream-hydration-transfers";
+
+    private static final String CHECKPOINT_FILE = "$hydration.properties";
+    private static final String CHECKPOINT_PREFIX = "prefix";
+    private static final String CHECKPOINT_LAST_KEY = "lastKey";
+
+    private static final int PAGE_SIZE = 1000;
+
+    @ConfigValue("upstreamAWS.hydration.concurrency")
+    private int concurrency;
+
+    @Part
+    private AwsUpstream awsUpstream;
+
+    @Part
+    private Storage storage;
+
+    @Part
+    private Tasks tasks;
+
+    private final Map<String, Hydration> hydrations = new ConcurrentHashMap<>();
+
+    /**
+     * Determines if buckets can be mirrored, which requires an upstream instance to be configured.
+     *
+     * @return <b>true</b> if an upstream instance is configured, <b>false</b> otherwise
+     */
+    public boolean isAvailable() {
+        return awsUpstream.isConfigured();
+    }
+
+    /**
+     * Starts mirroring the given bucket from the upstream instance.
+     * <p>
+     * If the previous hydration of the bucket covered the same prefix and did not complete, the new one resumes where
+     * the previous one stopped. If a hydration of the bucket is already running, it is returned instead.
+     *
+     * @param bucket the bucket to mirror
+     * @param prefix the prefix of the keys to mirror, or <b>null</b> to mirror the whole bucket
+     * @return the hydration which has been started
+     * @throws IllegalStateException if no upstream instance is configured
+     */
+    public Hydration start(Bucket bucket, @Nullable String prefix) {
+        if (!awsUpstream.isConfigured()) {
+            throw new IllegalStateException("No upstream instance is configured.");
+        }
+
+        String effectivePrefix = Strings.isFilled(prefix) ? prefix : null;
+        return hydrations.compute(bucket.getName(), (name, previousHydration) -> {
+            if (previousHydration != null && previousHydration.isRunning()) {
+                return previousHydration;
+            }
+
+            Hydration hydration = new Hydration(name, effectivePrefix, readCheckpoint(bucket, effectivePrefix));
+            tasks.executor(EXECUTOR_HYDRATION).fork(() -> hydrate(bucket, hydration));
+            return hydration;
+        });
+    }
+
+    /**
+     * Returns the most recent hydration of the given bucket.
+     *
+     * @param bucket the bucket to check
+     * @return the running or last finished hydration since startup, or <b>null</b> if there is none
+     */
+    @Nullable
+    public Hydration getHydration(Bucket bucket) {
+        return hydrations.get(bucket.getName());
+    }
+
+    /**
+     * Determines if a previous hydration of the given bucket has not completed, so that a new one would resume it.
+     *
+     * @param bucket the bucket to check
+     * @return <b>true</b> if progress of an incomplete hydration has been recorded, <b>false</b> otherwise
+     */
+    public boolean isResumable(Bucket bucket) {
+        return getCheckpointFile(bucket).exists();
+    }
+
+    /**
+     * Cancels the running hydration of the given bucket.
+     * <p>
+     * Transfers which are in progress are completed, so that the hydration can be resumed later.
+     *
+     * @param bucket the bucket to stop mirroring
+     * @return <b>true</b> if a running hydration has been cancelled, <b>false</b> otherwise
+     */
+    public boolean cancel(Bucket bucket) {
+        Hydration hydration = hydrations.get(bucket.getName());
+        if (hydration == null || !hydration.isRunning()) {
+            return false;
+        }
+
+        hydration.cancel();
+        return true;
+    }
+
+    private void hydrate(Bucket bucket, Hydration hydration) {
+        int maxTransfers = Math.max(1, concurrency);
+        Semaphore transfers = new Semaphore(maxTransfers);
+        try {
+            if (!bucket.exists() && !storage.createBucket(bucket)) {
+                throw new IOException("Failed creating bucket " + bucket.getName());
+            }
+
+            ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket.getName())
+                                                                     .withPrefix(hydration.getPrefix())
+                                                                     .withStartAfter(hydration.getResumedAfter())
+                                                                     .withMaxKeys(PAGE_SIZE);
+            Set<String> failedKeys = ConcurrentHashMap.newKeySet();
+            boolean checkpointBlocked = false;
+            ListObjectsV2Result result;
+            do {
+                result = awsUpstream.fetchClient().listObjectsV2(request);
+                List<S3ObjectSummary> summaries = result.getObjectSummaries();
+                hydration.objectsListed(summaries.size());
+
+                int dispatched = 0;
+                for (S3ObjectSummary summary : summaries) {
+                    if (hydration.isCancelRequested()) {
+                        break;
+                    }
+                    dispatched++;
+                    transfers.acquire();
+                    tasks.executor(EXECUTOR_HYDRATION_TRANSFERS).fork(() -> {
+                        try {
+                            if (!hydrateObject(bucket, hydration, summary)) {
+                                failedKeys.add(summary.getKey());
+                            }
+                        } finally {
+                            transfers.release();
+                        }
+                    });
+                }
+
+                // wait until all transfers of the page are done, so that the checkpoint never skips pending objects
+                transfers.acquire(maxTransfers);
+                transfers.release(maxTransfers);
+
+                if (!checkpointBlocked) {
+                    String lastKey = determineLastProcessedKey(summaries.subList(0, dispatched), failedKeys);
+                    if (lastKey != null) {
+                        writeCheckpoint(bucket, hydration.getPrefix(), lastKey);
+                    }
+                    // once an object failed, later keys must not be recorded, as a new run would skip the failed one
+                    checkpointBlocked = !failedKeys.isEmpty();
+                }
+                if (hydration.isCancelRequested()) {
+                    hydration.finish(Hydration.State.CANCELLED, null);
+                    return;
+                }
+                request.setContinuationToken(result.getNextContinuationToken());
+            } while (result.isTruncated());
+
+            if (failedKeys.isEmpty()) {
+                sirius.kernel.commons.Files.delete(getCheckpointFile(bucket));
+            }
+            hydration.finish(Hydration.State.COMPLETED, null);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            hydration.finish(Hydration.State.FAILED, "Interrupted");
+        } catch (Exception exception) {
+            hydration.finish(Hydration.State.FAILED, Exceptions.handle(Storage.LOG, exception).getMessage());
+        }
+    }
+
+    /**
+     * Determines the last key of the given page up to which all objects have been processed successfully.
+     *
+     * @param summaries  the processed objects of the page, in the order of the listing
+     * @param failedKeys the keys of all objects which failed to download
+     * @return the last key preceding the first failed object of the page, or <b>null</b> if the first object failed
+     * or no object has been processed
+     */
+    @Nullable
+    private String determineLastProcessedKey(List<S3ObjectSummary> summaries, Set<String> failedKeys) {
+        String lastKey = null;
+        for (S3ObjectSummary summary : summaries) {
+            if (failedKeys.contains(summary.getKey())) {
+                break;
+            }
+            lastKey = summary.getKey();
+        }
+        return lastKey;
+    }
+
+    /**
+     * Downloads the given object unless it is up to date or has been deleted locally.
+     *
+     * @param bucket    the bucket to store the object in
+     * @param hydration the hydration to report the progress to
+     * @param summary   the upstream object to download
+     * @return <b>true</b> if the object has been downloaded or skipped, <b>false</b> if it failed
+     */
+    private boolean hydrateObject(Bucket bucket, Hydration hydration, S3ObjectSummary summary) {
+        String key = summary.getKey();
+        try {
+            StoredObject object = bucket.getObject(key);
+            boolean upToDate = object.exists()
+                               && Strings.areEqual(object.getETag(), AwsUpstream.normalizeETag(summary.getETag()));
+            if (upToDate || bucket.hasTombstone(key)) {
+                hydration.objectSkipped();
+                return true;
+            }
+
+            // remembers the local state, so that a concurrent write or delete by a client is not overwritten
+            long lastModified = object.getFile().lastModified();
+
+            S3Object upstreamObject = awsUpstream.fetchClient().getObject(bucket.getName(), key);
+            DigestingWriter writer = new DigestingWriter(object.getFile());
+            try (InputStream in = upstreamObject.getObjectContent()) {
+                writer.write(in);
+            }
+            if (object.getFile().lastModified() != lastModified || bucket.hasTombstone(key)) {
+                writer.discard();
+                hydration.objectSkipped();
+                return true;
+            }
+            writer.commit();
+            object.discardLayout();
+            object.setProperties(awsUpstream.toObjectProperties(key, upstreamObject.getObjectMetadata()));
+            bucket.indexObject(key);
+
+            hydration.objectDownloaded(writer.getLength());
+            return true;
+        } catch (Exception exception) {
+            hydration.objectFailed(key + ": " + Exceptions.handle(Storage.LOG, exception).getMessage());
+            return false;
+        }
+    }
+
+    private File getCheckpointFile(Bucket bucket) {
+        return new File(bucket.getFolder(), CHECKPOINT_FILE);
+    }
+
+    @Nullable
+    private String readCheckpoint(Bucket bucket, @Nullable String prefix) {
+        File checkpointFile = getCheckpointFile(bucket);
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+
+        Properties checkpoint = new Properties();
+        try (InputStream in = new FileInputStream(checkpointFile)) {
+            checkpoint.load(in);
+        } catch (IOException exception) {
+            Exceptions.handle(Storage.LOG, exception);
+            return null;
+        }
+
+        // a checkpoint of another prefix is of no use, as the listing would skip the wrong keys
+        if (!Strings.areEqual(checkpoint.getProperty(CHECKPOINT_PREFIX, ""), Strings.isFilled(prefix) ? prefix : "")) {
+            return null;
+        }
+
+        return checkpoint.getProperty(CHECKPOINT_LAST_KEY);
+    }
+
+    private void writeCheckpoint(Bucket bucket, @Nullable String prefix, String lastKey) throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(CHECKPOINT_PREFIX, Strings.isFilled(prefix) ? prefix : "");
+        checkpoint.setProperty(CHECKPOINT_LAST_KEY, lastKey);
+        try (OutputStream out = new FileOutputStream(getCheckpointFile(bucket))) {
+            checkpoint.store(out, "Progress of mirroring the bucket from the upstream instance");
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the listings of the {@link AwsUpstream}, so that they can be merged into the local listings of a bucket.
+ * <p>
+ * Upstream listings are fetched in pages of up to 1000 keys, which are kept for <tt>upstreamAWS.listings.ttl</tt>. The
+ * pages of a bucket and prefix are kept in order of their first key. A listing starting at any marker thus reuses the
+ * cached page covering the marker, so that clients paging through a large bucket with a smaller page size only cause
+ * one upstream call per 1000 keys.
+ * <p>
+ * At most <tt>upstreamAWS.listings.maxPages</tt> pages are kept. Once exceeded, all cached pages are dropped.
+ */
+@Register(classes = UpstreamListings.class)
+public class UpstreamListings {
+
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Describes an object listed by the upstream instance.
+     */
+    static class ListedObject {
+        private final String key;
+        private final Instant lastModified;
+        private final long size;
+        private final String etag;
+
+        ListedObject(S3ObjectSummary summary) {
+            this.key = summary.getKey();
+            this.lastModified = summary.getLastModified().toInstant();
+            this.size = summary.getSize();
+            this.etag = AwsUpstream.normalizeETag(summary.getETag());
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        Instant getLastModified() {
+            return lastModified;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getETag() {
+            return etag;
+        }
+    }
+
+    /**
+     * Contains a page of an upstream listing, covering all keys after {@link #startAfter} up to its last object or,
+     * if it is the last page, up to the end of the listing.
+     */
+    private static class Page {
+        private final String startAfter;
+        private final List<ListedObject> objects;
+        private final boolean truncated;
+        private final long fetched = System.currentTimeMillis();
+
+        Page(String startAfter, List<ListedObject> objects, boolean truncated) {
+            this.startAfter = startAfter;
+            this.objects = objects;
+            this.truncated = truncated;
+        }
+
+        String getLastKey() {
+            return objects.isEmpty() ? startAfter : objects.get(objects.size() - 1).getKey();
+        }
+
+        boolean covers(String marker) {
+            return !truncated || ObjectIndex.compareUtf8Binary(marker, getLastKey()) < 0;
+        }
+    }
+
+    @ConfigValue("upstreamAWS.listings.ttl")
+    private Duration ttl;
+
+    @ConfigValue("upstreamAWS.listings.maxPages")
+    private int maxPages;
+
+    @Part
+    private AwsUpstream awsUpstream;
+
+    private final Map<String, NavigableMap<String, Page>> pages = new ConcurrentHashMap<>();
+    private final AtomicInteger numberOfPages = new AtomicInteger();
+
+    /**
+     * Determines if local listings are to be merged with upstream listings.
+     *
+     * @return <b>true</b> if an upstream instance is configured, <b>false</b> otherwise
+     */
+    public boolean isEnabled() {
+        return awsUpstream.isConfigured();
+    }
+
+    /**
+     * Enumerates the upstream objects of the given bucket in UTF-8 binary order of their keys.
+     * <p>
+     * Pages are fetched lazily while iterating, so that a listing only fetches as many pages as it consumes.
+     *
+     * @param bucket the bucket to list
+     * @param marker the key after which to start, may be <b>null</b>
+     * @param prefix the prefix all listed keys must start with, may be <b>null</b>
+     * @return an iterator over all matching upstream objects
+     */
+    Iterator<ListedObject> list(Bucket bucket, @Nullable String marker, @Nullable String prefix) {
+        String effectivePrefix = Strings.isFilled(prefix) ? prefix : "";
+        String effectiveMarker = Strings.isFilled(marker) ? marker : "";
+        NavigableMap<String, Page> pagesOfListing =
+                pages.computeIfAbsent(bucket.getName() + "/" + effectivePrefix,
+                                      ignored -> new ConcurrentSkipListMap<>(ObjectIndex::compareUtf8Binary));
+
+        return new Iterator<>() {
+            private Page page = findPage(bucket, pagesOfListing, effectivePrefix, effectiveMarker);
+            private int index = firstIndexAfter(page, effectiveMarker);
+
+            @Override
+            public boolean hasNext() {
+                while (index >= page.objects.size()) {
+                    if (!page.truncated) {
+                        return false;
+                    }
+                    String lastKey = page.getLastKey();
+                    page = findPage(bucket, pagesOfListing, effectivePrefix, lastKey);
+                    index = firstIndexAfter(page, lastKey);
+                }
+                return true;
+            }
+
+            @Override
+            public ListedObject next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.objects.get(index++);
+            }
+        };
+    }
+
+    private int firstIndexAfter(Page page, String marker) {
+        int index = 0;
+        while (index < page.objects.size()
+               && ObjectIndex.compareUtf8Binary(page.objects.get(index).getKey(), marker) <= 0) {
+            index++;
+        }
+        return index;
+    }
+
+    private Page findPage(Bucket bucket, NavigableMap<String, Page> pagesOfListing, String prefix, String marker) {
+        Map.Entry<String, Page> candidate = pagesOfListing.floorEntry(marker);
+        if (candidate != null && candidate.getValue().covers(marker) && !isExpired(candidate.getValue())) {
+            return candidate.getValue();
+        }
+
+        Page page = fetchPage(bucket, prefix, marker);
+        if (page == null) {
+            // the upstream instance failed, so the listing is only served locally and the failure is not cached
+            return new Page(marker, Collections.emptyList(), false);
+        }
+
+        if (numberOfPages.incrementAndGet() > maxPages) {
+            pages.values().forEach(Map::clear);
+            numberOfPages.set(1);
+        }
+        if (pagesOfListing.put(marker, page) != null) {
+            numberOfPages.decrementAndGet();
+        }
+        return page;
+    }
+
+    private boolean isExpired(Page page) {
+        return System.currentTimeMillis() - page.fetched > ttl.toMillis();
+    }
+
+    @Nullable
+    private Page fetchPage(Bucket bucket, String prefix, String marker) {
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket.getName())
+                                                                 .withMaxKeys(PAGE_SIZE);
+        if (Strings.isFilled(prefix)) {
+            request.setPrefix(prefix);
+        }
+        if (Strings.isFilled(marker)) {
+            request.setStartAfter(marker);
+        }
+
+        try {
+            ListObjectsV2Result result = awsUpstream.fetchClient().listObjectsV2(request);
+            List<ListedObject> objects = new ArrayList<>(result.getObjectSummaries().size());
+            result.getObjectSummaries().forEach(summary -> objects.add(new ListedObject(summary)));
+            return new Page(marker, objects, result.isTruncated() && !objects.isEmpty());
+        } catch (AmazonServiceException exception) {
+            // a bucket which only exists locally has no upstream objects
+            if (exception.getStatusCode() == HttpResponseStatus.NOT_FOUND.code()) {
+                return new Page(marker, Collections.emptyList(), false);
+            }
+
+            Exceptions.handle(Storage.LOG, exception);
+            return null;
+        }
+    }
+}
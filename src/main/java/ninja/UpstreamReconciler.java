@@ -0,0 +1,96 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja;
+
+import sirius.kernel.async.Tasks;
+import sirius.kernel.cache.Cache;
+import sirius.kernel.cache.CacheManager;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reconciles local deletes with the {@link AwsUpstream}.
+ * <p>
+ * An object which is deleted locally must not be fetched from the upstream instance afterwards. Therefore, a tombstone
+ * is left in the bucket right away, so that deletes never wait for the upstream instance. Whether the object actually
+ * exists upstream is checked in the background, and the tombstone is removed again if it does not.
+ * <p>
+ * The outcome of these checks is kept in a cache with a short time to live, so that repeated deletes of the same keys,
+ * as performed by bulk cleanups, do not cause further requests.
+ */
+@Register(classes = UpstreamReconciler.class)
+public class UpstreamReconciler {
+
+    private static final String EXECUTOR_UPSTREAM_RECONCILIATION = "upstream-reconciliation";
+
+    private static final Cache<String, Boolean> upstreamExistence = CacheManager.createLocalCache("upstream-existence");
+
+    @Part
+    private AwsUpstream awsUpstream;
+
+    @Part
+    private Tasks tasks;
+
+    private final Set<String> pendingChecks = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Records that the given object has been deleted locally.
+     * <p>
+     * Unless the object is known to be missing upstream, a tombstone is left and the upstream instance is checked in
+     * the background.
+     *
+     * @param bucket the bucket which contained the object
+     * @param key    the key of the deleted object
+     */
+    public void objectDeleted(Bucket bucket, String key) {
+        if (!awsUpstream.isConfigured()) {
+            return;
+        }
+
+        String cacheKey = bucket.getName() + "/" + key;
+        Boolean existsUpstream = upstreamExistence.get(cacheKey);
+        if (Boolean.FALSE.equals(existsUpstream)) {
+            return;
+        }
+
+        bucket.addTombstone(key);
+        if (existsUpstream == null && pendingChecks.add(cacheKey)) {
+            tasks.executor(EXECUTOR_UPSTREAM_RECONCILIATION).fork(() -> checkUpstream(bucket, key, cacheKey));
+        }
+    }
+
+    /**
+     * Discards what is known about the existence of the given object upstream, as it is about to be fetched from there.
+     *
+     * @param bucket the bucket containing the object
+     * @param key    the key of the object
+     */
+    public void forget(Bucket bucket, String key) {
+        upstreamExistence.remove(bucket.getName() + "/" + key);
+    }
+
+    private void checkUpstream(Bucket bucket, String key, String cacheKey) {
+        try {
+            boolean existsUpstream = awsUpstream.fetchClient().doesObjectExist(bucket.getName(), key);
+            upstreamExistence.put(cacheKey, existsUpstream);
+            if (!existsUpstream) {
+                bucket.removeTombstone(key);
+            }
+        } catch (Exception exception) {
+            // the tombstone is kept, which is safe as it only hides an object which might not exist upstream
+            Exceptions.handle(Storage.LOG, exception);
+        } finally {
+            pendingChecks.remove(cacheKey);
+        }
+    }
+}
@@ -53,11 +53,31 @@ public enum S3ErrorCode {
      */
     InternalError(HttpResponseStatus.INTERNAL_SERVER_ERROR),
 
+    /**
+     * An argument of the request is invalid.
+     */
+    InvalidArgument(HttpResponseStatus.BAD_REQUEST),
+
     /**
      * The specified checksum value is invalid.
      */
     InvalidDigest(HttpResponseStatus.BAD_REQUEST),
 
+    /**
+     * One or more of the specified parts could not be found or the specified ETag did not match the part.
+     */
+    InvalidPart(HttpResponseStatus.BAD_REQUEST),
+
+    /**
+     * The requested part number does not exist within the object.
+     */
+    InvalidPartNumber(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE),
+
+    /**
+     * The requested range cannot be satisfied.
+     */
+    InvalidRange(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE),
+
     /**
      * The current request is not valid.
      */
@@ -88,6 +108,11 @@ public enum S3ErrorCode {
      */
     NoSuchUpload(HttpResponseStatus.NOT_FOUND),
 
+    /**
+     * At least one of the specified preconditions did not hold.
+     */
+    PreconditionFailed(HttpResponseStatus.PRECONDITION_FAILED),
+
     /**
      * The provided request signature does not match the one calculated by the server.
      */
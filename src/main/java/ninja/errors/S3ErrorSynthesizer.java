@@ -8,7 +8,11 @@
 
 package ninja.errors;
 
+import ninja.OperationMetrics;
+import ninja.RequestTrace;
+import ninja.S3Dispatcher;
 import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.Part;
 import sirius.kernel.di.std.Register;
 import sirius.kernel.xml.XMLStructuredOutput;
 import sirius.web.http.WebContext;
@@ -23,6 +27,9 @@ import javax.annotation.Nullable;
 @Register(classes = S3ErrorSynthesizer.class)
 public class S3ErrorSynthesizer {
 
+    @Part
+    private OperationMetrics operationMetrics;
+
     /**
      * Synthesizes an error response.
      *
@@ -37,8 +44,8 @@ public class S3ErrorSynthesizer {
                                 @Nullable String key,
                                 @Nonnull S3ErrorCode code,
                                 @Nullable String message) {
-        XMLStructuredOutput xml =
-                new XMLStructuredOutput(webContext.respondWith().outputStream(code.getHttpStatusCode(), "text/xml"));
+        XMLStructuredOutput xml = new XMLStructuredOutput(S3Dispatcher.respondWith(webContext)
+                                                                  .outputStream(code.getHttpStatusCode(), "text/xml"));
 
         String resource = null;
         if (Strings.isFilled(bucket)) {
@@ -53,5 +60,8 @@ public class S3ErrorSynthesizer {
         xml.propertyIfFilled("Message", message);
         xml.propertyIfFilled("Resource", resource);
         xml.endOutput();
+
+        operationMetrics.recordError(S3Dispatcher.determineOperation(webContext), bucket, code);
+        RequestTrace.fail(code);
     }
 }
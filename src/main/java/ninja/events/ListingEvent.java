@@ -0,0 +1,45 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by Java Flight Recorder when the objects of a bucket are listed.
+ */
+@Name("ninja.Listing")
+@Label("S3 Listing")
+@Description("The objects of a bucket have been listed")
+@Category({"S3 ninja", "Buckets"})
+@StackTrace(false)
+public class ListingEvent extends Event {
+
+    @Label("Bucket")
+    public String bucket;
+
+    @Label("Prefix Length")
+    public int prefixLength;
+
+    @Label("Limit")
+    public int limit;
+
+    @Label("Listed Objects")
+    public int objects;
+
+    @Label("Truncated")
+    public boolean truncated;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,48 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by Java Flight Recorder when a part of a multipart upload is uploaded or when an upload is completed.
+ */
+@Name("ninja.Multipart")
+@Label("S3 Multipart Upload")
+@Description("A part has been uploaded or a multipart upload has been completed")
+@Category({"S3 ninja", "Objects"})
+@StackTrace(false)
+public class MultipartEvent extends Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Bucket")
+    public String bucket;
+
+    @Label("Key Length")
+    public int keyLength;
+
+    @Label("Part Number")
+    @Description("The number of the uploaded part, 0 when an upload is completed")
+    public int partNumber;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,44 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by Java Flight Recorder when an object is read or written.
+ */
+@Name("ninja.Object")
+@Label("S3 Object Access")
+@Description("An object has been read, written, copied or deleted")
+@Category({"S3 ninja", "Objects"})
+@StackTrace(false)
+public class ObjectEvent extends Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Bucket")
+    public String bucket;
+
+    @Label("Key Length")
+    public int keyLength;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Outcome")
+    public String outcome;
+}
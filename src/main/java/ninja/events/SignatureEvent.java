@@ -0,0 +1,36 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by Java Flight Recorder when the signature of a request is verified.
+ */
+@Name("ninja.Signature")
+@Label("S3 Signature Verification")
+@Description("The signature of a request has been computed and compared against the given one")
+@Category({"S3 ninja", "Security"})
+@StackTrace(false)
+public class SignatureEvent extends Event {
+
+    @Label("Bucket")
+    public String bucket;
+
+    @Label("Key Length")
+    public int keyLength;
+
+    @Label("Outcome")
+    public String outcome;
+}
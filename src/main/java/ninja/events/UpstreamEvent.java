@@ -0,0 +1,48 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by Java Flight Recorder once a request for a missing object has been tunnelled to the upstream S3 instance.
+ */
+@Name("ninja.Upstream")
+@Label("S3 Upstream Tunnel")
+@Description("A request for a missing object has been tunnelled to the upstream S3 instance")
+@Category({"S3 ninja", "Objects"})
+@StackTrace(false)
+public class UpstreamEvent extends Event {
+
+    @Label("Bucket")
+    public String bucket;
+
+    @Label("Key Length")
+    public int keyLength;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Ranged")
+    public boolean ranged;
+
+    @Label("Upstream Status")
+    @Description("The HTTP status code of the upstream response")
+    public int status;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -9,6 +9,7 @@
 package ninja.queries;
 
 import ninja.Bucket;
+import ninja.S3Dispatcher;
 import sirius.kernel.di.std.Register;
 import sirius.kernel.xml.XMLStructuredOutput;
 import sirius.web.http.WebContext;
@@ -27,7 +28,7 @@ public class BucketAclSynthesizer implements S3QueryProcessor {
                              @Nullable Bucket bucket,
                              @Nullable String key,
                              @Nonnull String query) {
-        XMLStructuredOutput xml = webContext.respondWith().xml();
+        XMLStructuredOutput xml = S3Dispatcher.respondWith(webContext).xml();
         xml.beginOutput("GetBucketAclOutput");
         xml.endOutput();
     }
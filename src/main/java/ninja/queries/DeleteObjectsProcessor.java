@@ -8,9 +8,13 @@
 
 package ninja.queries;
 
+import ninja.AwsUpstream;
 import ninja.Bucket;
+import ninja.S3Dispatcher;
 import ninja.StoredObject;
+import ninja.UpstreamReconciler;
 import ninja.errors.S3ErrorCode;
+import sirius.kernel.di.std.Part;
 import sirius.kernel.di.std.Register;
 import sirius.kernel.xml.StructuredNode;
 import sirius.kernel.xml.XMLStructuredInput;
@@ -27,16 +31,22 @@ import java.io.IOException;
 @Register(name = "delete")
 public class DeleteObjectsProcessor implements S3QueryProcessor {
 
+    @Part
+    private AwsUpstream awsUpstream;
+
+    @Part
+    private UpstreamReconciler upstreamReconciler;
+
     @Override
     public void processQuery(@Nonnull WebContext webContext,
                              @Nullable Bucket bucket,
                              @Nullable String key,
                              @Nonnull String query) {
-        XMLStructuredOutput xml = webContext.respondWith().xml();
+        XMLStructuredOutput xml = S3Dispatcher.respondWith(webContext).xml();
         xml.beginOutput("DeleteResult");
 
         String hostId = webContext.getRequest().headers().get("x-amz-id-2");
-        String requestId = webContext.getRequest().headers().get("x-amz-request-id");
+        String requestId = S3Dispatcher.getRequestId(webContext);
 
         try {
             XMLStructuredInput request = new XMLStructuredInput(webContext.getContent(), null);
@@ -63,7 +73,8 @@ public class DeleteObjectsProcessor implements S3QueryProcessor {
         String key = objectNode.queryValue("Key").asString();
 
         StoredObject object = bucket.getObject(key);
-        if (!object.exists()) {
+        // objects which are missing locally might still exist upstream and are therefore hidden by a tombstone
+        if (!object.exists() && !awsUpstream.isConfigured()) {
             output.beginObject("Error");
             output.property("Key", key);
             output.property("Code", S3ErrorCode.NoSuchKey);
@@ -73,6 +84,8 @@ public class DeleteObjectsProcessor implements S3QueryProcessor {
         }
 
         object.delete();
+        bucket.unindexObject(key);
+        upstreamReconciler.objectDeleted(bucket, key);
 
         if (!quiet) {
             output.beginObject("Deleted");
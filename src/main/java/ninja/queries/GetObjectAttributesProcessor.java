@@ -0,0 +1,102 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja.queries;
+
+import ninja.Bucket;
+import ninja.ObjectChecksum;
+import ninja.S3Dispatcher;
+import ninja.StoredObject;
+import ninja.errors.S3ErrorCode;
+import ninja.errors.S3ErrorSynthesizer;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.xml.XMLStructuredOutput;
+import sirius.web.http.WebContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Processes <a href="https://docs.aws.amazon.com/AmazonS3/latest/API/API_GetObjectAttributes.html">get object
+ * attributes</a> requests.
+ * <p>
+ * All attributes are served from the stored properties of the object, so that the data itself is never read.
+ */
+@Register(name = "attributes")
+public class GetObjectAttributesProcessor implements S3QueryProcessor {
+
+    @Part
+    private S3ErrorSynthesizer errorSynthesizer;
+
+    @Override
+    public void processQuery(@Nonnull WebContext webContext,
+                             @Nullable Bucket bucket,
+                             @Nullable String key,
+                             @Nonnull String query) {
+        StoredObject object = Strings.isFilled(key) ? bucket.getObject(key) : null;
+        if (object == null || !object.exists()) {
+            errorSynthesizer.synthesiseError(webContext,
+                                             bucket.getName(),
+                                             key,
+                                             S3ErrorCode.NoSuchKey,
+                                             "Object does not exist");
+            return;
+        }
+
+        Set<String> attributes = Arrays.stream(webContext.getHeaderValue("x-amz-object-attributes")
+                                                         .asString("ETag,Checksum,ObjectParts,StorageClass,ObjectSize")
+                                                         .split(","))
+                                       .map(String::trim)
+                                       .collect(Collectors.toSet());
+        String etag = object.getETag();
+
+        XMLStructuredOutput xml = S3Dispatcher.respondWith(webContext).xml();
+        xml.beginOutput("GetObjectAttributesOutput");
+        if (attributes.contains("ETag")) {
+            xml.property("ETag", etag);
+        }
+        if (attributes.contains("Checksum")) {
+            outputChecksums(xml, object);
+        }
+        if (attributes.contains("ObjectParts") && etag.contains("-")) {
+            xml.beginObject("ObjectParts");
+            xml.property("PartsCount", object.getPartSizes().size());
+            xml.endObject();
+        }
+        if (attributes.contains("StorageClass")) {
+            xml.property("StorageClass", "STANDARD");
+        }
+        if (attributes.contains("ObjectSize")) {
+            xml.property("ObjectSize", object.getSizeBytes());
+        }
+        xml.endOutput();
+    }
+
+    private void outputChecksums(XMLStructuredOutput xml, StoredObject object) {
+        Map<String, String> checksums = object.getProperties()
+                                              .entrySet()
+                                              .stream()
+                                              .filter(entry -> ObjectChecksum.isChecksumHeader(entry.getKey()))
+                                              .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        if (checksums.isEmpty()) {
+            return;
+        }
+
+        xml.beginObject("Checksum");
+        for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+            xml.property(ObjectChecksum.toElementName(checksum.getKey()), checksum.getValue());
+        }
+        xml.endObject();
+    }
+}
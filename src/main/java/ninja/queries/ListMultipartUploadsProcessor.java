@@ -0,0 +1,88 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package ninja.queries;
+
+import ninja.Bucket;
+import ninja.MultipartUpload;
+import ninja.MultipartUploads;
+import ninja.S3Dispatcher;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.xml.XMLStructuredOutput;
+import sirius.web.http.WebContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Processes <a href="https://docs.aws.amazon.com/AmazonS3/latest/API/API_ListMultipartUploads.html">list multipart
+ * uploads</a> requests.
+ */
+@Register(name = "uploads")
+public class ListMultipartUploadsProcessor implements S3QueryProcessor {
+
+    private static final int DEFAULT_MAX_UPLOADS = 1000;
+
+    @Part
+    private MultipartUploads multipartUploads;
+
+    @Override
+    public void processQuery(@Nonnull WebContext webContext,
+                             @Nullable Bucket bucket,
+                             @Nullable String key,
+                             @Nonnull String query) {
+        String prefix = webContext.get("prefix").asString();
+        String keyMarker = webContext.get("key-marker").asString();
+        String uploadIdMarker = webContext.get("upload-id-marker").asString();
+        int maxUploads = Math.min(webContext.get("max-uploads").asInt(DEFAULT_MAX_UPLOADS), DEFAULT_MAX_UPLOADS);
+
+        List<MultipartUpload> uploads = multipartUploads.getUploads(bucket, prefix, keyMarker, uploadIdMarker)
+                                                        .stream()
+                                                        .limit(maxUploads + 1L)
+                                                        .toList();
+        boolean truncated = uploads.size() > maxUploads;
+        if (truncated) {
+            uploads = uploads.subList(0, maxUploads);
+        }
+
+        XMLStructuredOutput xml = S3Dispatcher.respondWith(webContext).xml();
+        xml.beginOutput("ListMultipartUploadsResult");
+        xml.property("Bucket", bucket.getName());
+        xml.property("KeyMarker", keyMarker);
+        xml.property("UploadIdMarker", uploadIdMarker);
+        if (truncated) {
+            xml.property("NextKeyMarker", uploads.get(uploads.size() - 1).getKey());
+            xml.property("NextUploadIdMarker", uploads.get(uploads.size() - 1).getUploadId());
+        }
+        xml.propertyIfFilled("Prefix", prefix);
+        xml.property("MaxUploads", maxUploads);
+        xml.property("IsTruncated", truncated);
+
+        for (MultipartUpload upload : uploads) {
+            xml.beginObject("Upload");
+            xml.property("Key", upload.getKey());
+            xml.property("UploadId", upload.getUploadId());
+            outputOwnerInfo(xml, "Initiator");
+            outputOwnerInfo(xml, "Owner");
+            xml.property("StorageClass", "STANDARD");
+            xml.property("Initiated", S3Dispatcher.ISO8601_INSTANT.format(upload.getInitiated()));
+            xml.endObject();
+        }
+
+        xml.endOutput();
+    }
+
+    private void outputOwnerInfo(XMLStructuredOutput xml, String name) {
+        xml.beginObject(name);
+        xml.property("ID", "initiatorId");
+        xml.property("DisplayName", "initiatorName");
+        xml.endObject();
+    }
+}
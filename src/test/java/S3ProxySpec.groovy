@@ -3,13 +3,32 @@ import com.amazonaws.auth.AWSCredentials
 import com.amazonaws.auth.BasicAWSCredentials
 import com.amazonaws.services.s3.AmazonS3Client
 import com.amazonaws.services.s3.S3ClientOptions
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.DeleteObjectsRequest
+import com.amazonaws.services.s3.model.GetObjectRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest
+import com.amazonaws.services.s3.model.UploadPartRequest
+import com.google.common.io.ByteStreams
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
 import ninja.AwsUpstream
+import ninja.Bucket
+import ninja.Hydration
+import ninja.Storage
+import ninja.StoredObject
+import ninja.UpstreamCache
+import ninja.UpstreamHydrations
 import org.junit.AfterClass
 import org.junit.Assert
 import org.junit.BeforeClass
 import sirius.kernel.di.Injector
 
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.time.Instant
 import java.time.LocalDateTime
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 
 class S3ProxySpec extends BaseAWSSpec {
@@ -202,4 +221,399 @@ class S3ProxySpec extends BaseAWSSpec {
         upstreamContent == upstreamClient.getObjectAsString(bucketName, objectName)
         localContent == client.getObjectAsString(bucketName, objectName)
     }
+
+    def "Listings merge local and upstream objects"() {
+        given:
+        def upstreamOnly = "listing-upstream-only"
+        def localOnly = "listing-local-only"
+        def deletedLocally = "listing-deleted-locally"
+        when:
+        upstreamClient.putObject(bucketName, upstreamOnly, "This does now exist. Upstream")
+        upstreamClient.putObject(bucketName, deletedLocally, "This does now exist. Upstream")
+        client.putObject(bucketName, localOnly, "This does now exist. Locally")
+        client.deleteObject(bucketName, deletedLocally)
+        def keys = client.listObjectsV2(bucketName, "listing-").getObjectSummaries().collect { it.getKey() }
+        then:
+        keys == [localOnly, upstreamOnly]
+    }
+
+    def "Bulk deletes hide upstream objects"() {
+        given:
+        def fetchedObject = "bulk-delete-fetched"
+        def upstreamOnly = "bulk-delete-upstream-only"
+        def upstreamContent = "This does now exist. Upstream"
+        when:
+        upstreamClient.putObject(bucketName, fetchedObject, upstreamContent)
+        upstreamClient.putObject(bucketName, upstreamOnly, upstreamContent)
+        client.getObjectAsString(bucketName, fetchedObject)
+        client.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(fetchedObject, upstreamOnly))
+        then:
+        upstreamContent == upstreamClient.getObjectAsString(bucketName, fetchedObject)
+        upstreamContent == upstreamClient.getObjectAsString(bucketName, upstreamOnly)
+        !client.doesObjectExist(bucketName, fetchedObject)
+        !client.doesObjectExist(bucketName, upstreamOnly)
+        client.listObjectsV2(bucketName, "bulk-delete-").getObjectSummaries().isEmpty()
+    }
+
+    def "Cached upstream objects are served locally afterwards"() {
+        given:
+        // local copies of previous runs are kept, so that a fresh key is required for an upstream fetch
+        def objectName = "cache-read-through-" + System.currentTimeMillis()
+        def upstreamContent = "This does now exist. Upstream"
+        def upstreamCache = Injector.context().getPart(UpstreamCache)
+        upstreamCache.enabled = true
+        when:
+        upstreamClient.putObject(bucketName, objectName, upstreamContent)
+        def misses = upstreamCache.getMisses()
+        def hits = upstreamCache.getHits()
+        def fetchedContent = client.getObjectAsString(bucketName, objectName)
+        upstreamClient.deleteObject(bucketName, objectName)
+        def cachedContent = client.getObjectAsString(bucketName, objectName)
+        then:
+        fetchedContent == upstreamContent
+        cachedContent == upstreamContent
+        upstreamCache.getMisses() == misses + 1
+        upstreamCache.getHits() == hits + 1
+        cleanup:
+        upstreamCache.enabled = false
+    }
+
+    def "Cached upstream objects are revalidated once their TTL expired"() {
+        given:
+        def objectName = "cache-revalidation-" + System.currentTimeMillis()
+        def upstreamContent = "This does now exist. Upstream"
+        def changedContent = "This has now changed. Upstream"
+        def upstreamCache = Injector.context().getPart(UpstreamCache)
+        def ttl = upstreamCache.ttl
+        upstreamCache.enabled = true
+        upstreamCache.ttl = Duration.ZERO
+        when:
+        upstreamClient.putObject(bucketName, objectName, upstreamContent)
+        def misses = upstreamCache.getMisses()
+        def revalidations = upstreamCache.getRevalidations()
+        def fetchedContent = client.getObjectAsString(bucketName, objectName)
+        upstreamClient.putObject(bucketName, objectName, changedContent)
+        sleep(10)
+        def refetchedContent = client.getObjectAsString(bucketName, objectName)
+        def missesAfterChange = upstreamCache.getMisses()
+        sleep(10)
+        def cachedContent = client.getObjectAsString(bucketName, objectName)
+        then:
+        fetchedContent == upstreamContent
+        refetchedContent == changedContent
+        cachedContent == changedContent
+        missesAfterChange == misses + 2
+        upstreamCache.getMisses() == missesAfterChange
+        upstreamCache.getRevalidations() == revalidations + 2
+        cleanup:
+        upstreamCache.enabled = false
+        upstreamCache.ttl = ttl
+    }
+
+    def "Cached upstream objects are evicted once maxBytes is exceeded"() {
+        given:
+        def objectNames = (1..3).collect { "cache-eviction-" + System.currentTimeMillis() + "-" + it }
+        def upstreamContent = "This does now exist. Upstream"
+        def upstreamCache = Injector.context().getPart(UpstreamCache)
+        def maxBytes = upstreamCache.maxBytes
+        upstreamCache.enabled = true
+        upstreamCache.maxBytes = 2 * upstreamContent.length()
+        when:
+        objectNames.each { upstreamClient.putObject(bucketName, it, upstreamContent) }
+        def evictions = upstreamCache.getEvictions()
+        objectNames.each {
+            client.getObjectAsString(bucketName, it)
+            sleep(10)
+        }
+        def misses = upstreamCache.getMisses()
+        def lastContent = client.getObjectAsString(bucketName, objectNames[2])
+        def missesAfterLast = upstreamCache.getMisses()
+        def firstContent = client.getObjectAsString(bucketName, objectNames[0])
+        then:
+        upstreamCache.getEvictions() >= evictions + 1
+        lastContent == upstreamContent
+        missesAfterLast == misses
+        firstContent == upstreamContent
+        upstreamCache.getMisses() == misses + 1
+        cleanup:
+        upstreamCache.enabled = false
+        upstreamCache.maxBytes = maxBytes
+    }
+
+    def "Concurrent requests of a missing object fetch it from upstream only once"() {
+        given:
+        def objectName = "cache-concurrent-" + System.currentTimeMillis()
+        def upstreamContent = "This does now exist. Upstream\n" * 50000
+        def upstreamCache = Injector.context().getPart(UpstreamCache)
+        upstreamCache.enabled = true
+        when:
+        upstreamClient.putObject(bucketName, objectName, upstreamContent)
+        def misses = upstreamCache.getMisses()
+        def executor = Executors.newFixedThreadPool(8)
+        def requests = (1..8).collect {
+            executor.submit({ client.getObjectAsString(bucketName, objectName) } as Callable<String>)
+        }
+        def contents = requests.collect { it.get(1, TimeUnit.MINUTES) }
+        executor.shutdown()
+        then:
+        contents.every { it == upstreamContent }
+        upstreamCache.getMisses() == misses + 1
+        cleanup:
+        upstreamCache.enabled = false
+    }
+
+    def "Objects written or deleted during an upstream fetch are not overwritten"() {
+        given:
+        def writtenObject = "cache-race-written-" + System.currentTimeMillis()
+        def deletedObject = "cache-race-deleted-" + System.currentTimeMillis()
+        def upstreamContent = "This does now exist. Upstream\n" * 1000000
+        def localContent = "This does now exist. Locally"
+        def upstreamCache = Injector.context().getPart(UpstreamCache)
+        upstreamCache.enabled = true
+        def startFetch = { String key ->
+            def url = client.generatePresignedUrl(bucketName, key, Date.from(Instant.now().plusSeconds(60)))
+            def input = url.openConnection().getInputStream()
+            // the fetch is still running, as the client has not consumed the object yet
+            input.read(new byte[1024])
+            return input
+        }
+        when:
+        upstreamClient.putObject(bucketName, writtenObject, upstreamContent)
+        upstreamClient.putObject(bucketName, deletedObject, upstreamContent)
+        def writtenFetch = startFetch(writtenObject)
+        client.putObject(bucketName, writtenObject, localContent)
+        writtenFetch.withCloseable { ByteStreams.exhaust(it) }
+        def deletedFetch = startFetch(deletedObject)
+        client.deleteObject(bucketName, deletedObject)
+        deletedFetch.withCloseable { ByteStreams.exhaust(it) }
+        then:
+        localContent == client.getObjectAsString(bucketName, writtenObject)
+        !client.doesObjectExist(bucketName, deletedObject)
+        cleanup:
+        upstreamCache.enabled = false
+    }
+
+    def "Tunnelled requests emit flight recorder events"() {
+        given:
+        def objectName = "tunnel-event-" + System.currentTimeMillis()
+        def upstreamContent = "This does now exist. Upstream"
+        def recording = new Recording()
+        recording.enable("ninja.Upstream")
+        def recordingFile = File.createTempFile("s3ninja-events", ".jfr")
+        when:
+        upstreamClient.putObject(bucketName, objectName, upstreamContent)
+        recording.start()
+        def content = client.getObjectAsString(bucketName, objectName)
+        def missingExists = client.doesObjectExist(bucketName, objectName + "-missing")
+        recording.stop()
+        recording.dump(recordingFile.toPath())
+        def events = RecordingFile.readAllEvents(recordingFile.toPath())
+        def get = events.find { it.getString("method") == "GET" }
+        def head = events.find { it.getString("method") == "HEAD" }
+        then:
+        content == upstreamContent
+        !missingExists
+        get.getString("bucket") == bucketName
+        get.getInt("status") == 200
+        get.getLong("bytes") == upstreamContent.length()
+        head.getInt("status") == 404
+        head.getLong("bytes") == 0
+        cleanup:
+        recording.close()
+        recordingFile.delete()
+    }
+
+    def "Deleting an object via the UI hides it from the upstream instance"() {
+        given:
+        def objectName = "ui-delete-" + System.currentTimeMillis()
+        when:
+        client.createBucket(bucketName)
+        upstreamClient.putObject(bucketName, objectName, "This does now exist. Upstream")
+        client.putObject(bucketName, objectName, "This does now exist. Locally")
+        def connection = (HttpURLConnection) new URL("http://localhost:9999/ui/" + bucketName + "/" + objectName
+                                                             + "?delete").openConnection()
+        def responseCode = connection.getResponseCode()
+        then:
+        responseCode == 200
+        !client.doesObjectExist(bucketName, objectName)
+        upstreamClient.doesObjectExist(bucketName, objectName)
+    }
+
+    def "Tunnelled GET of a part requests the part from the upstream instance"() {
+        given:
+        def objectName = "tunnel-part-" + System.currentTimeMillis()
+        def contents = ["Hello ", "tunnelled ", "world"]
+        when:
+        def initiateRequest = new InitiateMultipartUploadRequest(bucketName, objectName)
+        def uploadId = upstreamClient.initiateMultipartUpload(initiateRequest).getUploadId()
+        def partETags = (1..contents.size()).collect {
+            def data = contents[it - 1].getBytes(StandardCharsets.UTF_8)
+            upstreamClient.uploadPart(new UploadPartRequest().withBucketName(bucketName)
+                                                             .withKey(objectName)
+                                                             .withUploadId(uploadId)
+                                                             .withPartNumber(it)
+                                                             .withInputStream(new ByteArrayInputStream(data))
+                                                             .withPartSize(data.length)).getPartETag()
+        }
+        upstreamClient.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName,
+                                                                                  objectName,
+                                                                                  uploadId,
+                                                                                  partETags))
+        def part = client.getObject(new GetObjectRequest(bucketName, objectName).withPartNumber(2))
+        then:
+        new String(ByteStreams.toByteArray(part.getObjectContent()), StandardCharsets.UTF_8) == "tunnelled "
+        part.getObjectMetadata().getPartCount() == contents.size()
+    }
+
+    private static Hydration awaitHydration(Bucket bucket) {
+        def hydrations = Injector.context().getPart(UpstreamHydrations)
+        def timeout = System.currentTimeMillis() + 60000
+        while (hydrations.getHydration(bucket).isRunning() && System.currentTimeMillis() < timeout) {
+            sleep(10)
+        }
+        return hydrations.getHydration(bucket)
+    }
+
+    private static void awaitListing(Hydration hydration) {
+        def timeout = System.currentTimeMillis() + 10000
+        while (hydration.getListed() == 0 && hydration.isRunning() && System.currentTimeMillis() < timeout) {
+            sleep(1)
+        }
+    }
+
+    def "Hydration mirrors the objects of a prefix from the upstream instance"() {
+        given:
+        def prefix = "hydrate-prefix-" + System.currentTimeMillis() + "/"
+        def otherObject = "hydrate-other-" + System.currentTimeMillis()
+        def hydrations = Injector.context().getPart(UpstreamHydrations)
+        def bucket = Injector.context().getPart(Storage).getBucket(bucketName)
+        when:
+        upstreamClient.putObject(bucketName, prefix + "a", "Content of a")
+        upstreamClient.putObject(bucketName, prefix + "b", "Content of b")
+        upstreamClient.putObject(bucketName, otherObject, "Content of another prefix")
+        hydrations.start(bucket, prefix)
+        def hydration = awaitHydration(bucket)
+        then:
+        hydration.getState() == Hydration.State.COMPLETED
+        hydration.getListed() == 2
+        hydration.getDownloaded() == 2
+        hydration.getFailed() == 0
+        bucket.getObject(prefix + "a").getFile().text == "Content of a"
+        bucket.getObject(prefix + "b").getFile().text == "Content of b"
+        !bucket.getObject(otherObject).exists()
+        !hydrations.isResumable(bucket)
+    }
+
+    def "Hydration skips objects whose ETag already matches"() {
+        given:
+        def prefix = "hydrate-skip-" + System.currentTimeMillis() + "/"
+        def hydrations = Injector.context().getPart(UpstreamHydrations)
+        def bucket = Injector.context().getPart(Storage).getBucket(bucketName)
+        when:
+        upstreamClient.putObject(bucketName, prefix + "a", "Content of a")
+        upstreamClient.putObject(bucketName, prefix + "b", "Content of b")
+        hydrations.start(bucket, prefix)
+        def firstHydration = awaitHydration(bucket)
+        def lastModified = bucket.getObject(prefix + "a").getFile().lastModified()
+        hydrations.start(bucket, prefix)
+        def secondHydration = awaitHydration(bucket)
+        then:
+        firstHydration.getDownloaded() == 2
+        secondHydration.getState() == Hydration.State.COMPLETED
+        secondHydration.getDownloaded() == 0
+        secondHydration.getSkipped() == 2
+        bucket.getObject(prefix + "a").getFile().lastModified() == lastModified
+    }
+
+    def "Hydration resumes from the checkpoint after an object failed"() {
+        given:
+        def prefix = "hydrate-resume-" + System.currentTimeMillis() + "/"
+        def hydrations = Injector.context().getPart(UpstreamHydrations)
+        def bucket = Injector.context().getPart(Storage).getBucket(bucketName)
+        bucket.create()
+        // a non-empty directory in place of the object file lets the download of b fail
+        def blockingDirectory = new File(bucket.getFolder(), StoredObject.encodeKey(prefix + "b"))
+        blockingDirectory.mkdirs()
+        new File(blockingDirectory, "blocker").createNewFile()
+        when:
+        upstreamClient.putObject(bucketName, prefix + "a", "Content of a")
+        upstreamClient.putObject(bucketName, prefix + "b", "Content of b")
+        upstreamClient.putObject(bucketName, prefix + "c", "Content of c")
+        hydrations.start(bucket, prefix)
+        def failedHydration = awaitHydration(bucket)
+        def resumable = hydrations.isResumable(bucket)
+        blockingDirectory.deleteDir()
+        hydrations.start(bucket, prefix)
+        def resumedHydration = awaitHydration(bucket)
+        then:
+        failedHydration.getDownloaded() == 2
+        failedHydration.getFailed() == 1
+        resumable
+        resumedHydration.getState() == Hydration.State.COMPLETED
+        resumedHydration.getResumedAfter() == prefix + "a"
+        resumedHydration.getListed() == 2
+        resumedHydration.getDownloaded() == 1
+        resumedHydration.getSkipped() == 1
+        bucket.getObject(prefix + "b").getFile().text == "Content of b"
+        !hydrations.isResumable(bucket)
+    }
+
+    def "Cancelled hydrations can be resumed"() {
+        given:
+        def prefix = "hydrate-cancel-" + System.currentTimeMillis() + "/"
+        def numberOfObjects = 200
+        def hydrations = Injector.context().getPart(UpstreamHydrations)
+        def bucket = Injector.context().getPart(Storage).getBucket(bucketName)
+        def concurrency = hydrations.concurrency
+        // transfers one object at a time, so that the hydration is still running when it is cancelled
+        hydrations.concurrency = 1
+        when:
+        for (int i = 0; i < numberOfObjects; i++) {
+            upstreamClient.putObject(bucketName, prefix + String.format("%04d", i), "Content " * 10000)
+        }
+        awaitListing(hydrations.start(bucket, prefix))
+        def cancelled = hydrations.cancel(bucket)
+        def cancelledHydration = awaitHydration(bucket)
+        def resumable = hydrations.isResumable(bucket)
+        hydrations.start(bucket, prefix)
+        def resumedHydration = awaitHydration(bucket)
+        then:
+        cancelled
+        cancelledHydration.getState() == Hydration.State.CANCELLED
+        cancelledHydration.getDownloaded() > 0
+        cancelledHydration.getDownloaded() < numberOfObjects
+        resumable
+        resumedHydration.getState() == Hydration.State.COMPLETED
+        resumedHydration.getResumedAfter() != null
+        resumedHydration.getSkipped() == 0
+        cancelledHydration.getDownloaded() + resumedHydration.getDownloaded() == numberOfObjects
+        !hydrations.isResumable(bucket)
+        cleanup:
+        hydrations.concurrency = concurrency
+    }
+
+    def "Objects written or deleted during a hydration are not overwritten"() {
+        given:
+        def prefix = "hydrate-race-" + System.currentTimeMillis() + "/"
+        def writtenObject = prefix + "written"
+        def deletedObject = prefix + "deleted"
+        def upstreamContent = "This does now exist. Upstream\n" * 1000000
+        def localContent = "This does now exist. Locally"
+        def hydrations = Injector.context().getPart(UpstreamHydrations)
+        def bucket = Injector.context().getPart(Storage).getBucket(bucketName)
+        when:
+        upstreamClient.putObject(bucketName, writtenObject, upstreamContent)
+        upstreamClient.putObject(bucketName, deletedObject, upstreamContent)
+        // once the listing is done, the transfers have remembered the local state of both objects
+        awaitListing(hydrations.start(bucket, prefix))
+        client.putObject(bucketName, writtenObject, localContent)
+        client.deleteObject(bucketName, deletedObject)
+        def hydration = awaitHydration(bucket)
+        then:
+        hydration.getState() == Hydration.State.COMPLETED
+        hydration.getFailed() == 0
+        bucket.getObject(writtenObject).getFile().text == localContent
+        !bucket.getObject(deletedObject).exists()
+        !client.doesObjectExist(bucketName, deletedObject)
+    }
 }